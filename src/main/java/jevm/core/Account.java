@@ -51,8 +51,8 @@ public class Account {
 	 * @param codeHash
 	 */
 	public Account(w256 codeHash) {
-		this.nonce = new w256(0);
-		this.balance = new w256(0);
+		this.nonce = w256.ZERO;
+		this.balance = w256.ZERO;
 		this.codeHash = codeHash;
 	}
 }
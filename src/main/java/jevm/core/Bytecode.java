@@ -13,12 +13,16 @@
 // limitations under the License.
 package jevm.core;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.Stack;
 
 import jevm.core.VirtualMachine.State.Status;
 import jevm.util.ArrayState;
 import jevm.util.Hex;
+import jevm.util.Keccak256;
+import jevm.util.LimbStack;
+import jevm.util.Word.m256;
 import jevm.util.Word.w256;
 
 /**
@@ -66,6 +70,8 @@ public class Bytecode {
 	public static final int G_copy = 3;
 	public static final int G_blockhash = 20;
 	public static final int G_quaddivisor = 100;
+	// NOTE: the divisor of C_mem in Appendix H, rather than that of MODEXP above
+	public static final int G_memquaddivisor = 512;
 
 	// 0s: Stop and Arithmetic Operations
 	public static final int STOP = 0x0;
@@ -92,6 +98,9 @@ public class Bytecode {
 	public static final int XOR = 0x18;
 	public static final int NOT = 0x19;
 	public static final int BYTE = 0x1a;
+	public static final int SHL = 0x1b;
+	public static final int SHR = 0x1c;
+	public static final int SAR = 0x1d;
 	// 20s: SHA3
 	public static final int SHA3 = 0x20;
 	// 30s: Environment Information
@@ -209,6 +218,7 @@ public class Bytecode {
 	public static final int CALLCODE = 0xf2;
 	public static final int RETURN = 0xf3;
 	public static final int DELEGATECALL = 0xf4;
+	public static final int CREATE2 = 0xf5;
 	public static final int STATICCALL = 0xfa;
 	public static final int REVERT = 0xfd;
 	public static final int INVALID = 0xfe;
@@ -266,6 +276,12 @@ public class Bytecode {
 		NOT(Bytecode.NOT, 1, 1, "Bitwise NOT operation.",1),
 		//
 		BYTE(Bytecode.BYTE, 2, 1, "Retrieves single byte from word.",1),
+		//
+		SHL(Bytecode.SHL, 2, 1, "Left shift operation.",1),
+		//
+		SHR(Bytecode.SHR, 2, 1, "Logical right shift operation.",1),
+		//
+		SAR(Bytecode.SAR, 2, 1, "Arithmetic (signed) right shift operation.",1),
 		// 20s: SHA3
 		SHA3(Bytecode.SHA3, 2, 1, "Compute Keccak-256 hash.",1),
 		// 30s: Environment Information
@@ -491,6 +507,8 @@ public class Bytecode {
 		DELEGATECALL(Bytecode.DELEGATECALL, 6, 1,
 				"Message-call into this account with an alternative account's code, but persisting the current values for sender and value.",1),
 		//
+		CREATE2(Bytecode.CREATE2, 4, 1, "Create a new account with associated code at a predictable address.",1),
+		//
 		STATICCALL(Bytecode.STATICCALL, 6, 1, "Static message-call into an account.",1),
 		//
 		REVERT(Bytecode.REVERT, 2, 0, "Halt execution reverting state changes but returning data and remaining gas.",1),
@@ -542,302 +560,992 @@ public class Bytecode {
 	 * @return
 	 */
 	public static Opcode decode(byte _opcode) {
-		int opcode = (_opcode & 0xff);
+		return OPCODES[_opcode & 0xff];
+	}
+
+	/**
+	 * Maps every byte to the corresponding opcode, or <code>UNKNOWN</code> if
+	 * there is none. This includes opcodes from all forks (see
+	 * <code>InstructionSet</code>).
+	 */
+	private static final Opcode[] OPCODES = opcodes();
+
+	private static Opcode[] opcodes() {
+		Opcode[] table = new Opcode[256];
+		Arrays.fill(table, Opcode.UNKNOWN);
+		for (Opcode op : Opcode.values()) {
+			if (op != Opcode.UNKNOWN) {
+				table[op.opcode] = op;
+			}
+		}
+		return table;
+	}
+
+
+	/**
+	 * Determine the static gas cost of a given opcode, as given in "Appendix G" of
+	 * the yellow paper. This excludes any dynamic costs, such as for expanding
+	 * memory, the bytes of an exponent, the words hashed by SHA3 or the setting
+	 * of storage (which is entirely dynamic).
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static int gas(int opcode) {
+		if (opcode >= PUSH1 && opcode <= SWAP16) {
+			// Covers PUSH, DUP and SWAP
+			return G_verylow;
+		} else if (opcode >= LOG0 && opcode <= LOG4) {
+			return G_log + (G_logtopic * (opcode - LOG0));
+		}
+		switch (opcode) {
+		case ADDRESS:
+		case ORIGIN:
+		case CALLER:
+		case CALLVALUE:
+		case CALLDATASIZE:
+		case CODESIZE:
+		case GASPRICE:
+		case RETURNDATASIZE:
+		case COINBASE:
+		case TIMESTAMP:
+		case NUMBER:
+		case DIFFICULTY:
+		case GASLIMIT:
+		case POP:
+		case PC:
+		case MSIZE:
+		case GAS:
+			return G_base;
+		case ADD:
+		case SUB:
+		case NOT:
+		case LT:
+		case GT:
+		case SLT:
+		case SGT:
+		case EQ:
+		case ISZERO:
+		case AND:
+		case OR:
+		case XOR:
+		case BYTE:
+		case SHL:
+		case SHR:
+		case SAR:
+		case CALLDATALOAD:
+		case CALLDATACOPY:
+		case CODECOPY:
+		case RETURNDATACOPY:
+		case MLOAD:
+		case MSTORE:
+		case MSTORE8:
+			return G_verylow;
+		case MUL:
+		case DIV:
+		case SDIV:
+		case MOD:
+		case SMOD:
+		case SIGNEXTEND:
+			return G_low;
+		case ADDMOD:
+		case MULMOD:
+		case JUMP:
+			return G_mid;
+		case JUMPI:
+			return G_high;
+		case EXP:
+			return G_exp;
+		case SHA3:
+			return G_sha3;
+		case BALANCE:
+			return G_balance;
+		case EXTCODESIZE:
+		case EXTCODECOPY:
+			return G_extcode;
+		case BLOCKHASH:
+			return G_blockhash;
+		case SLOAD:
+			return G_sload;
+		case JUMPDEST:
+			return G_jumpdest;
+		case CREATE:
+		case CREATE2:
+			return G_create;
+		case CALL:
+		case CALLCODE:
+		case DELEGATECALL:
+		case STATICCALL:
+			return G_call;
+		case SELFDESTRUCT:
+			return G_selfdestruct;
+		default:
+			// STOP, RETURN, REVERT, SSTORE, INVALID and unknown bytes
+			return G_zero;
+		}
+	}
+
+	/**
+	 * Determine whether a given opcode ends a basic block. That is, control never
+	 * falls through from it to the following instruction, or it is a conditional
+	 * branch.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static boolean isTerminator(int opcode) {
 		switch (opcode) {
 		case STOP:
-			return Opcode.STOP;
+		case JUMP:
+		case JUMPI:
+		case RETURN:
+		case REVERT:
+		case INVALID:
+		case SELFDESTRUCT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Execute the instruction at the current program counter, charging its gas
+	 * according to the instruction set of the given state. Opcodes which are not
+	 * valid in that instruction set halt with an exception. When the stack of
+	 * the given state supports in-place operations, then instructions are
+	 * applied directly to its slots. This avoids allocating a fresh word for
+	 * every intermediate value.
+	 *
+	 * @param state
+	 */
+	public static boolean execute(VirtualMachine.State state) {
+		int opcode = state.getCodeMemory().read(state.pc()) & 0xff;
+		InstructionSet instructions = state.getInstructionSet();
+		if (!instructions.isValid(opcode)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		return execute(state, instructions.gas(opcode));
+	}
+
+	/**
+	 * Check whether an instruction which takes a given number of operands and
+	 * leaves a given number of results can be executed on a given stack, without
+	 * underflowing it or exceeding <code>STACK_LIMIT</code>.
+	 *
+	 * @param stack
+	 * @param arguments
+	 * @param returns
+	 * @return
+	 */
+	static boolean fits(VirtualMachine.Stack<w256> stack, int arguments, int returns) {
+		int n = stack.used();
+		return n >= arguments && (n - arguments + returns) <= VirtualMachine.STACK_LIMIT;
+	}
+
+	/**
+	 * Execute the instruction at the current program counter, charging a given
+	 * static cost for it (e.g. from a particular instruction set) along with any
+	 * dynamic costs. A static cost of zero is given when it has already been
+	 * charged, such as on entry to a block.
+	 *
+	 * @param state
+	 * @param cost
+	 * @return
+	 */
+	static boolean execute(VirtualMachine.State state, int cost) {
+		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		int pc = state.pc();
+		int opcode = code.read(pc) & 0xff;
+		Opcode op = OPCODES[opcode];
+		if (!charge(state, cost)) {
+			return false;
+		} else if (!fits(stack, op.arguments, op.returns)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else if (stack instanceof LimbStack) {
+			return execute(opcode, pc, state, (LimbStack) stack);
+		} else if (stack instanceof VirtualMachine.WordStack) {
+			return execute(opcode, pc, state, (VirtualMachine.WordStack) stack);
+		} else {
+			return execute(opcode, pc, state);
+		}
+	}
+
+	/**
+	 * Execute a given instruction by operating directly on the limbs of a
+	 * primitive stack, whose bounds have already been checked. Operands are read
+	 * into scratch words and results are written back as limbs, such that (aside
+	 * from words held in memory or storage) no words are allocated. Instructions
+	 * without a primitive variant (e.g. <code>STOP</code>) are executed as
+	 * normal.
+	 *
+	 * @param opcode
+	 * @param pc
+	 * @param state
+	 * @param stack
+	 * @return
+	 */
+	private static boolean execute(int opcode, int pc, VirtualMachine.State state, LimbStack stack) {
+		switch (opcode) {
+		case EXP:
+			return executeEXP(pc, state, stack);
+		case SHA3:
+			return executeSHA3(pc, state, stack);
+		case MLOAD:
+			return executeMLOAD(pc, state, stack);
+		case MSTORE:
+			return executeMSTORE(pc, state, stack);
+		case SLOAD:
+			return executeSLOAD(pc, state, stack);
+		case SSTORE:
+			return executeSSTORE(pc, state, stack);
+		case JUMP:
+			return executeJUMP(pc, state, stack);
+		case JUMPI:
+			return executeJUMPI(pc, state, stack);
+		case GAS:
+			stack.push(0, 0, 0, state.gas());
+			break;
+		case POP:
+			stack.drop(1);
+			break;
+		default:
+			if (opcode >= PUSH1 && opcode <= PUSH32) {
+				return executePUSH(opcode - PUSH1 + 1, pc, state, stack);
+			} else if (opcode >= DUP1 && opcode <= DUP16) {
+				stack.dup(opcode - DUP1 + 1);
+			} else if (opcode >= SWAP1 && opcode <= SWAP16) {
+				stack.swap(opcode - SWAP1 + 1);
+			} else if (Program.isFoldable(opcode)) {
+				return evaluate(opcode, pc, state, stack);
+			} else {
+				return execute(opcode, pc, state);
+			}
+		}
+		state.jump(pc + 1);
+		return true;
+	}
+
+	/**
+	 * Evaluate an arithmetic, comparison or bitwise instruction on the limbs of a
+	 * primitive stack (see <code>Program.evaluate()</code>).
+	 *
+	 * @param opcode
+	 * @param pc
+	 * @param state
+	 * @param stack
+	 * @return
+	 */
+	private static boolean evaluate(int opcode, int pc, VirtualMachine.State state, LimbStack stack) {
+		m256[] registers = REGISTERS.get();
+		Program.evaluate(opcode, stack.limbs(), (stack.used() - 1) << 2, registers[0], registers[1], registers[2]);
+		stack.drop(OPCODES[opcode].arguments - 1);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeEXP(int pc, VirtualMachine.State state, LimbStack stack) {
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		m256[] registers = REGISTERS.get();
+		m256 exponent = registers[1].load(s, top - 4);
+		if (!charge(state, state.getInstructionSet().gasExpByte() * exponent.byteLength())) {
+			return false;
+		}
+		registers[0].load(s, top).expInto(exponent).store(s, top - 4);
+		stack.drop(1);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSHA3(int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<w256> local = state.getLocalMemory();
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		m256[] registers = REGISTERS.get();
+		m256 offset = registers[0].load(s, top);
+		m256 length = registers[1].load(s, top - 4);
+		boolean valid = offset.isInt() && length.isInt();
+		if (!charge(state, gasSHA3(local, offset.toInt(), length.toInt(), valid))) {
+			return false;
+		}
+		w256 hash = sha3(local, offset.toInt(), length.toInt(), valid);
+		stack.drop(1);
+		if (hash == null) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		registers[2].set(hash).store(s, top - 4);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeMLOAD(int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<w256> local = state.getLocalMemory();
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+		if (!charge(state, gasMemory(local, address))) {
+			return false;
+		} else if (!local.expand(address)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		REGISTERS.get()[0].set(local.read(address)).store(s, top);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeMSTORE(int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<w256> local = state.getLocalMemory();
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+		if (!charge(state, gasMemory(local, address))) {
+			return false;
+		}
+		stack.drop(2);
+		if (!local.expand(address)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		local.write(address, w256.valueOf(s[top - 4], s[top - 3], s[top - 2], s[top - 1]));
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSLOAD(int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<w256> storage = state.getStorageMemory();
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+		if (!storage.expand(address)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		REGISTERS.get()[0].set(storage.read(address)).store(s, top);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSSTORE(int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<w256> storage = state.getStorageMemory();
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+		w256 value = w256.valueOf(s[top - 4], s[top - 3], s[top - 2], s[top - 1]);
+		if (!charge(state, gasSSTORE(storage, address, value))) {
+			return false;
+		}
+		stack.drop(2);
+		if (!storage.expand(address)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		storage.write(address, value);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeJUMP(int pc, VirtualMachine.State state, LimbStack stack) {
+		m256 address = REGISTERS.get()[0].load(stack.limbs(), (stack.used() - 1) << 2);
+		stack.drop(1);
+		if (!address.isInt() || !state.getJumpDestinations().isValid(address.toInt())) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		state.jump(address.toInt());
+		return true;
+	}
+
+	private static boolean executeJUMPI(int pc, VirtualMachine.State state, LimbStack stack) {
+		long[] s = stack.limbs();
+		int top = (stack.used() - 1) << 2;
+		m256[] registers = REGISTERS.get();
+		m256 address = registers[0].load(s, top);
+		boolean taken = !registers[1].load(s, top - 4).isZero();
+		stack.drop(2);
+		if (!taken) {
+			state.jump(pc + 1);
+			return true;
+		} else if (!address.isInt() || !state.getJumpDestinations().isValid(address.toInt())) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+		state.jump(address.toInt());
+		return true;
+	}
+
+	private static boolean executePUSH(int count, int pc, VirtualMachine.State state, LimbStack stack) {
+		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
+		// Accumulate operand into limbs, where l0 is the most significant
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		for (int i = 1; i <= count; ++i) {
+			l0 = (l0 << 8) | (l1 >>> 56);
+			l1 = (l1 << 8) | (l2 >>> 56);
+			l2 = (l2 << 8) | (l3 >>> 56);
+			l3 = (l3 << 8) | (code.read(pc + i) & 0xFF);
+		}
+		stack.push(l0, l1, l2, l3);
+		state.jump(pc + count + 1);
+		return true;
+	}
+
+	/**
+	 * Scratch words used when evaluating instructions on a primitive stack.
+	 */
+	private static final ThreadLocal<m256[]> REGISTERS = ThreadLocal
+			.withInitial(() -> new m256[] { new m256(), new m256(), new m256() });
+
+	/**
+	 * Execute a given instruction by operating directly on the slots of a word
+	 * stack. Instructions which have no in-place variant (e.g. those accessing
+	 * memory or storage) are executed as normal.
+	 *
+	 * @param opcode
+	 * @param pc
+	 * @param state
+	 * @param stack
+	 */
+	private static boolean execute(int opcode, int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		switch (opcode) {
 		case ADD:
-			return Opcode.ADD;
+			stack.peek(0).addInto(stack.peek(1));
+			break;
 		case MUL:
-			return Opcode.MUL;
+			stack.peek(0).mulInto(stack.peek(1));
+			break;
 		case SUB:
-			return Opcode.SUB;
+			stack.peek(0).subInto(stack.peek(1));
+			break;
 		case DIV:
-			return Opcode.DIV;
+			stack.peek(0).divInto(stack.peek(1));
+			break;
 		case SDIV:
-			return Opcode.SDIV;
+			stack.peek(0).sdivInto(stack.peek(1));
+			break;
 		case MOD:
-			return Opcode.MOD;
+			stack.peek(0).modInto(stack.peek(1));
+			break;
 		case SMOD:
-			return Opcode.SMOD;
+			stack.peek(0).smodInto(stack.peek(1));
+			break;
 		case ADDMOD:
-			return Opcode.ADDMOD;
+			stack.peek(0).addModInto(stack.peek(1), stack.peek(2));
+			stack.drop(1);
+			break;
 		case MULMOD:
-			return Opcode.MULMOD;
+			stack.peek(0).mulModInto(stack.peek(1), stack.peek(2));
+			stack.drop(1);
+			break;
 		case EXP:
-			return Opcode.EXP;
+			if (!charge(state, state.getInstructionSet().gasExpByte() * stack.peek(1).byteLength())) {
+				return false;
+			}
+			stack.peek(0).expInto(stack.peek(1));
+			break;
 		case SIGNEXTEND:
-			return Opcode.SIGNEXTEND;
-		// 10s: Comparison & Bitwise Logic Operations
+			return executeSIGNEXTEND(pc, state, stack);
 		case LT:
-			return Opcode.LT;
+			stack.peek(0).ltInto(stack.peek(1));
+			break;
 		case GT:
-			return Opcode.GT;
+			stack.peek(0).gtInto(stack.peek(1));
+			break;
 		case SLT:
-			return Opcode.SLT;
+			stack.peek(0).sltInto(stack.peek(1));
+			break;
 		case SGT:
-			return Opcode.SGT;
+			stack.peek(0).sgtInto(stack.peek(1));
+			break;
 		case EQ:
-			return Opcode.EQ;
-		case ISZERO:
-			return Opcode.ISZERO;
+			stack.peek(0).eqInto(stack.peek(1));
+			break;
+		case ISZERO: {
+			m256 w = stack.peek(0);
+			w.set(w.isZero() ? 1 : 0);
+			state.jump(pc + 1);
+			return true;
+		}
 		case AND:
-			return Opcode.AND;
+			stack.peek(0).andInto(stack.peek(1));
+			break;
 		case OR:
-			return Opcode.OR;
+			stack.peek(0).orInto(stack.peek(1));
+			break;
 		case XOR:
-			return Opcode.XOR;
+			stack.peek(0).xorInto(stack.peek(1));
+			break;
 		case NOT:
-			return Opcode.NOT;
+			stack.peek(0).not();
+			state.jump(pc + 1);
+			return true;
 		case BYTE:
-			return Opcode.BYTE;
-		// 20s: SHA3
+			return executeBYTE(pc, state, stack);
+		case SHL:
+			stack.peek(0).shlInto(stack.peek(1));
+			break;
+		case SHR:
+			stack.peek(0).shrInto(stack.peek(1));
+			break;
+		case SAR:
+			stack.peek(0).sarInto(stack.peek(1));
+			break;
 		case SHA3:
-			return Opcode.SHA3;
-		// 30s: Environment Information
-		case ADDRESS:
-			return Opcode.ADDRESS;
-		case BALANCE:
-			return Opcode.BALANCE;
-		case ORIGIN:
-			return Opcode.ORIGIN;
-		case CALLER:
-			return Opcode.CALLER;
-		case CALLVALUE:
-			return Opcode.CALLVALUE;
-		case CALLDATALOAD:
-			return Opcode.CALLDATALOAD;
-		case CALLDATASIZE:
-			return Opcode.CALLDATASIZE;
-		case CALLDATACOPY:
-			return Opcode.CALLDATACOPY;
-		case CODESIZE:
-			return Opcode.CODESIZE;
-		case CODECOPY:
-			return Opcode.CODECOPY;
-		case GASPRICE:
-			return Opcode.GASPRICE;
-		case EXTCODESIZE:
-			return Opcode.EXTCODESIZE;
-		case EXTCODECOPY:
-			return Opcode.EXTCODECOPY;
-		case RETURNDATASIZE:
-			return Opcode.RETURNDATASIZE;
-		case RETURNDATACOPY:
-			return Opcode.RETURNDATACOPY;
-		// // 40s: Block Information
-		case BLOCKHASH:
-			return Opcode.BLOCKHASH;
-		case COINBASE:
-			return Opcode.COINBASE;
-		case TIMESTAMP:
-			return Opcode.TIMESTAMP;
-		case NUMBER:
-			return Opcode.NUMBER;
-		case DIFFICULTY:
-			return Opcode.DIFFICULTY;
-		case GASLIMIT:
-			return Opcode.GASLIMIT;
-		// 50s: Stack, Memory Storage and Flow Operations
+			return executeSHA3(pc, state, stack);
 		case POP:
-			return Opcode.POP;
-		case MLOAD:
-			return Opcode.MLOAD;
-		case MSTORE:
-			return Opcode.MSTORE;
-		case MSTORE8:
-			return Opcode.MSTORE8;
-		case SLOAD:
-			return Opcode.SLOAD;
-		case SSTORE:
-			return Opcode.SSTORE;
+			break;
 		case JUMP:
-			return Opcode.JUMP;
+			return executeJUMP(pc, state, stack);
 		case JUMPI:
-			return Opcode.JUMPI;
-		case PC:
-			return Opcode.PC;
-		case MSIZE:
-			return Opcode.MSIZE;
+			return executeJUMPI(pc, state, stack);
 		case GAS:
-			return Opcode.GAS;
-		case JUMPDEST:
-			return Opcode.JUMPDEST;
-		// 60s & 70s: Push Operations
+			stack.push().set(state.gas());
+			state.jump(pc + 1);
+			return true;
 		case PUSH1:
-			return Opcode.PUSH1;
 		case PUSH2:
-			return Opcode.PUSH2;
 		case PUSH3:
-			return Opcode.PUSH3;
 		case PUSH4:
-			return Opcode.PUSH4;
 		case PUSH5:
-			return Opcode.PUSH5;
 		case PUSH6:
-			return Opcode.PUSH6;
 		case PUSH7:
-			return Opcode.PUSH7;
 		case PUSH8:
-			return Opcode.PUSH8;
 		case PUSH9:
-			return Opcode.PUSH9;
 		case PUSH10:
-			return Opcode.PUSH10;
 		case PUSH11:
-			return Opcode.PUSH11;
 		case PUSH12:
-			return Opcode.PUSH12;
 		case PUSH13:
-			return Opcode.PUSH13;
 		case PUSH14:
-			return Opcode.PUSH14;
 		case PUSH15:
-			return Opcode.PUSH15;
 		case PUSH16:
-			return Opcode.PUSH16;
 		case PUSH17:
-			return Opcode.PUSH17;
 		case PUSH18:
-			return Opcode.PUSH18;
 		case PUSH19:
-			return Opcode.PUSH19;
 		case PUSH20:
-			return Opcode.PUSH20;
 		case PUSH21:
-			return Opcode.PUSH21;
 		case PUSH22:
-			return Opcode.PUSH22;
 		case PUSH23:
-			return Opcode.PUSH23;
 		case PUSH24:
-			return Opcode.PUSH24;
 		case PUSH25:
-			return Opcode.PUSH25;
 		case PUSH26:
-			return Opcode.PUSH26;
 		case PUSH27:
-			return Opcode.PUSH27;
 		case PUSH28:
-			return Opcode.PUSH28;
 		case PUSH29:
-			return Opcode.PUSH29;
 		case PUSH30:
-			return Opcode.PUSH30;
 		case PUSH31:
-			return Opcode.PUSH31;
 		case PUSH32:
-			return Opcode.PUSH32;
-		// 80s: Duplication Operations
+			return executePUSH(opcode - PUSH1 + 1, pc, state, stack);
 		case DUP1:
-			return Opcode.DUP1;
 		case DUP2:
-			return Opcode.DUP2;
 		case DUP3:
-			return Opcode.DUP3;
 		case DUP4:
-			return Opcode.DUP4;
 		case DUP5:
-			return Opcode.DUP5;
 		case DUP6:
-			return Opcode.DUP6;
 		case DUP7:
-			return Opcode.DUP7;
 		case DUP8:
-			return Opcode.DUP8;
 		case DUP9:
-			return Opcode.DUP9;
 		case DUP10:
-			return Opcode.DUP10;
 		case DUP11:
-			return Opcode.DUP11;
 		case DUP12:
-			return Opcode.DUP12;
 		case DUP13:
-			return Opcode.DUP13;
 		case DUP14:
-			return Opcode.DUP14;
 		case DUP15:
-			return Opcode.DUP15;
 		case DUP16:
-			return Opcode.DUP16;
-		// 90s: Exchange Operations
+			stack.dup(opcode - DUP1 + 1);
+			state.jump(pc + 1);
+			return true;
 		case SWAP1:
-			return Opcode.SWAP1;
 		case SWAP2:
-			return Opcode.SWAP2;
 		case SWAP3:
-			return Opcode.SWAP3;
 		case SWAP4:
-			return Opcode.SWAP4;
 		case SWAP5:
-			return Opcode.SWAP5;
 		case SWAP6:
-			return Opcode.SWAP6;
 		case SWAP7:
-			return Opcode.SWAP7;
 		case SWAP8:
-			return Opcode.SWAP8;
 		case SWAP9:
-			return Opcode.SWAP9;
 		case SWAP10:
-			return Opcode.SWAP10;
 		case SWAP11:
-			return Opcode.SWAP11;
 		case SWAP12:
-			return Opcode.SWAP12;
 		case SWAP13:
-			return Opcode.SWAP13;
 		case SWAP14:
-			return Opcode.SWAP14;
 		case SWAP15:
-			return Opcode.SWAP15;
 		case SWAP16:
-			return Opcode.SWAP16;
-		// a0s: Logging Operations
-		case LOG0:
-			return Opcode.LOG0;
-		case LOG1:
-			return Opcode.LOG1;
-		case LOG2:
-			return Opcode.LOG2;
-		case LOG3:
-			return Opcode.LOG3;
-		case LOG4:
-			return Opcode.LOG4;
-		// f0s: System operations
-		case CREATE:
-			return Opcode.CREATE;
-		case CALL:
-			return Opcode.CALL;
-		case CALLCODE:
-			return Opcode.CALLCODE;
-		case RETURN:
-			return Opcode.RETURN;
-		case DELEGATECALL:
-			return Opcode.DELEGATECALL;
-		case STATICCALL:
-			return Opcode.STATICCALL;
-		case REVERT:
-			return Opcode.REVERT;
-		case INVALID:
-			return Opcode.INVALID;
-		case SELFDESTRUCT:
-			return Opcode.SELFDESTRUCT;
+			stack.swap(opcode - SWAP1 + 1);
+			state.jump(pc + 1);
+			return true;
 		default:
-			return Opcode.UNKNOWN;
+			return execute(opcode, pc, state);
+		}
+		// Binary operations consume one more operand than they produce
+		stack.drop(1);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	/**
+	 * Executes a single instruction whose opcode has already been determined, by
+	 * operating directly on the slots of a word stack.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Handler {
+		/**
+		 * Execute the instruction at a given position.
+		 *
+		 * @param pc
+		 * @param state
+		 * @param stack
+		 * @return
+		 */
+		public boolean execute(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack);
+	}
+
+	/**
+	 * Executes a single instruction whose opcode has already been determined, by
+	 * operating directly on the limbs of a primitive stack. The stack bounds of
+	 * the instruction must already have been checked.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface LimbHandler {
+		/**
+		 * Execute the instruction at a given position.
+		 *
+		 * @param pc
+		 * @param state
+		 * @param stack
+		 * @return
+		 */
+		public boolean execute(int pc, VirtualMachine.State state, LimbStack stack);
+	}
+
+	/**
+	 * Handler for instructions which are recognised, but not yet implemented.
+	 */
+	private static final Handler UNIMPLEMENTED = (pc, state, stack) -> {
+		throw new IllegalArgumentException("implement me");
+	};
+
+	/**
+	 * Handler for bytes which do not correspond to any instruction.
+	 */
+	private static final Handler UNKNOWN = (pc, state, stack) -> {
+		throw new IllegalArgumentException("unknown bytecode encountered");
+	};
+
+	/**
+	 * Handler table used by <code>dispatch()</code>, indexed by opcode.
+	 */
+	private static final Handler[] HANDLERS = handlers();
+
+	/**
+	 * Handler table used by <code>dispatch()</code> for primitive stacks,
+	 * indexed by opcode.
+	 */
+	private static final LimbHandler[] LIMB_HANDLERS = limbHandlers();
+
+	/**
+	 * Execute the instruction at the current program counter by looking up its
+	 * handler in a table indexed by opcode, rather than using a
+	 * <code>switch</code>. This has the same semantics as
+	 * <code>execute()</code>, but keeps the code executed for each instruction
+	 * small enough to be compiled independently. States whose stack does not
+	 * support in-place operations are executed as normal. Handlers charge only
+	 * the dynamic costs of an instruction, hence the static cost is charged
+	 * here (according to the instruction set of the given state), and the stack
+	 * bounds are also checked here.
+	 *
+	 * @param state
+	 * @return
+	 */
+	public static boolean dispatch(VirtualMachine.State state) {
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		InstructionSet instructions = state.getInstructionSet();
+		int pc = state.pc();
+		int opcode = state.getCodeMemory().read(pc) & 0xff;
+		if (!charge(state, instructions.gas(opcode))) {
+			return false;
+		} else if (!fits(stack, instructions.arguments(opcode), instructions.returns(opcode))) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else if (stack instanceof LimbStack) {
+			return instructions.getLimbHandler(opcode).execute(pc, state, (LimbStack) stack);
+		} else if (stack instanceof VirtualMachine.WordStack) {
+			return instructions.getHandler(opcode).execute(pc, state, (VirtualMachine.WordStack) stack);
+		} else if (!instructions.isValid(opcode)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else {
+			return execute(opcode, pc, state);
+		}
+	}
+
+	/**
+	 * Get the handler used by <code>dispatch()</code> for a given opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static Handler getHandler(int opcode) {
+		return HANDLERS[opcode];
+	}
+
+	/**
+	 * Get the handler used by <code>dispatch()</code> for a given opcode, when
+	 * the stack is primitive.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static LimbHandler getLimbHandler(int opcode) {
+		return LIMB_HANDLERS[opcode];
+	}
+
+	/**
+	 * Construct the handler table for primitive stacks. Opcodes which have no
+	 * primitive handler fall back on their boxed implementation.
+	 *
+	 * @return
+	 */
+	private static LimbHandler[] limbHandlers() {
+		LimbHandler[] table = new LimbHandler[256];
+		for (int i = 0; i != table.length; ++i) {
+			final int opcode = i;
+			if (decode((byte) opcode) == Opcode.UNKNOWN) {
+				table[opcode] = (pc, state, stack) -> {
+					throw new IllegalArgumentException("unknown bytecode encountered");
+				};
+			} else if (Program.isFoldable(opcode)) {
+				table[opcode] = (pc, state, stack) -> evaluate(opcode, pc, state, stack);
+			} else {
+				table[opcode] = (pc, state, stack) -> execute(opcode, pc, state);
+			}
 		}
+		table[EXP] = Bytecode::executeEXP;
+		table[SHA3] = Bytecode::executeSHA3;
+		table[MLOAD] = Bytecode::executeMLOAD;
+		table[MSTORE] = Bytecode::executeMSTORE;
+		table[SLOAD] = Bytecode::executeSLOAD;
+		table[SSTORE] = Bytecode::executeSSTORE;
+		table[JUMP] = Bytecode::executeJUMP;
+		table[JUMPI] = Bytecode::executeJUMPI;
+		table[POP] = (pc, state, stack) -> {
+			stack.drop(1);
+			state.jump(pc + 1);
+			return true;
+		};
+		table[GAS] = (pc, state, stack) -> {
+			stack.push(0, 0, 0, state.gas());
+			state.jump(pc + 1);
+			return true;
+		};
+		for (int i = PUSH1; i <= PUSH32; ++i) {
+			final int count = i - PUSH1 + 1;
+			table[i] = (pc, state, stack) -> executePUSH(count, pc, state, stack);
+		}
+		for (int i = DUP1; i <= DUP16; ++i) {
+			final int n = i - DUP1 + 1;
+			table[i] = (pc, state, stack) -> {
+				stack.dup(n);
+				state.jump(pc + 1);
+				return true;
+			};
+		}
+		for (int i = SWAP1; i <= SWAP16; ++i) {
+			final int n = i - SWAP1 + 1;
+			table[i] = (pc, state, stack) -> {
+				stack.swap(n);
+				state.jump(pc + 1);
+				return true;
+			};
+		}
+		return table;
+	}
+
+	/**
+	 * Construct the handler table. Opcodes which have no in-place handler fall
+	 * back on their boxed implementation.
+	 *
+	 * @return
+	 */
+	private static Handler[] handlers() {
+		Handler[] table = new Handler[256];
+		for (int i = 0; i != table.length; ++i) {
+			final int opcode = i;
+			if (decode((byte) opcode) == Opcode.UNKNOWN) {
+				table[opcode] = UNKNOWN;
+			} else {
+				table[opcode] = (pc, state, stack) -> execute(opcode, pc, state);
+			}
+		}
+		int[] unimplemented = { ADDRESS, BALANCE, ORIGIN, CALLER, CALLVALUE, CALLDATALOAD, CALLDATASIZE,
+				CALLDATACOPY, CODESIZE, CODECOPY, GASPRICE, EXTCODESIZE, EXTCODECOPY, RETURNDATASIZE, RETURNDATACOPY,
+				BLOCKHASH, COINBASE, TIMESTAMP, NUMBER, DIFFICULTY, GASLIMIT, MSTORE8, PC, MSIZE, LOG0, LOG1, LOG2,
+				LOG3, LOG4, CREATE, CALL, CALLCODE, RETURN, DELEGATECALL, CREATE2, STATICCALL, REVERT,
+				SELFDESTRUCT };
+		for (int opcode : unimplemented) {
+			table[opcode] = UNIMPLEMENTED;
+		}
+		table[STOP] = (pc, state, stack) -> executeSTOP(pc, state);
+		table[ADD] = (pc, state, stack) -> {
+			stack.peek(0).addInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[MUL] = (pc, state, stack) -> {
+			stack.peek(0).mulInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SUB] = (pc, state, stack) -> {
+			stack.peek(0).subInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[DIV] = (pc, state, stack) -> {
+			stack.peek(0).divInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SDIV] = (pc, state, stack) -> {
+			stack.peek(0).sdivInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[MOD] = (pc, state, stack) -> {
+			stack.peek(0).modInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SMOD] = (pc, state, stack) -> {
+			stack.peek(0).smodInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[ADDMOD] = (pc, state, stack) -> {
+			stack.peek(0).addModInto(stack.peek(1), stack.peek(2));
+			return next(2, pc, state, stack);
+		};
+		table[MULMOD] = (pc, state, stack) -> {
+			stack.peek(0).mulModInto(stack.peek(1), stack.peek(2));
+			return next(2, pc, state, stack);
+		};
+		table[EXP] = (pc, state, stack) -> {
+			if (!charge(state, state.getInstructionSet().gasExpByte() * stack.peek(1).byteLength())) {
+				return false;
+			}
+			stack.peek(0).expInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SIGNEXTEND] = Bytecode::executeSIGNEXTEND;
+		table[LT] = (pc, state, stack) -> {
+			stack.peek(0).ltInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[GT] = (pc, state, stack) -> {
+			stack.peek(0).gtInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SLT] = (pc, state, stack) -> {
+			stack.peek(0).sltInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SGT] = (pc, state, stack) -> {
+			stack.peek(0).sgtInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[EQ] = (pc, state, stack) -> {
+			stack.peek(0).eqInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[ISZERO] = (pc, state, stack) -> {
+			m256 w = stack.peek(0);
+			w.set(w.isZero() ? 1 : 0);
+			return next(0, pc, state, stack);
+		};
+		table[AND] = (pc, state, stack) -> {
+			stack.peek(0).andInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[OR] = (pc, state, stack) -> {
+			stack.peek(0).orInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[XOR] = (pc, state, stack) -> {
+			stack.peek(0).xorInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[NOT] = (pc, state, stack) -> {
+			stack.peek(0).not();
+			return next(0, pc, state, stack);
+		};
+		table[BYTE] = Bytecode::executeBYTE;
+		table[SHL] = (pc, state, stack) -> {
+			stack.peek(0).shlInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SHR] = (pc, state, stack) -> {
+			stack.peek(0).shrInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SAR] = (pc, state, stack) -> {
+			stack.peek(0).sarInto(stack.peek(1));
+			return next(1, pc, state, stack);
+		};
+		table[SHA3] = Bytecode::executeSHA3;
+		table[POP] = (pc, state, stack) -> next(1, pc, state, stack);
+		table[JUMP] = Bytecode::executeJUMP;
+		table[JUMPI] = Bytecode::executeJUMPI;
+		table[GAS] = (pc, state, stack) -> {
+			stack.push().set(state.gas());
+			return next(0, pc, state, stack);
+		};
+		table[JUMPDEST] = (pc, state, stack) -> next(0, pc, state, stack);
+		for (int i = PUSH1; i <= PUSH32; ++i) {
+			final int count = i - PUSH1 + 1;
+			table[i] = (pc, state, stack) -> executePUSH(count, pc, state, stack);
+		}
+		for (int i = DUP1; i <= DUP16; ++i) {
+			final int n = i - DUP1 + 1;
+			table[i] = (pc, state, stack) -> {
+				stack.dup(n);
+				return next(0, pc, state, stack);
+			};
+		}
+		for (int i = SWAP1; i <= SWAP16; ++i) {
+			final int n = i - SWAP1 + 1;
+			table[i] = (pc, state, stack) -> {
+				stack.swap(n);
+				return next(0, pc, state, stack);
+			};
+		}
+		table[INVALID] = (pc, state, stack) -> executeINVALID(pc, state);
+		return table;
 	}
 
 	/**
-	 * Execute
+	 * Complete an instruction by dropping a given number of slots from the stack
+	 * and advancing to the next instruction.
 	 *
+	 * @param n
+	 * @param pc
 	 * @param state
+	 * @param stack
+	 * @return
 	 */
-	public static boolean execute(VirtualMachine.State state) {
-		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
-		int pc = state.pc();
-		int opcode = code.read(pc) & 0xff;
+	private static boolean next(int n, int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		stack.drop(n);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	/**
+	 * Execute a given instruction by popping operands from the stack and pushing
+	 * the results back onto it.
+	 *
+	 * @param opcode
+	 * @param pc
+	 * @param state
+	 */
+	private static boolean execute(int opcode, int pc, VirtualMachine.State state) {
 		switch (opcode) {
 		case STOP:
 			return executeSTOP(pc, state);
@@ -886,9 +1594,15 @@ public class Bytecode {
 			return executeNOT(pc, state);
 		case BYTE:
 			return executeBYTE(pc, state);
+		case SHL:
+			return executeSHL(pc, state);
+		case SHR:
+			return executeSHR(pc, state);
+		case SAR:
+			return executeSAR(pc, state);
 		// 20s: SHA3
 		case SHA3:
-			throw new IllegalArgumentException("implement me");
+			return executeSHA3(pc, state);
 		// 30s: Environment Information
 		case ADDRESS:
 			throw new IllegalArgumentException("implement me");
@@ -1048,6 +1762,8 @@ public class Bytecode {
 		// f0s: System operations
 		case CREATE:
 			throw new IllegalArgumentException("implement me");
+		case CREATE2:
+			throw new IllegalArgumentException("implement me");
 		case CALL:
 			throw new IllegalArgumentException("implement me");
 		case CALLCODE:
@@ -1071,7 +1787,8 @@ public class Bytecode {
 
 	private static boolean executeGAS(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
-		stack.push(new w256(state.gas()));
+		stack.push(w256.valueOf(state.gas()));
+		state.jump(pc + 1);
 		return true;
 	}
 
@@ -1116,58 +1833,106 @@ public class Bytecode {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		stack.push(lhs.divide(rhs));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeSDIV(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		stack.push(lhs.signedDivide(rhs));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeMOD(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		stack.push(lhs.remainder(rhs));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeSMOD(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		stack.push(lhs.signedRemainder(rhs));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeADDMOD(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		w256 modulus = stack.pop();
+		stack.push(lhs.addMod(rhs, modulus));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeMULMOD(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
 		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		w256 modulus = stack.pop();
+		stack.push(lhs.mulMod(rhs, modulus));
+		state.jump(pc + 1);
+		return true;
 	}
 
 	private static boolean executeEXP(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
-		w256 lhs = stack.pop();
-		w256 rhs = stack.pop();
-		throw new UnsupportedOperationException();
+		// Charge for exponent before removing operands
+		w256 exponent = stack.read(stack.used() - 2);
+		if (!charge(state, state.getInstructionSet().gasExpByte() * exponent.byteLength())) {
+			return false;
+		}
+		w256 base = stack.pop();
+		stack.pop();
+		stack.push(base.pow(exponent));
+		state.jump(pc + 1);
+		return true;
+	}
+
+	/**
+	 * Determine the gas required for an EXP instruction with a given exponent. This
+	 * is a fixed cost plus a cost per byte of the exponent (ignoring leading zero
+	 * bytes).
+	 *
+	 * @param exponent
+	 * @return
+	 */
+	public static int gasEXP(w256 exponent) {
+		return gasEXP(exponent, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Determine the gas required for an EXP instruction with a given exponent in
+	 * a given instruction set, where the cost per byte of the exponent differs
+	 * between forks.
+	 *
+	 * @param exponent
+	 * @param instructions
+	 * @return
+	 */
+	public static int gasEXP(w256 exponent, InstructionSet instructions) {
+		return instructions.gas(EXP) + (instructions.gasExpByte() * exponent.byteLength());
 	}
 
 	private static boolean executeSIGNEXTEND(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
-		w256 w1 = stack.pop();
 		w256 w0 = stack.pop();
+		w256 w1 = stack.pop();
 		int offset = w0.toInt();
-		// NOTE: negative offset has no effect
-		w1 = (offset < 31) ? w1.signExtend(offset + 1) : w1;
+		// NOTE: offsets outside the word have no effect
+		if (w0.isInt() && offset >= 0 && offset < 31) {
+			w1 = w1.signExtend(offset + 1);
+		}
 		stack.push(w1);
 		state.jump(pc + 1);
 		return true;
@@ -1262,8 +2027,7 @@ public class Bytecode {
 	private static boolean executeNOT(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		w256 lhs = stack.pop();
-		boolean b = lhs.equals(w256.ZERO);
-		stack.push(b ? w256.ONE : w256.ZERO);
+		stack.push(lhs.not());
 		state.jump(pc + 1);
 		return true;
 	}
@@ -1277,12 +2041,271 @@ public class Bytecode {
 			stack.push(w256.ZERO);
 		} else {
 			byte[] bytes = w1.toByteArray();
-			stack.push(new w256(bytes[offset]));
+			stack.push(w256.valueOf(bytes[offset] & 0xFF));
 		}
 		state.jump(pc+1);
 		return true;
 	}
 
+	private static boolean executeSHL(int pc, VirtualMachine.State state) {
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		w256 w0 = stack.pop();
+		w256 w1 = stack.pop();
+		stack.push(w1.shiftLeft(shift(w0)));
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSHR(int pc, VirtualMachine.State state) {
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		w256 w0 = stack.pop();
+		w256 w1 = stack.pop();
+		stack.push(w1.shiftRight(shift(w0)));
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSAR(int pc, VirtualMachine.State state) {
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		w256 w0 = stack.pop();
+		w256 w1 = stack.pop();
+		if (w1.signedLessThan(w256.ZERO)) {
+			// Shift in ones from the left
+			stack.push(w1.not().shiftRight(shift(w0)).not());
+		} else {
+			stack.push(w1.shiftRight(shift(w0)));
+		}
+		state.jump(pc + 1);
+		return true;
+	}
+
+	/**
+	 * Determine the number of bits to shift by for a given shift operand, where
+	 * shifts of 256 or more bits are all equivalent.
+	 *
+	 * @param w
+	 * @return
+	 */
+	private static int shift(w256 w) {
+		int n = w.toInt();
+		return w.isInt() && n >= 0 && n < 256 ? n : 256;
+	}
+
+	private static boolean executeSHA3(int pc, VirtualMachine.State state) {
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		w256 offset = stack.read(stack.used() - 1);
+		w256 length = stack.read(stack.used() - 2);
+		if (!charge(state, gasSHA3(state.getLocalMemory(), offset.toInt(), length.toInt(),
+				offset.isInt() && length.isInt()))) {
+			return false;
+		}
+		stack.pop();
+		stack.pop();
+		w256 hash = sha3(state.getLocalMemory(), offset.toInt(), length.toInt(), offset.isInt() && length.isInt());
+		if (hash == null) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else {
+			stack.push(hash);
+			state.jump(pc + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * Determine the gas required for a SHA3 instruction over a given number of
+	 * bytes. This is a fixed cost plus a cost per (partial) word hashed.
+	 *
+	 * @param length
+	 * @return
+	 */
+	public static int gasSHA3(int length) {
+		return G_sha3 + (G_sha3word * ((length + 31) >>> 5));
+	}
+
+	/**
+	 * Determine the dynamic gas required for a SHA3 instruction over a given
+	 * region of local memory. This is the cost per word hashed, plus that of
+	 * expanding memory to include the words read (see <code>sha3()</code>).
+	 *
+	 * @param local
+	 * @param offset
+	 * @param length
+	 * @param valid
+	 *            Indicates whether offset and length are representable as ints.
+	 * @return
+	 */
+	static long gasSHA3(VirtualMachine.Memory<w256> local, int offset, int length, boolean valid) {
+		if (!valid || offset < 0 || length < 0) {
+			return Long.MAX_VALUE;
+		} else if (length == 0) {
+			return 0;
+		}
+		long expansion = gasMemory(local, offset + (32L * ((length - 1) >>> 5)));
+		return expansion == Long.MAX_VALUE ? expansion : expansion + gasSHA3(length) - G_sha3;
+	}
+
+	/**
+	 * Determine the cost of a given number of words of active memory, as given
+	 * by C_mem in "Appendix H" of the yellow paper. This is linear for small
+	 * amounts of memory, but becomes quadratic as memory grows.
+	 *
+	 * @param words
+	 * @return
+	 */
+	public static long gasMemory(long words) {
+		return (G_memory * words) + ((words * words) / G_memquaddivisor);
+	}
+
+	/**
+	 * Determine the gas required to expand local memory such that it includes
+	 * the word at a given slot. Since local memory is addressed by slot (see
+	 * <code>sha3()</code>), the word at slot <code>a</code> covers bytes
+	 * <code>a</code> to <code>a+31</code>, and the amount of active memory is
+	 * determined by the first unused slot (i.e. its high-water mark). Only the
+	 * difference between the cost of memory before and after expansion is
+	 * charged, which is zero for slots already in use. Slots which cannot be
+	 * addressed give a cost which cannot be met, such that they run out of gas
+	 * rather than attempting to allocate.
+	 *
+	 * @param local
+	 * @param slot
+	 * @return
+	 */
+	public static long gasMemory(VirtualMachine.Memory<w256> local, long slot) {
+		long used = local.used();
+		if (slot < 0 || slot > Integer.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		} else if (slot < used) {
+			return 0;
+		} else {
+			return gasMemory(words(slot + 1)) - gasMemory(words(used));
+		}
+	}
+
+	/**
+	 * Determine the gas required to expand local memory such that it includes
+	 * the word at a given address (see <code>gasMemory()</code>).
+	 *
+	 * @param local
+	 * @param address
+	 * @return
+	 */
+	public static long gasMemory(VirtualMachine.Memory<w256> local, w256 address) {
+		return gasMemory(local, address.isInt() ? address.toInt() : -1);
+	}
+
+	/**
+	 * Determine the number of words of active memory, given its first unused
+	 * slot.
+	 *
+	 * @param used
+	 * @return
+	 */
+	private static long words(long used) {
+		return used == 0 ? 0 : (used + 62) >>> 5;
+	}
+
+	/**
+	 * Determine the gas required for an SSTORE instruction, which is entirely
+	 * dynamic. Setting a slot from zero to a non-zero value costs
+	 * <code>G_sset</code>, whilst any other write costs <code>G_sreset</code>.
+	 * Slots beyond those in use hold zero.
+	 *
+	 * @param storage
+	 * @param address
+	 * @param value
+	 * @return
+	 */
+	public static int gasSSTORE(VirtualMachine.Memory<w256> storage, w256 address, w256 value) {
+		int slot = address.toInt();
+		boolean unset = !address.isInt() || slot < 0 || slot >= storage.used() || storage.read(slot).isZero();
+		return unset && !value.isZero() ? G_sset : G_sreset;
+	}
+
+	/**
+	 * Charge a given amount of gas. If insufficient gas remains, the state halts
+	 * as out-of-gas and is otherwise left unchanged.
+	 *
+	 * @param state
+	 * @param cost
+	 * @return
+	 */
+	static boolean charge(VirtualMachine.State state, long cost) {
+		if (state.gas() < cost) {
+			state.halt(Status.OUT_OF_GAS);
+			return false;
+		}
+		state.consume(cost);
+		return true;
+	}
+
+	/**
+	 * Compute the Keccak-256 hash of a region of local memory. Since local memory
+	 * is addressed by word (i.e. MSTORE and MLOAD access the word at a given slot),
+	 * the input is read a word at a time from slots <code>offset</code>,
+	 * <code>offset+32</code>, etc, with only the leading bytes of the final word
+	 * used. This matches how words are laid out by MSTORE for the usual case of
+	 * word-aligned offsets. Words are absorbed directly from memory, without
+	 * first being copied into a byte array.
+	 *
+	 * @param local
+	 * @param offset
+	 *            Offset (in bytes) of first byte to hash.
+	 * @param length
+	 *            Number of bytes to hash.
+	 * @param valid
+	 *            Indicates whether the offset and length were valid integers.
+	 * @return The hash, or <code>null</code> if the region was invalid.
+	 */
+	static w256 sha3(VirtualMachine.Memory<w256> local, int offset, int length, boolean valid) {
+		if (!valid || offset < 0 || length < 0) {
+			return null;
+		}
+		Keccak256 keccak = KECCAK.get();
+		if (length > 0) {
+			long last = offset + (32L * ((length - 1) >>> 5));
+			if (last > Integer.MAX_VALUE || !local.expand(w256.valueOf(last))) {
+				return null;
+			}
+			if (length == 64) {
+				// Typical mapping key derivation, so consult cache
+				return SHA3_CACHE.hash(local.read(offset), local.read(offset + 32), keccak);
+			}
+			for (int i = 0; i < length; i += 32) {
+				keccak.update(local.read(offset + i), Math.min(32, length - i));
+			}
+		}
+		return keccak.digest();
+	}
+
+	/**
+	 * Memo cache for the SHA3 instruction over 64-byte inputs, which is shared by
+	 * all threads.
+	 */
+	private static final Keccak256.Cache SHA3_CACHE = new Keccak256.Cache(4096);
+
+	/**
+	 * Get the memo cache used for the SHA3 instruction over 64-byte inputs, such
+	 * as for monitoring its hit and miss counts.
+	 *
+	 * @return
+	 */
+	public static Keccak256.Cache getHashCache() {
+		return SHA3_CACHE;
+	}
+
+	/**
+	 * Per-thread hash engine for the SHA3 instruction, whose state is reset after
+	 * each use.
+	 */
+	private static final ThreadLocal<Keccak256> KECCAK = new ThreadLocal<Keccak256>() {
+		@Override
+		protected Keccak256 initialValue() {
+			return new Keccak256();
+		}
+	};
+
 	private static boolean executePOP(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		stack.pop();
@@ -1293,6 +2316,9 @@ public class Bytecode {
 	private static boolean executeMLOAD(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		VirtualMachine.Memory<w256> local = state.getLocalMemory();
+		if (!charge(state, gasMemory(local, stack.read(stack.used() - 1)))) {
+			return false;
+		}
 		w256 address = stack.pop();
 		// Ensure enough memory
 		if(!local.expand(address)) {
@@ -1308,6 +2334,9 @@ public class Bytecode {
 	private static boolean executeMSTORE(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		VirtualMachine.Memory<w256> local = state.getLocalMemory();
+		if (!charge(state, gasMemory(local, stack.read(stack.used() - 1)))) {
+			return false;
+		}
 		w256 address = stack.pop();
 		w256 w = stack.pop();
 		// Ensure enough memory
@@ -1340,6 +2369,10 @@ public class Bytecode {
 	private static boolean executeSSTORE(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		VirtualMachine.Memory<w256> storage = state.getStorageMemory();
+		int n = stack.used();
+		if (!charge(state, gasSSTORE(storage, stack.read(n - 1), stack.read(n - 2)))) {
+			return false;
+		}
 		w256 address = stack.pop();
 		w256 w = stack.pop();
 		// Ensure enough memory
@@ -1356,7 +2389,6 @@ public class Bytecode {
 
 	private static boolean executeJUMPI(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
-		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
 		int target = pc + 1;
 		w256 address = stack.pop();
 		w256 w = stack.pop();
@@ -1365,7 +2397,7 @@ public class Bytecode {
 			// Jump to the target address
 			target = address.toInt();
 			// Sanity check jump target
-			if (!address.isInt() || target < 0 || target >= code.used() || code.read(target) != JUMPDEST) {
+			if (!address.isInt() || !state.getJumpDestinations().isValid(target)) {
 				state.halt(Status.EXCEPTION);
 				return false;
 			}
@@ -1377,11 +2409,10 @@ public class Bytecode {
 
 	private static boolean executeJUMP(int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
-		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
 		w256 address = stack.pop();
 		int target = address.toInt();
 		// Sanity check jump target
-		if (!address.isInt() || target < 0 || target >= code.used() || code.read(target) != JUMPDEST) {
+		if (!address.isInt() || !state.getJumpDestinations().isValid(target)) {
 			state.halt(Status.EXCEPTION);
 			return false;
 		} else {
@@ -1398,15 +2429,17 @@ public class Bytecode {
 	private static boolean executePUSH(int count, int pc, VirtualMachine.State state) {
 		VirtualMachine.Stack<w256> stack = state.getStackMemory();
 		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
-		// extract operand
-		byte[] bytes = new byte[count];
-		pc = pc + 1;
-		for (int i = 0; i != count; ++i) {
-			bytes[i] = code.read(pc + i);
-		}
-		// push onto stack
-		stack.push(new w256(bytes));
-		state.jump(pc + count);
+		// Accumulate operand into limbs, where l0 is the most significant
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		for (int i = 1; i <= count; ++i) {
+			l0 = (l0 << 8) | (l1 >>> 56);
+			l1 = (l1 << 8) | (l2 >>> 56);
+			l2 = (l2 << 8) | (l3 >>> 56);
+			l3 = (l3 << 8) | (code.read(pc + i) & 0xFF);
+		}
+		// push onto stack (using canonical instance where possible)
+		stack.push(w256.valueOf(l0, l1, l2, l3));
+		state.jump(pc + count + 1);
 		return true;
 	}
 
@@ -1429,6 +2462,101 @@ public class Bytecode {
 		return true;
 	}
 
+	// ========================================================================
+	// In-place Handlers
+	// ========================================================================
+
+	private static boolean executeSIGNEXTEND(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		m256 w0 = stack.peek(0);
+		m256 w1 = stack.peek(1);
+		int offset = w0.toInt();
+		// NOTE: offsets outside the word have no effect
+		if (w0.isInt() && offset >= 0 && offset < 31) {
+			w1.signExtend(offset + 1);
+		}
+		stack.drop(1);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeBYTE(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		m256 w0 = stack.peek(0);
+		m256 w1 = stack.peek(1);
+		int offset = w0.toInt();
+		if (!w0.isInt() || offset < 0 || offset >= 32) {
+			w1.set(0);
+		} else {
+			w1.set(w1.getByte(offset));
+		}
+		stack.drop(1);
+		state.jump(pc + 1);
+		return true;
+	}
+
+	private static boolean executeSHA3(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		m256 offset = stack.peek(0);
+		m256 length = stack.peek(1);
+		if (!charge(state, gasSHA3(state.getLocalMemory(), offset.toInt(), length.toInt(),
+				offset.isInt() && length.isInt()))) {
+			return false;
+		}
+		w256 hash = sha3(state.getLocalMemory(), offset.toInt(), length.toInt(), offset.isInt() && length.isInt());
+		stack.drop(1);
+		if (hash == null) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else {
+			length.set(hash);
+			state.jump(pc + 1);
+			return true;
+		}
+	}
+
+	private static boolean executeJUMPI(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		m256 address = stack.peek(0);
+		boolean taken = !stack.peek(1).isZero();
+		int target = address.toInt();
+		stack.drop(2);
+		if (!taken) {
+			state.jump(pc + 1);
+			return true;
+		} else if (!address.isInt() || !state.getJumpDestinations().isValid(target)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else {
+			state.jump(target);
+			return true;
+		}
+	}
+
+	private static boolean executeJUMP(int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		m256 address = stack.peek(0);
+		int target = address.toInt();
+		stack.drop(1);
+		// Sanity check jump target
+		if (!address.isInt() || !state.getJumpDestinations().isValid(target)) {
+			state.halt(Status.EXCEPTION);
+			return false;
+		} else {
+			state.jump(target);
+			return true;
+		}
+	}
+
+	private static boolean executePUSH(int count, int pc, VirtualMachine.State state, VirtualMachine.WordStack stack) {
+		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
+		// Accumulate operand into limbs, where l0 is the most significant
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		for (int i = 1; i <= count; ++i) {
+			l0 = (l0 << 8) | (l1 >>> 56);
+			l1 = (l1 << 8) | (l2 >>> 56);
+			l2 = (l2 << 8) | (l3 >>> 56);
+			l3 = (l3 << 8) | (code.read(pc + i) & 0xFF);
+		}
+		stack.push().set(l0, l1, l2, l3);
+		state.jump(pc + count + 1);
+		return true;
+	}
 
 	public static void printState(VirtualMachine.State state) {
 		VirtualMachine.Memory<Byte> code = state.getCodeMemory();
@@ -1459,7 +2587,47 @@ public class Bytecode {
 		}
 	}
 
+	/**
+	 * Measure the number of bytes allocated per instruction when executing a
+	 * simple arithmetic loop (which includes MUL, DIV and EXP). Since the stack is
+	 * operated upon in place, this should be zero once warmed up, and any
+	 * allocation thereafter is reported as an error.
+	 */
+	public static void testAllocation() {
+		System.out.println("*** TESTING ALLOCATION");
+		byte[] bytes = new byte[] {
+				PUSH1, 0x00,
+				JUMPDEST,
+				PUSH1, 0x01, ADD, // i = i + 1
+				(byte) DUP1, (byte) DUP1, MUL, (byte) DUP2, (byte) SWAP1, DIV, POP, // i / (i * i)
+				(byte) DUP1, PUSH1, 0x03, EXP, POP, // 3^i
+				(byte) DUP1, PUSH2, 0x10, 0x00, GT, PUSH1, 0x02, JUMPI, // loop while i < 0x1000
+				STOP };
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		// Iterations before which allocation is not checked, to allow for warm up
+		int warmup = 5;
+		for (int i = 0; i != 10; ++i) {
+			ArrayState state = new ArrayState(bytes);
+			// Analyse the code up front, since this is only done once
+			state.getJumpDestinations();
+			long count = 0;
+			long before = bean.getThreadAllocatedBytes(tid);
+			while (state.status() == VirtualMachine.State.Status.OK && state.pc() < state.getCodeMemory().used()) {
+				Bytecode.execute(state);
+				count++;
+			}
+			long after = bean.getThreadAllocatedBytes(tid);
+			double perInstruction = (double) (after - before) / count;
+			System.out.println(count + " instructions, " + perInstruction + " bytes/instruction");
+			if (i >= warmup && after != before) {
+				System.out.println("*** ERROR: " + (after - before) + " bytes allocated");
+			}
+		}
+	}
+
 	public static void main(String[] args) {
+		testAllocation();
 		//byte[] bytes = Hex.fromBigEndianString("6080604052607b600055348015601457600080fd5b5060358060226000396000f3006080604052600080fd00a165627a7a72305820eb2a49ca9445598c397756374a0f997239da31baed31403e05d0fbe5666571930029");
 		//ArrayState state = new ArrayState(bytes);
 		ArrayState state = new ArrayState(new byte[] { PUSH1,0x05,PUSH1,0x00,SUB, PUSH1, 4, SLT });
@@ -0,0 +1,1239 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jevm.core.VirtualMachine.State;
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+import jevm.util.Word.m256;
+import jevm.util.Word.w256;
+
+/**
+ * Compiles contract code into JVM bytecode, such that it can be optimised
+ * directly by the JVM. Each contract is compiled from its pre-decoded form (see
+ * <code>Program</code>) into a single method of a generated class. Every basic
+ * block becomes a region of straight-line code in that method, which begins by
+ * checking the block's gas and stack bounds (as for
+ * <code>VirtualMachine.run()</code>). Jumps with constant targets become direct
+ * branches, whilst other jumps go through a <code>lookupswitch</code> on the
+ * target position.
+ * <p>
+ * Stack slots remain in an array of limbs (as for
+ * <code>VirtualMachine.run()</code>), but are addressed at offsets fixed at
+ * compile time relative to the stack height on entry to the block. Hence, the
+ * stack pointer is only updated at the end of each block, and instructions such
+ * as <code>POP</code> and <code>JUMPDEST</code> generate no code at all. The
+ * work of each instruction is performed by a small static method of this
+ * class, which the JVM can inline. Instructions which are not compiled fall
+ * back on <code>Bytecode.execute()</code>.
+ * </p>
+ * <p>
+ * Generated classes use class file version 49 (i.e. Java 5), which does not
+ * require stack map frames. Each is defined by its own class loader, such that
+ * it can be unloaded once no longer used. Code whose compiled method would be
+ * too large for short branch offsets is not compiled.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Compiler {
+	/**
+	 * The interface implemented by every generated class.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Code {
+		/**
+		 * Execute from the position given in the context until the code halts,
+		 * runs off the end or would exceed the instruction limit. Returns
+		 * immediately if that position is not the start of a block.
+		 *
+		 * @param context
+		 */
+		public void execute(Context context);
+	}
+
+	/**
+	 * The result of compiling some code.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Compiled {
+		private final Program program;
+		private final Code code;
+		private final int size;
+
+		private Compiled(Program program, Code code, int size) {
+			this.program = program;
+			this.code = code;
+			this.size = size;
+		}
+
+		/**
+		 * Get the program from which this was compiled.
+		 *
+		 * @return
+		 */
+		public Program getProgram() {
+			return program;
+		}
+
+		/**
+		 * Get the size of the generated method (in bytes).
+		 *
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * The state of an execution of compiled code. Since this is accessed from
+	 * generated classes, which are defined by other class loaders, its fields
+	 * must be public. This should not be used directly.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Context {
+		/**
+		 * Limbs of the stack being executed, which are either those of the state's
+		 * own stack or the registers below.
+		 */
+		public long[] stack;
+		final long[] registers = new long[VirtualMachine.STACK_LIMIT * 4];
+		final m256 a = new m256();
+		final m256 b = new m256();
+		final m256 c = new m256();
+		State state;
+		Program program;
+		VirtualMachine.Memory<w256> local;
+		VirtualMachine.Memory<w256> storage;
+		/**
+		 * Position to execute from and, on exit, the position reached.
+		 */
+		public int pc;
+		/**
+		 * Stack pointer (in words) on entry and on exit.
+		 */
+		public int sp;
+		long gas;
+		long count;
+		long limit;
+		Status status;
+		/**
+		 * Indicates the state was written back by a fallback instruction.
+		 */
+		boolean synced;
+	}
+
+	/**
+	 * Contexts are allocated once per thread and reused.
+	 */
+	private static final ThreadLocal<Context> CONTEXTS = ThreadLocal.withInitial(Context::new);
+
+	/**
+	 * Used to generate unique class names.
+	 */
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	private static final Status[] STATUSES = Status.values();
+
+	private static final String CONTEXT = "Ljevm/core/Compiler$Context;";
+
+	/**
+	 * Compile a given program into JVM bytecode, returning <code>null</code> if
+	 * this is not possible (e.g. because the code is too large).
+	 *
+	 * @param program
+	 * @return
+	 */
+	public static Compiled compile(Program program) {
+		String name = "jevm/compiled/Contract" + COUNTER.incrementAndGet();
+		Assembler asm = new Assembler(name);
+		if (!generate(program, asm)) {
+			return null;
+		}
+		byte[] bytes = asm.toClassFile();
+		try {
+			Class<?> c = new Loader(Compiler.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+			Code code = (Code) c.getDeclaredConstructor().newInstance();
+			return new Compiled(program, code, asm.length);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Execute a given state using compiled code for at most a given number of
+	 * instructions, returning the number actually executed. The compiled code
+	 * must have been compiled from the state's code, for the state's instruction
+	 * set. Execution only enters
+	 * compiled code at the start of a block, and instructions part way through a
+	 * block (e.g. when resuming) are interpreted. Likewise, a block which would
+	 * exceed the instruction limit is interpreted. The instruction count for a
+	 * block which halts part way through includes the remainder of that block.
+	 *
+	 * @param state
+	 * @param compiled
+	 * @param limit
+	 * @return
+	 */
+	public static long execute(State state, Compiled compiled, long limit) {
+		Program program = compiled.program;
+		if (program.instructions != state.getInstructionSet()) {
+			throw new IllegalArgumentException("compiled for " + program.instructions);
+		}
+		Context context = CONTEXTS.get();
+		long count = 0;
+		while (count < limit && state.status() == Status.OK && state.pc() < program.length()) {
+			int index = program.indexOf(state.pc());
+			if (index < 0) {
+				// Not at an instruction, as for run()
+				break;
+			} else if (program.handlers[index] != Program.BLOCK) {
+				// Compiled code is only entered at a block, so step to the next one
+				count += VirtualMachine.align(state, program, limit - count);
+				continue;
+			}
+			VirtualMachine.Stack<w256> stack = state.getStackMemory();
+			context.state = state;
+			context.program = program;
+			context.local = state.getLocalMemory();
+			context.storage = state.getStorageMemory();
+			context.pc = state.pc();
+			context.stack = VirtualMachine.limbs(stack, context.registers);
+			context.sp = VirtualMachine.load(stack, context.stack);
+			context.gas = state.gas();
+			context.count = 0;
+			context.limit = limit - count;
+			context.status = null;
+			context.synced = false;
+			compiled.code.execute(context);
+			count += context.count;
+			if (!context.synced) {
+				VirtualMachine.store(context.stack, context.sp, stack);
+				state.jump(context.pc);
+				state.consume(state.gas() - context.gas);
+				if (context.status != null) {
+					state.halt(context.status);
+				}
+			}
+			context.state = null;
+			context.local = null;
+			context.storage = null;
+			if (context.count == 0 && state.status() == Status.OK && state.pc() == context.pc) {
+				// Could not enter the block (e.g. it would exceed the limit), so interpret it
+				count += VirtualMachine.run(state, limit - count);
+			}
+		}
+		return count;
+	}
+
+	// ========================================================================
+	// Code Generation
+	// ========================================================================
+
+	private static boolean generate(Program program, Assembler asm) {
+		int[] handlers = program.handlers;
+		int[] arguments = program.arguments;
+		int[] positions = program.positions;
+		int n = handlers.length;
+		Label[] labels = new Label[n];
+		ArrayList<Integer> entries = new ArrayList<>();
+		ArrayList<Integer> destinations = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			if (handlers[i] == Program.BLOCK) {
+				labels[i] = new Label();
+				entries.add(i);
+				if (handlers[i + 1] == Bytecode.JUMPDEST) {
+					destinations.add(i);
+				}
+			}
+		}
+		Label dispatch = new Label();
+		Label invalid = new Label();
+		Label exit = new Label();
+		// Locals: 0 = this, 1 = context, 2 = sp, 3 = base, 4 = target, 5 = jump pc
+		asm.aload(1);
+		asm.getfield("jevm/core/Compiler$Context", "sp", "I");
+		asm.istore(2);
+		asm.iconst(0);
+		asm.istore(3);
+		asm.iconst(0);
+		asm.istore(4);
+		asm.iconst(0);
+		asm.istore(5);
+		asm.aload(1);
+		asm.getfield("jevm/core/Compiler$Context", "pc", "I");
+		lookupswitch(asm, program, entries, labels, exit);
+		// Height of stack relative to entry of current block
+		int height = 0;
+		for (int i = 0; i < n; ++i) {
+			int handler = handlers[i];
+			int pc = positions[i];
+			switch (handler) {
+			case Program.BLOCK: {
+				// Fall through from previous block
+				asm.iinc(2, height);
+				height = 0;
+				asm.label(labels[i]);
+				int length = 0;
+				for (int j = i + 1; j < n && handlers[j] != Program.BLOCK && handlers[j] != Program.END; ++j) {
+					length++;
+				}
+				Label ok = new Label();
+				asm.aload(1);
+				asm.iload(2);
+				asm.iconst(arguments[i]);
+				asm.iconst(length);
+				asm.invokestatic("enter", "(" + CONTEXT + "III)Z");
+				asm.branch(Assembler.IFNE, ok);
+				exit(asm, pc, null);
+				asm.label(ok);
+				asm.iload(2);
+				asm.iconst(2);
+				asm.op(Assembler.ISHL);
+				asm.istore(3);
+				break;
+			}
+			case Program.END:
+				asm.iinc(2, height);
+				height = 0;
+				exit(asm, pc, null);
+				break;
+			case Program.PUSH_JUMP:
+				asm.iinc(2, height);
+				height = 0;
+				jump(asm, arguments[i], labels, positions[i + 1]);
+				// Skip the jump
+				i = i + 1;
+				break;
+			case Program.PUSH_JUMPI:
+			case Program.ISZERO_PUSH_JUMPI: {
+				boolean negated = (handler == Program.ISZERO_PUSH_JUMPI);
+				int skip = negated ? 2 : 1;
+				Label next = new Label();
+				call(asm, "isZero", height - 1, "I)Z");
+				asm.iinc(2, height - 1);
+				height = 0;
+				asm.branch(negated ? Assembler.IFEQ : Assembler.IFNE, next);
+				jump(asm, arguments[i], labels, positions[i + skip]);
+				asm.label(next);
+				i = i + skip;
+				break;
+			}
+			case Program.DUP_SWAP: {
+				int argument = arguments[i];
+				dup(asm, height, argument >> 8);
+				height = height + 1;
+				swap(asm, height, argument & 0xFF);
+				i = i + 1;
+				break;
+			}
+			case Program.PUSH_ADD:
+				call(asm, "pushAdd", height - 1, arguments[i], "II)V");
+				i = i + 1;
+				break;
+			case Program.FOLD:
+				call(asm, "push", height, arguments[i] >>> 8, "II)V");
+				height = height + 1;
+				i = i + (arguments[i] & 0xFF) - 1;
+				break;
+			case Program.SKIP:
+				i = i + arguments[i] - 1;
+				break;
+			case Bytecode.STOP:
+				asm.iinc(2, height);
+				height = 0;
+				exit(asm, pc, Status.STOP);
+				break;
+			case Bytecode.ADD:
+			case Bytecode.MUL:
+			case Bytecode.SUB:
+			case Bytecode.DIV:
+			case Bytecode.SDIV:
+			case Bytecode.MOD:
+			case Bytecode.SMOD:
+			case Bytecode.SIGNEXTEND:
+			case Bytecode.LT:
+			case Bytecode.GT:
+			case Bytecode.SLT:
+			case Bytecode.SGT:
+			case Bytecode.EQ:
+			case Bytecode.AND:
+			case Bytecode.OR:
+			case Bytecode.XOR:
+			case Bytecode.BYTE:
+			case Bytecode.SHL:
+			case Bytecode.SHR:
+			case Bytecode.SAR:
+				call(asm, "evaluate", height - 1, handler, "II)V");
+				height = height - 1;
+				break;
+			case Bytecode.ADDMOD:
+			case Bytecode.MULMOD:
+				call(asm, "evaluate", height - 1, handler, "II)V");
+				height = height - 2;
+				break;
+			case Bytecode.ISZERO:
+			case Bytecode.NOT:
+				call(asm, "evaluate", height - 1, handler, "II)V");
+				break;
+			case Bytecode.POP:
+				height = height - 1;
+				break;
+			case Bytecode.JUMPDEST:
+				break;
+			case Bytecode.EXP:
+			case Bytecode.SHA3:
+			case Bytecode.MLOAD:
+			case Bytecode.MSTORE:
+			case Bytecode.SLOAD:
+			case Bytecode.SSTORE: {
+				Label ok = new Label();
+				call(asm, "metered", height - 1, handler, "II)Z");
+				asm.branch(Assembler.IFNE, ok);
+				// Operands remain on the stack
+				asm.iinc(2, height);
+				asm.aload(1);
+				asm.iconst(pc);
+				asm.iload(2);
+				asm.invokestatic("exhaust", "(" + CONTEXT + "II)V");
+				asm.op(Assembler.RETURN);
+				asm.label(ok);
+				Bytecode.Opcode op = Bytecode.decode((byte) handler);
+				height = height + op.returns - op.arguments;
+				break;
+			}
+			case Bytecode.GAS:
+				call(asm, "gas", height, arguments[i], "II)V");
+				height = height + 1;
+				break;
+			case Bytecode.JUMP:
+				call(asm, "target", height - 1, "I)I");
+				asm.istore(4);
+				asm.iinc(2, height - 1);
+				height = 0;
+				asm.iconst(pc);
+				asm.istore(5);
+				asm.branch(Assembler.GOTO, dispatch);
+				break;
+			case Bytecode.JUMPI: {
+				Label next = new Label();
+				call(asm, "target", height - 1, "I)I");
+				asm.istore(4);
+				call(asm, "isZero", height - 2, "I)Z");
+				asm.iinc(2, height - 2);
+				height = 0;
+				asm.branch(Assembler.IFNE, next);
+				asm.iconst(pc);
+				asm.istore(5);
+				asm.branch(Assembler.GOTO, dispatch);
+				asm.label(next);
+				break;
+			}
+			case Bytecode.INVALID:
+				asm.iinc(2, height);
+				height = 0;
+				exit(asm, pc, Status.EXCEPTION);
+				break;
+			default:
+				if (handler >= Bytecode.PUSH1 && handler <= Bytecode.PUSH32) {
+					call(asm, "push", height, arguments[i], "II)V");
+					height = height + 1;
+				} else if (handler >= Bytecode.DUP1 && handler <= Bytecode.DUP16) {
+					dup(asm, height, arguments[i]);
+					height = height + 1;
+				} else if (handler >= Bytecode.SWAP1 && handler <= Bytecode.SWAP16) {
+					swap(asm, height, arguments[i]);
+				} else {
+					// Fall back on the interpreter
+					Label ok = new Label();
+					asm.iinc(2, height);
+					height = 0;
+					asm.aload(1);
+					asm.iconst(pc);
+					asm.iload(2);
+					asm.invokestatic("fallback", "(" + CONTEXT + "II)I");
+					asm.istore(2);
+					asm.iload(2);
+					asm.branch(Assembler.IFGE, ok);
+					asm.op(Assembler.RETURN);
+					asm.label(ok);
+					asm.iload(2);
+					asm.iconst(2);
+					asm.op(Assembler.ISHL);
+					asm.istore(3);
+				}
+			}
+		}
+		// Dispatch on dynamic jump targets
+		asm.label(dispatch);
+		asm.iload(4);
+		lookupswitch(asm, program, destinations, labels, invalid);
+		asm.label(invalid);
+		asm.aload(1);
+		asm.iload(5);
+		asm.iload(2);
+		asm.iconst(Status.EXCEPTION.ordinal());
+		asm.invokestatic("exit", "(" + CONTEXT + "III)V");
+		asm.label(exit);
+		asm.op(Assembler.RETURN);
+		return asm.resolve();
+	}
+
+	/**
+	 * Generate a <code>lookupswitch</code> from the positions of some blocks to
+	 * their labels.
+	 */
+	private static void lookupswitch(Assembler asm, Program program, ArrayList<Integer> blocks, Label[] labels,
+			Label otherwise) {
+		int[] keys = new int[blocks.size()];
+		Label[] targets = new Label[keys.length];
+		for (int i = 0; i != keys.length; ++i) {
+			int index = blocks.get(i);
+			keys[i] = program.positions[index];
+			targets[i] = labels[index];
+		}
+		asm.lookupswitch(keys, targets, otherwise);
+	}
+
+	/**
+	 * Generate a jump to a statically known target (given as an index), or an
+	 * exception if the target is invalid.
+	 */
+	private static void jump(Assembler asm, int target, Label[] labels, int pc) {
+		if (target < 0) {
+			exit(asm, pc, Status.EXCEPTION);
+		} else {
+			asm.branch(Assembler.GOTO, labels[target]);
+		}
+	}
+
+	/**
+	 * Generate an exit from the compiled method at a given position, optionally
+	 * halting with a given status. The stack pointer must already be up to date.
+	 */
+	private static void exit(Assembler asm, int pc, Status status) {
+		asm.aload(1);
+		asm.iconst(pc);
+		asm.iload(2);
+		asm.iconst(status == null ? 0 : status.ordinal());
+		asm.invokestatic("exit", "(" + CONTEXT + "III)V");
+		asm.op(Assembler.RETURN);
+	}
+
+	private static void dup(Assembler asm, int height, int n) {
+		call(asm, "dup", height, n, "II)V");
+	}
+
+	private static void swap(Assembler asm, int height, int n) {
+		call(asm, "swap", height - 1, n, "II)V");
+	}
+
+	/**
+	 * Generate a call passing the context and the offset of a given slot
+	 * (relative to the height of the stack on entry to the block).
+	 */
+	private static void call(Assembler asm, String name, int slot, String descriptor) {
+		asm.aload(1);
+		offset(asm, slot);
+		asm.invokestatic(name, "(" + CONTEXT + descriptor);
+	}
+
+	private static void call(Assembler asm, String name, int slot, int argument, String descriptor) {
+		asm.aload(1);
+		offset(asm, slot);
+		asm.iconst(argument);
+		asm.invokestatic(name, "(" + CONTEXT + descriptor);
+	}
+
+	private static void offset(Assembler asm, int slot) {
+		asm.iload(3);
+		if (slot != 0) {
+			asm.iconst(slot << 2);
+			asm.op(Assembler.IADD);
+		}
+	}
+
+	// ========================================================================
+	// Runtime Support
+	// ========================================================================
+
+	/**
+	 * Enter a given block, checking gas, the stack bounds and the instruction
+	 * limit. A block with insufficient gas, or which would underflow the stack
+	 * or exceed its limit, is not entered, such that it is interpreted instead
+	 * (see <code>VirtualMachine.run()</code>), and halts at exactly the right
+	 * point. Called from compiled code.
+	 *
+	 * @param c
+	 * @param sp
+	 * @param block
+	 * @param length
+	 *            Number of instructions in the block.
+	 * @return
+	 */
+	public static boolean enter(Context c, int sp, int block, int length) {
+		Program program = c.program;
+		int cost = program.costs[block];
+		if ((c.count + length) > c.limit || c.gas < cost || sp < program.minimums[block]
+				|| (sp + program.growths[block]) > VirtualMachine.STACK_LIMIT) {
+			return false;
+		}
+		c.gas -= cost;
+		c.count += length;
+		return true;
+	}
+
+	/**
+	 * Record the position and stack pointer on exit from compiled code, along
+	 * with the status (as an ordinal, where zero means no change). Called from
+	 * compiled code.
+	 *
+	 * @param c
+	 * @param pc
+	 * @param sp
+	 * @param status
+	 */
+	public static void exit(Context c, int pc, int sp, int status) {
+		c.pc = pc;
+		c.sp = sp;
+		if (status != 0) {
+			c.status = STATUSES[status];
+		}
+	}
+
+	/**
+	 * Apply an arithmetic, comparison or bitwise instruction to the top slots,
+	 * placing the result in the last operand (see
+	 * <code>Program.evaluate()</code>). Called from compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @param opcode
+	 */
+	public static void evaluate(Context c, int top, int opcode) {
+		Program.evaluate(opcode, c.stack, top, c.a, c.b, c.c);
+	}
+
+	/**
+	 * Apply an instruction which has dynamic gas costs (e.g. for accessing memory
+	 * or storage), returning <code>false</code> if this failed. In that case,
+	 * either the status is set or (when out of gas) the stack is left unchanged.
+	 * Called from compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @param opcode
+	 * @return
+	 */
+	public static boolean metered(Context c, int top, int opcode) {
+		long[] s = c.stack;
+		switch (opcode) {
+		case Bytecode.EXP:
+			if (!charge(c, c.program.instructions.gasExpByte() * c.b.load(s, top - 4).byteLength())) {
+				return false;
+			}
+			Program.evaluate(opcode, s, top, c.a, c.b, c.c);
+			return true;
+		case Bytecode.SHA3: {
+			m256 a = c.a.load(s, top);
+			m256 b = c.b.load(s, top - 4);
+			if (!charge(c, Bytecode.gasSHA3(c.local, a.toInt(), b.toInt(), a.isInt() && b.isInt()))) {
+				return false;
+			}
+			w256 hash = Bytecode.sha3(c.local, a.toInt(), b.toInt(), a.isInt() && b.isInt());
+			if (hash == null) {
+				c.status = Status.EXCEPTION;
+				return false;
+			}
+			c.c.set(hash).store(s, top - 4);
+			return true;
+		}
+		case Bytecode.MLOAD:
+		case Bytecode.SLOAD: {
+			VirtualMachine.Memory<w256> memory = (opcode == Bytecode.MLOAD) ? c.local : c.storage;
+			w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+			if (opcode == Bytecode.MLOAD && !charge(c, Bytecode.gasMemory(memory, address))) {
+				return false;
+			} else if (!memory.expand(address)) {
+				c.status = Status.EXCEPTION;
+				return false;
+			}
+			c.c.set(memory.read(address)).store(s, top);
+			return true;
+		}
+		case Bytecode.MSTORE:
+		case Bytecode.SSTORE: {
+			VirtualMachine.Memory<w256> memory = (opcode == Bytecode.MSTORE) ? c.local : c.storage;
+			w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+			w256 value = w256.valueOf(s[top - 4], s[top - 3], s[top - 2], s[top - 1]);
+			long cost = (opcode == Bytecode.MSTORE) ? Bytecode.gasMemory(memory, address)
+					: Bytecode.gasSSTORE(memory, address, value);
+			if (!charge(c, cost)) {
+				return false;
+			} else if (!memory.expand(address)) {
+				c.status = Status.EXCEPTION;
+				return false;
+			}
+			memory.write(address, value);
+			return true;
+		}
+		default:
+			throw new IllegalArgumentException("invalid opcode");
+		}
+	}
+
+	/**
+	 * Charge a given dynamic cost, returning <code>false</code> if insufficient
+	 * gas remains.
+	 *
+	 * @param c
+	 * @param cost
+	 * @return
+	 */
+	private static boolean charge(Context c, long cost) {
+		if (c.gas < cost) {
+			return false;
+		}
+		c.gas -= cost;
+		return true;
+	}
+
+	/**
+	 * Exit from compiled code after an instruction with a dynamic cost failed at
+	 * a given position. If it failed because of insufficient gas, the remainder
+	 * of the block is stepped through (see <code>VirtualMachine.exhaust()</code>)
+	 * such that it runs out of gas at exactly the right point. Called from
+	 * compiled code.
+	 *
+	 * @param c
+	 * @param pc
+	 * @param sp
+	 */
+	public static void exhaust(Context c, int pc, int sp) {
+		if (c.status != null) {
+			exit(c, pc, sp, 0);
+		} else {
+			Program program = c.program;
+			int ip = program.indexOf(pc);
+			VirtualMachine.exhaust(c.state, program, c.stack, sp, ip, c.gas + program.arguments[ip]);
+			c.synced = true;
+		}
+	}
+
+	/**
+	 * Push the remaining gas, accounting for the given remainder of the block
+	 * which has already been charged. Called from compiled code.
+	 *
+	 * @param c
+	 * @param next
+	 * @param remaining
+	 */
+	public static void gas(Context c, int next, int remaining) {
+		VirtualMachine.set(c.stack, next, c.gas + remaining);
+	}
+
+	/**
+	 * Push a given constant. Called from compiled code.
+	 *
+	 * @param c
+	 * @param next
+	 * @param k
+	 */
+	public static void push(Context c, int next, int k) {
+		long[] s = c.stack;
+		long[] constants = c.program.constants;
+		int j = k << 2;
+		s[next] = constants[j];
+		s[next + 1] = constants[j + 1];
+		s[next + 2] = constants[j + 2];
+		s[next + 3] = constants[j + 3];
+	}
+
+	/**
+	 * Add a given constant to the top slot. Called from compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @param k
+	 */
+	public static void pushAdd(Context c, int top, int k) {
+		c.a.load(c.program.constants, k << 2).addInto(c.b.load(c.stack, top)).store(c.stack, top);
+	}
+
+	/**
+	 * Copy the <code>n</code>th slot below a given slot into it. Called from
+	 * compiled code.
+	 *
+	 * @param c
+	 * @param next
+	 * @param n
+	 */
+	public static void dup(Context c, int next, int n) {
+		long[] s = c.stack;
+		int from = next - (n << 2);
+		int to = next;
+		s[to] = s[from];
+		s[to + 1] = s[from + 1];
+		s[to + 2] = s[from + 2];
+		s[to + 3] = s[from + 3];
+	}
+
+	/**
+	 * Exchange the top slot with the <code>n</code>th slot below it. Called from
+	 * compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @param n
+	 */
+	public static void swap(Context c, int top, int n) {
+		long[] s = c.stack;
+		int other = top - (n << 2);
+		for (int i = 0; i != 4; ++i) {
+			long tmp = s[top + i];
+			s[top + i] = s[other + i];
+			s[other + i] = tmp;
+		}
+	}
+
+	/**
+	 * Check whether a given slot is zero. Called from compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @return
+	 */
+	public static boolean isZero(Context c, int top) {
+		long[] s = c.stack;
+		return (s[top] | s[top + 1] | s[top + 2] | s[top + 3]) == 0;
+	}
+
+	/**
+	 * Get the jump target held in a given slot, or <code>-1</code> if this is
+	 * not a valid position. Called from compiled code.
+	 *
+	 * @param c
+	 * @param top
+	 * @return
+	 */
+	public static int target(Context c, int top) {
+		m256 a = c.a.load(c.stack, top);
+		int pc = a.toInt();
+		return a.isInt() && pc >= 0 ? pc : -1;
+	}
+
+	/**
+	 * Execute the instruction at a given position using the interpreter,
+	 * returning the new stack pointer or <code>-1</code> if compiled code should
+	 * not continue. In the latter case, the state has already been written back.
+	 * Called from compiled code.
+	 *
+	 * @param c
+	 * @param pc
+	 * @param sp
+	 * @return
+	 */
+	public static int fallback(Context c, int pc, int sp) {
+		State state = c.state;
+		VirtualMachine.Stack<w256> stack = state.getStackMemory();
+		VirtualMachine.store(c.stack, sp, stack);
+		state.jump(pc);
+		state.consume(state.gas() - c.gas);
+		// Static cost already charged on entry to the block
+		Bytecode.execute(state, 0);
+		if (state.status() != Status.OK || state.pc() != pc + 1) {
+			c.synced = true;
+			return -1;
+		}
+		c.gas = state.gas();
+		return VirtualMachine.load(stack, c.stack);
+	}
+
+	// ========================================================================
+	// Class File Generation
+	// ========================================================================
+
+	/**
+	 * Identifies a position in generated code.
+	 */
+	private static final class Label {
+		int position = -1;
+	}
+
+	/**
+	 * A minimal assembler for a class with a default constructor and a single
+	 * <code>execute(Context)</code> method.
+	 */
+	private static final class Assembler {
+		static final int IADD = 0x60;
+		static final int ISHL = 0x78;
+		static final int IFEQ = 0x99;
+		static final int IFNE = 0x9a;
+		static final int IFGE = 0x9c;
+		static final int GOTO = 0xa7;
+		static final int RETURN = 0xb1;
+		/**
+		 * Maximum size of generated code, such that all branch offsets fit in a
+		 * signed short.
+		 */
+		static final int MAX_LENGTH = Short.MAX_VALUE;
+
+		private final String name;
+		private final HashMap<String, Integer> pool = new HashMap<>();
+		private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(constants);
+		private int count = 1;
+		private byte[] code = new byte[1024];
+		private int length;
+		/**
+		 * Branches to be resolved, as pairs of (instruction position, label).
+		 */
+		private final ArrayList<Object[]> branches = new ArrayList<>();
+
+		Assembler(String name) {
+			this.name = name;
+		}
+
+		void op(int opcode) {
+			u1(opcode);
+		}
+
+		void aload(int var) {
+			u1(0x19);
+			u1(var);
+		}
+
+		void iload(int var) {
+			u1(0x15);
+			u1(var);
+		}
+
+		void istore(int var) {
+			u1(0x36);
+			u1(var);
+		}
+
+		void iinc(int var, int amount) {
+			if (amount == 0) {
+				return;
+			} else if (amount >= Byte.MIN_VALUE && amount <= Byte.MAX_VALUE) {
+				u1(0x84);
+				u1(var);
+				u1(amount);
+			} else {
+				// wide iinc
+				u1(0xc4);
+				u1(0x84);
+				u2(var);
+				u2(amount);
+			}
+		}
+
+		void iconst(int value) {
+			if (value >= -1 && value <= 5) {
+				u1(0x03 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(0x10);
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(0x11);
+				u2(value);
+			} else {
+				// ldc_w
+				u1(0x13);
+				u2(constant("I" + value, 3, value));
+			}
+		}
+
+		void getfield(String owner, String field, String descriptor) {
+			u1(0xb4);
+			u2(member(9, owner, field, descriptor));
+		}
+
+		void invokestatic(String method, String descriptor) {
+			u1(0xb8);
+			u2(member(10, "jevm/core/Compiler", method, descriptor));
+		}
+
+		void branch(int opcode, Label label) {
+			branches.add(new Object[] { length, label });
+			u1(opcode);
+			u2(0);
+		}
+
+		void lookupswitch(int[] keys, Label[] labels, Label otherwise) {
+			int start = length;
+			u1(0xab);
+			while ((length & 3) != 0) {
+				u1(0);
+			}
+			branches.add(new Object[] { start, otherwise, length });
+			u4(0);
+			u4(keys.length);
+			Integer[] order = new Integer[keys.length];
+			for (int i = 0; i != order.length; ++i) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (x, y) -> Integer.compare(keys[x], keys[y]));
+			for (int i : order) {
+				u4(keys[i]);
+				branches.add(new Object[] { start, labels[i], length });
+				u4(0);
+			}
+		}
+
+		void label(Label label) {
+			label.position = length;
+		}
+
+		/**
+		 * Resolve all branch offsets, returning <code>false</code> if the code is
+		 * too large.
+		 *
+		 * @return
+		 */
+		boolean resolve() {
+			if (length > MAX_LENGTH) {
+				return false;
+			}
+			for (Object[] branch : branches) {
+				int start = (Integer) branch[0];
+				int offset = ((Label) branch[1]).position - start;
+				if (branch.length == 2) {
+					code[start + 1] = (byte) (offset >> 8);
+					code[start + 2] = (byte) offset;
+				} else {
+					int at = (Integer) branch[2];
+					code[at] = (byte) (offset >> 24);
+					code[at + 1] = (byte) (offset >> 16);
+					code[at + 2] = (byte) (offset >> 8);
+					code[at + 3] = (byte) offset;
+				}
+			}
+			return true;
+		}
+
+		byte[] toClassFile() {
+			try {
+				int thisClass = type(name);
+				int superClass = type("java/lang/Object");
+				int iface = type("jevm/core/Compiler$Code");
+				int init = member(10, "java/lang/Object", "<init>", "()V");
+				int initName = utf8("<init>");
+				int initType = utf8("()V");
+				int executeName = utf8("execute");
+				int executeType = utf8("(" + CONTEXT + ")V");
+				int codeName = utf8("Code");
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream file = new DataOutputStream(bytes);
+				file.writeInt(0xCAFEBABE);
+				file.writeShort(0);
+				file.writeShort(49);
+				file.writeShort(count);
+				constants.writeTo(file);
+				// ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+				file.writeShort(0x0031);
+				file.writeShort(thisClass);
+				file.writeShort(superClass);
+				file.writeShort(1);
+				file.writeShort(iface);
+				file.writeShort(0);
+				file.writeShort(2);
+				// Default constructor
+				byte[] body = { 0x2a, (byte) 0xb7, (byte) (init >> 8), (byte) init, (byte) 0xb1 };
+				method(file, initName, initType, codeName, 1, 1, body, body.length);
+				// Execute method
+				method(file, executeName, executeType, codeName, 8, 6, code, length);
+				file.writeShort(0);
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void method(DataOutputStream file, int name, int type, int codeName, int maxStack, int maxLocals,
+				byte[] body, int bodyLength) throws IOException {
+			// ACC_PUBLIC
+			file.writeShort(0x0001);
+			file.writeShort(name);
+			file.writeShort(type);
+			file.writeShort(1);
+			file.writeShort(codeName);
+			file.writeInt(12 + bodyLength);
+			file.writeShort(maxStack);
+			file.writeShort(maxLocals);
+			file.writeInt(bodyLength);
+			file.write(body, 0, bodyLength);
+			file.writeShort(0);
+			file.writeShort(0);
+		}
+
+		private int utf8(String s) {
+			return constant("U" + s, 1, s);
+		}
+
+		private int type(String s) {
+			int index = utf8(s);
+			return constant("C" + s, 7, index);
+		}
+
+		private int member(int tag, String owner, String member, String descriptor) {
+			int c = type(owner);
+			int n = utf8(member);
+			int d = utf8(descriptor);
+			int nt = constant("N" + member + descriptor, 12, (n << 16) | d);
+			return constant("M" + tag + owner + "." + member + descriptor, tag, (c << 16) | nt);
+		}
+
+		private int constant(String key, int tag, Object value) {
+			Integer index = pool.get(key);
+			if (index == null) {
+				try {
+					out.writeByte(tag);
+					if (tag == 1) {
+						out.writeUTF((String) value);
+					} else if (tag == 3) {
+						out.writeInt((Integer) value);
+					} else if (tag == 7) {
+						out.writeShort((Integer) value);
+					} else {
+						out.writeInt((Integer) value);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				index = count++;
+				pool.put(key, index);
+			}
+			return index;
+		}
+
+		private void u1(int b) {
+			if (length == code.length) {
+				code = Arrays.copyOf(code, length * 2);
+			}
+			code[length++] = (byte) b;
+		}
+
+		private void u2(int s) {
+			u1(s >> 8);
+			u1(s);
+		}
+
+		private void u4(int i) {
+			u2(i >> 16);
+			u2(i);
+		}
+	}
+
+	/**
+	 * Defines a single generated class.
+	 */
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that compiled code agrees with stepping through
+	 * <code>Bytecode.execute()</code> on randomly generated straight-line
+	 * programs, followed by some loops. This includes running with small
+	 * instruction limits, such that execution must repeatedly leave and re-enter
+	 * compiled code.
+	 */
+	public static void testCompiler() {
+		System.out.println("*** TESTING COMPILER");
+		Random random = new Random(5);
+		int failures = 0;
+		for (int t = 0; t != 2002; ++t) {
+			byte[] code = (t == 2000) ? VirtualMachine.LOOP
+					: (t == 2001) ? VirtualMachine.CONTRACT : VirtualMachine.randomProgram(random);
+			ArrayState expected = new ArrayState(code);
+			while (expected.status() == Status.OK && expected.pc() < code.length) {
+				Bytecode.execute(expected);
+			}
+			ArrayState actual = new ArrayState(code);
+			Compiled compiled = compile(actual.getProgram());
+			execute(actual, compiled, Long.MAX_VALUE);
+			ArrayState limited = new ArrayState(code);
+			while (limited.status() == Status.OK && limited.pc() < code.length) {
+				execute(limited, compiled, 1 + random.nextInt(50));
+			}
+			if (!VirtualMachine.equals(expected, actual) || !VirtualMachine.equals(expected, limited)) {
+				if (failures++ < 3) {
+					System.out.println("FAILED: " + expected.getStackMemory() + " != " + actual.getStackMemory()
+							+ ", " + limited.getStackMemory());
+				}
+			}
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	/**
+	 * Compare the throughput of compiled code against
+	 * <code>VirtualMachine.run()</code>, on code in the style of a compiled
+	 * Solidity function.
+	 */
+	public static void benchCompiler() {
+		System.out.println("*** BENCHMARKING COMPILER");
+		Compiled compiled = compile(new ArrayState(VirtualMachine.CONTRACT).getProgram());
+		System.out.println("Generated " + compiled.size() + " bytes");
+		for (int i = 0; i != 10; ++i) {
+			long count = 0;
+			long start = System.nanoTime();
+			for (int j = 0; j != 20; ++j) {
+				count += VirtualMachine.run(new ArrayState(VirtualMachine.CONTRACT));
+			}
+			long interpreted = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int j = 0; j != 20; ++j) {
+				execute(new ArrayState(VirtualMachine.CONTRACT), compiled, Long.MAX_VALUE);
+			}
+			long time = System.nanoTime() - start;
+			System.out.println(count + " instructions, run " + (interpreted / count) + "ns/instruction, compiled "
+					+ (time / count) + "ns/instruction");
+		}
+	}
+
+	public static void main(String[] args) {
+		testCompiler();
+		benchCompiler();
+	}
+}
@@ -0,0 +1,365 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+
+/**
+ * An upper bound on the gas consumed and the instructions executed by some
+ * code, starting from its beginning. Such a bound exists when the control-flow
+ * graph reachable from the start of the code is acyclic, every jump has a
+ * constant target (i.e. is immediately preceded by a <code>PUSH</code>) and
+ * the dynamic cost of every instruction can be bounded. For the latter,
+ * <code>EXP</code> is assumed to have the largest possible exponent and
+ * <code>SSTORE</code> to always set a slot. Likewise, <code>MLOAD</code>,
+ * <code>MSTORE</code> and <code>SHA3</code> must have constant operands, such
+ * that the largest amount of memory used is known. Since expansion is only
+ * ever charged beyond the current high-water mark, the cost of that memory is
+ * charged at most once along any path. Code which is bounded, and executed
+ * with at least as much gas as its bound, cannot run out of gas.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class GasBound {
+	/**
+	 * Identifies code for which no bound could be determined.
+	 */
+	public static final GasBound UNBOUNDED = new GasBound(false, Long.MAX_VALUE, Long.MAX_VALUE);
+
+	private final boolean bounded;
+	private final long gas;
+	private final long steps;
+
+	private GasBound(boolean bounded, long gas, long steps) {
+		this.bounded = bounded;
+		this.gas = gas;
+		this.steps = steps;
+	}
+
+	/**
+	 * Check whether a bound was determined for the code.
+	 *
+	 * @return
+	 */
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	/**
+	 * Get the most gas which can be consumed, or <code>Long.MAX_VALUE</code> if
+	 * this is not bounded.
+	 *
+	 * @return
+	 */
+	public long gas() {
+		return gas;
+	}
+
+	/**
+	 * Get the most instructions which can be executed, or
+	 * <code>Long.MAX_VALUE</code> if this is not bounded.
+	 *
+	 * @return
+	 */
+	public long steps() {
+		return steps;
+	}
+
+	@Override
+	public String toString() {
+		return bounded ? "bounded(gas=" + gas + ", steps=" + steps + ")" : "unbounded";
+	}
+
+	/**
+	 * Determine the bound of some code, for a given instruction set. The code is
+	 * split into basic blocks, as for <code>Program</code>, and the longest path
+	 * through the resulting graph from the first block is found by a depth-first
+	 * search which fails on encountering a back edge.
+	 *
+	 * @param code
+	 * @param instructions
+	 * @return
+	 */
+	public static GasBound analyse(byte[] code, InstructionSet instructions) {
+		if (code.length == 0) {
+			return new GasBound(true, 0, 0);
+		}
+		// Block starting at each position, or -1
+		int[] blocks = new int[code.length];
+		// For each block, its cost, number of instructions and successors
+		long[] costs = new long[code.length];
+		int[] counts = new int[code.length];
+		int[] successors = new int[code.length * 2];
+		// Blocks which cannot be bounded
+		boolean[] unknown = new boolean[code.length];
+		// Jump target of each block, as a position (or -1)
+		int[] targets = new int[code.length];
+		int n = 0;
+		int block = -1;
+		// Largest slot of local memory used, or -1
+		long memory = -1;
+		// Constants pushed by the last two instructions, or -1 if not known
+		long last = -1, previous = -1;
+		boolean leader = true;
+		Arrays.fill(blocks, -1);
+		for (int pc = 0; pc < code.length;) {
+			int opcode = code[pc] & 0xFF;
+			if (!instructions.isValid(opcode)) {
+				opcode = Bytecode.INVALID;
+			}
+			if (leader || opcode == Bytecode.JUMPDEST) {
+				block = n++;
+				blocks[pc] = block;
+				targets[block] = -1;
+				// Fall through into next block by default
+				successors[block * 2] = -2;
+				successors[block * 2 + 1] = -1;
+				last = previous = -1;
+			}
+			costs[block] += instructions.gas(opcode);
+			counts[block]++;
+			// Constant operands on top of the stack, if known
+			long top = last;
+			long second = previous;
+			last = previous = -1;
+			switch (opcode) {
+			case Bytecode.EXP:
+				costs[block] += instructions.gasExpByte() * 32;
+				break;
+			case Bytecode.SSTORE:
+				costs[block] += Bytecode.G_sset;
+				break;
+			case Bytecode.MLOAD:
+			case Bytecode.MSTORE:
+				memory = Math.max(memory, top);
+				unknown[block] |= (top < 0);
+				break;
+			case Bytecode.SHA3:
+				if (top < 0 || second < 0) {
+					unknown[block] = true;
+				} else if (second > 0) {
+					memory = Math.max(memory, top + (32 * ((second - 1) >>> 5)));
+					costs[block] += Bytecode.G_sha3word * ((second + 31) >>> 5);
+				}
+				break;
+			case Bytecode.JUMP:
+			case Bytecode.JUMPI:
+				targets[block] = (int) Math.min(top, Integer.MAX_VALUE);
+				unknown[block] |= (top < 0);
+				if (opcode == Bytecode.JUMP) {
+					successors[block * 2] = -1;
+				}
+				break;
+			default:
+				if (opcode >= Bytecode.PUSH1 && opcode <= Bytecode.PUSH32) {
+					last = constant(code, pc + 1, opcode - Bytecode.PUSH1 + 1);
+					previous = top;
+				} else if (hasUnboundedCost(opcode)) {
+					unknown[block] = true;
+				}
+			}
+			if (opcode != Bytecode.JUMPI && Bytecode.isTerminator(opcode)) {
+				successors[block * 2] = -1;
+			}
+			leader = Bytecode.isTerminator(opcode);
+			pc += instructions.width(opcode);
+		}
+		// Resolve successors as block indices
+		for (int b = 0; b != n; ++b) {
+			if (successors[b * 2] == -2) {
+				// Falls through into the next block, if there is one
+				successors[b * 2] = (b + 1) < n ? b + 1 : -1;
+			}
+			int target = targets[b];
+			if (target >= 0 && target < code.length && blocks[target] >= 0
+					&& (code[target] & 0xFF) == Bytecode.JUMPDEST) {
+				successors[b * 2 + 1] = blocks[target];
+			}
+		}
+		long[] gas = new long[n];
+		long[] steps = new long[n];
+		if (!longest(costs, counts, successors, unknown, gas, steps)) {
+			return UNBOUNDED;
+		}
+		long expansion = memory < 0 ? 0 : Bytecode.gasMemory((memory + 63) >>> 5);
+		return new GasBound(true, gas[0] + expansion, steps[0]);
+	}
+
+	/**
+	 * Determine the longest path (by cost and by number of instructions) from
+	 * each block reachable from the first, using an iterative depth-first
+	 * search. This returns <code>false</code> if a reachable block cannot be
+	 * bounded or lies on a cycle.
+	 *
+	 * @param costs
+	 * @param counts
+	 * @param successors
+	 * @param unknown
+	 * @param gas
+	 * @param steps
+	 * @return
+	 */
+	private static boolean longest(long[] costs, int[] counts, int[] successors, boolean[] unknown, long[] gas,
+			long[] steps) {
+		int n = gas.length;
+		// 0 = unvisited, 1 = on stack, 2 = finished
+		byte[] colours = new byte[n];
+		int[] stack = new int[n];
+		int[] edges = new int[n];
+		int top = 0;
+		stack[0] = 0;
+		colours[0] = 1;
+		while (top >= 0) {
+			int b = stack[top];
+			if (unknown[b]) {
+				return false;
+			} else if (edges[b] < 2) {
+				int successor = successors[b * 2 + edges[b]++];
+				if (successor < 0) {
+					continue;
+				} else if (colours[successor] == 1) {
+					// Back edge, hence a cycle
+					return false;
+				} else if (colours[successor] == 0) {
+					colours[successor] = 1;
+					stack[++top] = successor;
+				}
+			} else {
+				long g = 0, s = 0;
+				for (int i = 0; i != 2; ++i) {
+					int successor = successors[b * 2 + i];
+					if (successor >= 0) {
+						g = Math.max(g, gas[successor]);
+						s = Math.max(s, steps[successor]);
+					}
+				}
+				gas[b] = costs[b] + g;
+				steps[b] = counts[b] + s;
+				colours[b] = 2;
+				top--;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the operand of a push instruction, returning <code>-1</code> if it
+	 * does not fit in an <code>int</code>. Bytes beyond the end of the code read
+	 * as zero.
+	 *
+	 * @param code
+	 * @param start
+	 * @param length
+	 * @return
+	 */
+	private static long constant(byte[] code, int start, int length) {
+		long value = 0;
+		for (int i = start; i != start + length; ++i) {
+			value = (value << 8) | (i < code.length ? code[i] & 0xFF : 0);
+			if (value > Integer.MAX_VALUE) {
+				return -1;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Check whether a given instruction has a dynamic cost which is not bounded
+	 * by this analysis (e.g. because it copies a variable amount of data).
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	private static boolean hasUnboundedCost(int opcode) {
+		if (opcode >= Bytecode.LOG0 && opcode <= Bytecode.LOG4) {
+			return true;
+		}
+		switch (opcode) {
+		case Bytecode.MSTORE8:
+		case Bytecode.CALLDATACOPY:
+		case Bytecode.CODECOPY:
+		case Bytecode.EXTCODECOPY:
+		case Bytecode.RETURNDATACOPY:
+		case Bytecode.CREATE:
+		case Bytecode.CALL:
+		case Bytecode.CALLCODE:
+		case Bytecode.RETURN:
+		case Bytecode.DELEGATECALL:
+		case Bytecode.CREATE2:
+		case Bytecode.STATICCALL:
+		case Bytecode.REVERT:
+		case Bytecode.SELFDESTRUCT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that loops are not bounded, whilst straight-line and branching code
+	 * never exceeds its bound.
+	 */
+	public static void testBound() {
+		System.out.println("*** TESTING BOUND");
+		Random random = new Random(11);
+		int failures = 0;
+		// Store to memory, then branch over STOP to an EXP and SSTORE
+		byte[] branch = { Bytecode.PUSH1, (byte) 0x80, Bytecode.PUSH1, 0x40, Bytecode.MSTORE, Bytecode.PUSH1, 0x01,
+				Bytecode.PUSH1, 0x0b, Bytecode.JUMPI, Bytecode.STOP, Bytecode.JUMPDEST, Bytecode.PUSH1, 0x02,
+				Bytecode.PUSH1, 0x03, Bytecode.EXP, Bytecode.PUSH1, 0x00, Bytecode.SSTORE, Bytecode.STOP };
+		// Jump to a computed target
+		byte[] computed = { Bytecode.PUSH1, 0x02, Bytecode.PUSH1, 0x02, Bytecode.ADD, Bytecode.JUMP,
+				Bytecode.JUMPDEST };
+		for (int t = 0; t != 1004; ++t) {
+			byte[] code = (t == 1000) ? VirtualMachine.LOOP
+					: (t == 1001) ? VirtualMachine.CONTRACT
+							: (t == 1002) ? computed : (t == 1003) ? branch : VirtualMachine.randomProgram(random);
+			GasBound bound = analyse(code, InstructionSet.LATEST);
+			if (t >= 1000 && t <= 1002) {
+				if (bound.isBounded()) {
+					failures++;
+					System.out.println("FAILED: " + bound + " for " + new ArrayState(code));
+				}
+				continue;
+			}
+			ArrayState state = new ArrayState(code);
+			long count = 0;
+			while (state.status() == Status.OK && state.pc() < code.length) {
+				Bytecode.execute(state);
+				count++;
+			}
+			long used = Long.MAX_VALUE - state.gas();
+			if (!bound.isBounded() || used > bound.gas() || count > bound.steps()) {
+				failures++;
+				System.out.println("FAILED: " + bound + " for " + used + " gas, " + count + " steps");
+			} else if (t == 1003) {
+				System.out.println(bound + " for " + used + " gas, " + count + " steps");
+			}
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	public static void main(String[] args) {
+		testBound();
+	}
+}
@@ -0,0 +1,326 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.util.Random;
+
+import jevm.core.VirtualMachine.State;
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+import jevm.util.FramePool;
+import jevm.util.Word.w256;
+
+/**
+ * Estimates the least amount of gas with which some code executes
+ * successfully (i.e. without running out of gas). Since no refunds are given,
+ * the gas consumed by a single traced run with plenty of gas (i.e. its
+ * high-water mark) is exactly the answer, unless execution depends upon the
+ * amount of gas given. That only happens through the <code>GAS</code>
+ * instruction, hence execution with any amount of gas is identical to the
+ * traced run up to the first <code>GAS</code> instruction executed. Any amount
+ * less than that consumed up to this point runs out of gas before it.
+ * <p>
+ * Therefore, the traced run takes a snapshot of the state just before its
+ * first <code>GAS</code> instruction. A binary search is then performed over
+ * the remaining amounts of gas, where each probe resumes from the snapshot
+ * rather than starting again from the beginning of the code. Code which never
+ * executes <code>GAS</code> requires no probes at all. Since each probe is a
+ * short execution of the same code, states are drawn from the current
+ * thread's <code>FramePool</code>, which also retains the decoded code.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class GasEstimator {
+	/**
+	 * Returned when execution does not succeed even with the maximum amount of
+	 * gas allowed.
+	 */
+	public static final long FAILED = -1;
+
+	private final w256 codeHash;
+	private final byte[] code;
+	private final InstructionSet instructions;
+	private final boolean metered;
+	private long probes;
+	private long steps;
+
+	/**
+	 * Construct an estimator for some code with a given hash, or
+	 * <code>null</code> if this is not known.
+	 *
+	 * @param codeHash
+	 * @param code
+	 */
+	public GasEstimator(w256 codeHash, byte[] code) {
+		this(codeHash, code, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Construct an estimator for some code with a given hash (or
+	 * <code>null</code>), which executes in a given fork and is therefore
+	 * priced according to its instruction set.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param instructions
+	 */
+	public GasEstimator(w256 codeHash, byte[] code, InstructionSet instructions) {
+		this.codeHash = codeHash;
+		this.code = code;
+		this.instructions = instructions;
+		this.metered = reads((codeHash == null) ? Program.decode(code, instructions)
+				: Program.of(codeHash, code, instructions));
+	}
+
+	/**
+	 * Estimate the least amount of gas with which the code executes
+	 * successfully, given a maximum amount of gas. This returns
+	 * <code>FAILED</code> if execution does not succeed with the maximum (e.g.
+	 * because it reverts or runs out of gas).
+	 *
+	 * @param cap
+	 * @return
+	 */
+	public long estimate(long cap) {
+		FramePool pool = FramePool.local();
+		ArrayState state = pool.acquire(codeHash, code, cap, instructions);
+		Snapshot snapshot = null;
+		if (metered) {
+			// Step until the first GAS instruction, since all else is identical
+			while (state.status() == Status.OK && state.pc() < code.length) {
+				if ((code[state.pc()] & 0xFF) == Bytecode.GAS) {
+					snapshot = new Snapshot(state, cap - state.gas());
+					break;
+				}
+				Bytecode.execute(state);
+				steps++;
+			}
+		}
+		steps += VirtualMachine.run(state);
+		boolean succeeded = succeeded(state);
+		long used = cap - state.gas();
+		pool.release(state);
+		if (!succeeded) {
+			return FAILED;
+		} else if (snapshot == null) {
+			return used;
+		}
+		// Invariant: lo is known to fail, whilst hi is known to succeed
+		long lo = snapshot.consumed;
+		long hi = cap;
+		if (probe(pool, snapshot, used)) {
+			hi = used;
+		} else {
+			lo = used;
+		}
+		while ((hi - lo) > 1) {
+			long mid = lo + ((hi - lo) >>> 1);
+			if (probe(pool, snapshot, mid)) {
+				hi = mid;
+			} else {
+				lo = mid;
+			}
+		}
+		return hi;
+	}
+
+	/**
+	 * Get the number of probes performed so far, which excludes traced runs.
+	 *
+	 * @return
+	 */
+	public long getProbes() {
+		return probes;
+	}
+
+	/**
+	 * Get the number of instructions executed so far, including traced runs.
+	 *
+	 * @return
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Check whether execution succeeds from a given snapshot with a given total
+	 * amount of gas.
+	 *
+	 * @param pool
+	 * @param snapshot
+	 * @param gas
+	 * @return
+	 */
+	private boolean probe(FramePool pool, Snapshot snapshot, long gas) {
+		ArrayState state = snapshot.restore(pool.acquire(codeHash, code, gas, instructions));
+		steps += VirtualMachine.run(state);
+		probes++;
+		boolean succeeded = succeeded(state);
+		pool.release(state);
+		return succeeded;
+	}
+
+	/**
+	 * Check whether a state has either stopped or run off the end of its code.
+	 *
+	 * @param state
+	 * @return
+	 */
+	private static boolean succeeded(State state) {
+		return state.status() == Status.OK || state.status() == Status.STOP;
+	}
+
+	/**
+	 * Check whether a given program contains a <code>GAS</code> instruction.
+	 * Since <code>GAS</code> is never fused or folded, its handler always
+	 * remains in place.
+	 *
+	 * @param program
+	 * @return
+	 */
+	private static boolean reads(Program program) {
+		for (int handler : program.handlers) {
+			if (handler == Bytecode.GAS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A copy of the state of some code which has not yet halted, along with the
+	 * amount of gas consumed to reach it. This can be restored any number of
+	 * times, with a different amount of gas each time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Snapshot {
+		private final int pc;
+		private final long consumed;
+		private final w256[] stack;
+		private final w256[] local;
+		private final w256[] storage;
+
+		public Snapshot(State state, long consumed) {
+			this.pc = state.pc();
+			this.consumed = consumed;
+			this.stack = copy(state.getStackMemory());
+			this.local = copy(state.getLocalMemory());
+			this.storage = copy(state.getStorageMemory());
+		}
+
+		/**
+		 * Restore this snapshot into a freshly initialised state, whose gas is the
+		 * total amount (i.e. including that consumed before the snapshot).
+		 *
+		 * @param state
+		 * @return
+		 */
+		public ArrayState restore(ArrayState state) {
+			state.consume(consumed);
+			state.jump(pc);
+			for (w256 w : stack) {
+				state.getStackMemory().push(w);
+			}
+			restore(local, state.getLocalMemory());
+			restore(storage, state.getStorageMemory());
+			return state;
+		}
+
+		private static w256[] copy(VirtualMachine.Memory<w256> memory) {
+			w256[] words = new w256[memory.used()];
+			for (int i = 0; i != words.length; ++i) {
+				words[i] = memory.read(i);
+			}
+			return words;
+		}
+
+		private static void restore(w256[] words, VirtualMachine.Memory<w256> memory) {
+			if (words.length > 0) {
+				// NOTE: the amount of memory in use determines the cost of expanding it
+				memory.expand(w256.valueOf(words.length - 1));
+				for (int i = 0; i != words.length; ++i) {
+					memory.write(i, words[i]);
+				}
+			}
+		}
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that each estimate succeeds, whilst one less runs out of gas, for
+	 * code which both does and does not depend upon the amount of gas given.
+	 */
+	public static void testEstimate() {
+		System.out.println("*** TESTING ESTIMATE");
+		Random random = new Random(7);
+		int failures = 0;
+		// Spin until no more than 1000 gas remains, then stop
+		byte[] spin = { Bytecode.JUMPDEST, Bytecode.PUSH2, 0x03, (byte) 0xe8, Bytecode.GAS, Bytecode.GT,
+				Bytecode.PUSH1, 0x00, Bytecode.JUMPI, Bytecode.STOP };
+		// Likewise, after first writing to storage
+		byte[] prefixed = { Bytecode.PUSH1, 0x01, Bytecode.PUSH1, 0x00, Bytecode.SSTORE, Bytecode.JUMPDEST,
+				Bytecode.PUSH2, 0x03, (byte) 0xe8, Bytecode.GAS, Bytecode.GT, Bytecode.PUSH1, 0x05, Bytecode.JUMPI,
+				Bytecode.STOP };
+		for (int t = 0; t != 104; ++t) {
+			byte[] code = (t == 100) ? VirtualMachine.LOOP
+					: (t == 101) ? VirtualMachine.CONTRACT
+							: (t == 102) ? spin : (t == 103) ? prefixed : VirtualMachine.randomProgram(random);
+			GasEstimator estimator = new GasEstimator(null, code);
+			// NOTE: spinning consumes all gas, whilst loops require plenty
+			long estimate = estimator.estimate(t < 102 ? 1L << 40 : 1_000_000);
+			if (estimate == FAILED || !succeeds(code, estimate) || succeeds(code, estimate - 1)) {
+				failures++;
+				System.out.println("FAILED: estimate " + estimate + " for " + new ArrayState(code));
+			} else if (t >= 100) {
+				System.out.println(estimate + " gas, " + estimator.getProbes() + " probes, " + estimator.getSteps()
+						+ " steps");
+			}
+		}
+		// Priced according to the fork, where exponent bytes cost less in Homestead
+		byte[] exponent = { Bytecode.PUSH2, 0x01, 0x00, Bytecode.PUSH1, 0x02, Bytecode.EXP, Bytecode.STOP };
+		long homestead = new GasEstimator(null, exponent, InstructionSet.HOMESTEAD).estimate(1000);
+		long latest = new GasEstimator(null, exponent, InstructionSet.LATEST).estimate(1000);
+		if (homestead != 36 || latest != 116) {
+			failures++;
+			System.out.println("FAILED: exponent estimated as " + homestead + " and " + latest);
+		}
+		// Does not succeed with any amount
+		byte[] invalid = { Bytecode.PUSH1, 0x00, (byte) Bytecode.INVALID };
+		if (new GasEstimator(null, invalid).estimate(1000) != FAILED) {
+			failures++;
+			System.out.println("FAILED: estimate for invalid code");
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	private static boolean succeeds(byte[] code, long gas) {
+		ArrayState state = new ArrayState(null, code, gas);
+		while (state.status() == Status.OK && state.pc() < code.length) {
+			Bytecode.execute(state);
+		}
+		return succeeded(state);
+	}
+
+	public static void main(String[] args) {
+		testEstimate();
+		System.out.println("Frames: " + FramePool.local());
+	}
+}
@@ -0,0 +1,427 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.util.Arrays;
+
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+import jevm.util.Hex;
+import jevm.util.Word.w256;
+
+/**
+ * The instructions available in a given fork of the Ethereum protocol. This
+ * provides tables indexed by opcode byte giving the static gas cost, the
+ * number of stack items taken and returned, the width (including immediate
+ * data) and whether or not the opcode is valid. Opcodes which are not valid in
+ * a given fork behave as <code>INVALID</code>. Instruction sets are immutable,
+ * and one is chosen when a <code>VirtualMachine</code> is constructed. Thus,
+ * executing an instruction never depends upon the rules of a particular fork,
+ * only upon the tables of the chosen instruction set.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class InstructionSet {
+	/**
+	 * The Homestead fork, which predates the repricing of IO-heavy instructions
+	 * (EIP-150) and those instructions added in Byzantium.
+	 */
+	public static final InstructionSet HOMESTEAD;
+
+	/**
+	 * The Byzantium fork, which adds <code>RETURNDATASIZE</code>,
+	 * <code>RETURNDATACOPY</code>, <code>STATICCALL</code> and
+	 * <code>REVERT</code>.
+	 */
+	public static final InstructionSet BYZANTIUM;
+
+	/**
+	 * The Constantinople fork, which adds <code>SHL</code>, <code>SHR</code>,
+	 * <code>SAR</code> and <code>CREATE2</code>.
+	 */
+	public static final InstructionSet CONSTANTINOPLE;
+
+	/**
+	 * The most recent fork supported.
+	 */
+	public static final InstructionSet LATEST;
+
+	static {
+		CONSTANTINOPLE = new InstructionSet("Constantinople");
+		BYZANTIUM = new InstructionSet("Byzantium", CONSTANTINOPLE).remove(Bytecode.SHL, Bytecode.SHR, Bytecode.SAR,
+				Bytecode.CREATE2);
+		HOMESTEAD = new InstructionSet("Homestead", BYZANTIUM, 10)
+				.remove(Bytecode.RETURNDATASIZE, Bytecode.RETURNDATACOPY, Bytecode.STATICCALL, Bytecode.REVERT)
+				.reprice(20, Bytecode.BALANCE, Bytecode.EXTCODESIZE, Bytecode.EXTCODECOPY)
+				.reprice(50, Bytecode.SLOAD).reprice(40, Bytecode.CALL, Bytecode.CALLCODE, Bytecode.DELEGATECALL)
+				.reprice(0, Bytecode.SELFDESTRUCT);
+		LATEST = CONSTANTINOPLE;
+	}
+
+	private final String name;
+	private final Bytecode.Opcode[] opcodes;
+	private final int[] gas;
+	private final int[] arguments;
+	private final int[] returns;
+	private final int[] widths;
+	private final boolean[] valid;
+	private final Bytecode.Handler[] handlers;
+	private final Bytecode.LimbHandler[] limbHandlers;
+	private final int expbyte;
+
+	/**
+	 * Construct an instruction set containing every known opcode, with the
+	 * static gas costs given in <code>Bytecode.gas()</code>.
+	 *
+	 * @param name
+	 */
+	private InstructionSet(String name) {
+		this.name = name;
+		this.opcodes = new Bytecode.Opcode[256];
+		this.gas = new int[256];
+		this.arguments = new int[256];
+		this.returns = new int[256];
+		this.widths = new int[256];
+		this.valid = new boolean[256];
+		this.handlers = new Bytecode.Handler[256];
+		this.limbHandlers = new Bytecode.LimbHandler[256];
+		this.expbyte = Bytecode.G_expbyte;
+		for (int opcode = 0; opcode != 256; ++opcode) {
+			Bytecode.Opcode op = Bytecode.decode((byte) opcode);
+			if (op == Bytecode.Opcode.UNKNOWN) {
+				invalidate(opcode);
+			} else {
+				opcodes[opcode] = op;
+				gas[opcode] = Bytecode.gas(opcode);
+				arguments[opcode] = op.arguments;
+				returns[opcode] = op.returns;
+				widths[opcode] = op.width;
+				valid[opcode] = true;
+				handlers[opcode] = Bytecode.getHandler(opcode);
+				limbHandlers[opcode] = Bytecode.getLimbHandler(opcode);
+			}
+		}
+	}
+
+	/**
+	 * Construct a copy of a given instruction set, which can then be modified
+	 * before being published.
+	 *
+	 * @param name
+	 * @param parent
+	 */
+	private InstructionSet(String name, InstructionSet parent) {
+		this(name, parent, parent.expbyte);
+	}
+
+	/**
+	 * Construct a copy of a given instruction set with a different gas cost for
+	 * each byte of the exponent given to <code>EXP</code>.
+	 *
+	 * @param name
+	 * @param parent
+	 * @param expbyte
+	 */
+	private InstructionSet(String name, InstructionSet parent, int expbyte) {
+		this.name = name;
+		this.opcodes = Arrays.copyOf(parent.opcodes, 256);
+		this.gas = Arrays.copyOf(parent.gas, 256);
+		this.arguments = Arrays.copyOf(parent.arguments, 256);
+		this.returns = Arrays.copyOf(parent.returns, 256);
+		this.widths = Arrays.copyOf(parent.widths, 256);
+		this.valid = Arrays.copyOf(parent.valid, 256);
+		this.handlers = Arrays.copyOf(parent.handlers, 256);
+		this.limbHandlers = Arrays.copyOf(parent.limbHandlers, 256);
+		this.expbyte = expbyte;
+	}
+
+	/**
+	 * Get the name of the fork which this instruction set represents.
+	 *
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Decode a given opcode, returning <code>UNKNOWN</code> if it is not valid in
+	 * this instruction set.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public Bytecode.Opcode decode(byte opcode) {
+		return opcodes[opcode & 0xFF];
+	}
+
+	/**
+	 * Get the static gas cost of a given opcode (see <code>Bytecode.gas()</code>).
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public int gas(int opcode) {
+		return gas[opcode];
+	}
+
+	/**
+	 * Get the gas cost of each byte of the exponent given to <code>EXP</code>,
+	 * which is charged in addition to its static cost (see EIP-160).
+	 *
+	 * @return
+	 */
+	public int gasExpByte() {
+		return expbyte;
+	}
+
+	/**
+	 * Get the number of items a given opcode takes off the stack.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public int arguments(int opcode) {
+		return arguments[opcode];
+	}
+
+	/**
+	 * Get the number of items a given opcode places on the stack.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public int returns(int opcode) {
+		return returns[opcode];
+	}
+
+	/**
+	 * Get the width (in bytes) of a given opcode, including any immediate data.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public int width(int opcode) {
+		return widths[opcode];
+	}
+
+	/**
+	 * Check whether a given opcode is valid in this instruction set.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public boolean isValid(int opcode) {
+		return valid[opcode];
+	}
+
+	/**
+	 * Get the handler for a given opcode (see <code>Bytecode.dispatch()</code>).
+	 * Opcodes which are not valid are handled as <code>INVALID</code>.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public Bytecode.Handler getHandler(int opcode) {
+		return handlers[opcode];
+	}
+
+	/**
+	 * Get the handler for a given opcode when the stack is primitive (see
+	 * <code>Bytecode.dispatch()</code>). Opcodes which are not valid are handled
+	 * as <code>INVALID</code>.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public Bytecode.LimbHandler getLimbHandler(int opcode) {
+		return limbHandlers[opcode];
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Remove some opcodes from this instruction set. This must only be used
+	 * during construction.
+	 *
+	 * @param opcodes
+	 * @return
+	 */
+	private InstructionSet remove(int... opcodes) {
+		for (int opcode : opcodes) {
+			invalidate(opcode);
+		}
+		return this;
+	}
+
+	/**
+	 * Change the static gas cost of some opcodes in this instruction set. This
+	 * must only be used during construction.
+	 *
+	 * @param cost
+	 * @param opcodes
+	 * @return
+	 */
+	private InstructionSet reprice(int cost, int... opcodes) {
+		for (int opcode : opcodes) {
+			gas[opcode] = cost;
+		}
+		return this;
+	}
+
+	private void invalidate(int opcode) {
+		opcodes[opcode] = Bytecode.Opcode.UNKNOWN;
+		gas[opcode] = 0;
+		arguments[opcode] = 0;
+		returns[opcode] = 0;
+		widths[opcode] = 1;
+		valid[opcode] = false;
+		handlers[opcode] = Bytecode.getHandler(Bytecode.INVALID);
+		limbHandlers[opcode] = Bytecode.getLimbHandler(Bytecode.INVALID);
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that each fork accepts exactly the opcodes it should, and that the
+	 * shift instructions behave as specified in EIP-145.
+	 */
+	public static void testForks() {
+		System.out.println("*** TESTING FORKS");
+		int failures = 0;
+		int[][] added = { {}, { Bytecode.RETURNDATASIZE, Bytecode.RETURNDATACOPY, Bytecode.STATICCALL,
+				Bytecode.REVERT }, { Bytecode.SHL, Bytecode.SHR, Bytecode.SAR, Bytecode.CREATE2 } };
+		InstructionSet[] forks = { HOMESTEAD, BYZANTIUM, CONSTANTINOPLE };
+		for (int i = 0; i != forks.length; ++i) {
+			for (int j = 0; j != added.length; ++j) {
+				for (int opcode : added[j]) {
+					if (forks[i].isValid(opcode) != (j <= i)) {
+						failures++;
+						System.out.println("FAILED: " + forks[i] + " " + Bytecode.decode((byte) opcode));
+					}
+				}
+			}
+		}
+		if (HOMESTEAD.gas(Bytecode.SLOAD) != 50 || BYZANTIUM.gas(Bytecode.SLOAD) != Bytecode.G_sload) {
+			failures++;
+			System.out.println("FAILED: SLOAD repricing");
+		}
+		// Examples from EIP-145, as (value, shift, SHL, SHR, SAR)
+		String one = "0000000000000000000000000000000000000000000000000000000000000001";
+		String min = "8000000000000000000000000000000000000000000000000000000000000000";
+		String max = "7fffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff";
+		String ones = "ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff";
+		String zero = "0000000000000000000000000000000000000000000000000000000000000000";
+		String[][] examples = {
+				{ one, "00", one, one, one },
+				{ one, "01", "0000000000000000000000000000000000000000000000000000000000000002", zero, zero },
+				{ one, "ff", min, zero, zero },
+				{ one, "0100", zero, zero, zero },
+				{ min, "01", zero, "4000000000000000000000000000000000000000000000000000000000000000",
+						"c000000000000000000000000000000000000000000000000000000000000000" },
+				{ min, "ff", zero, one, ones },
+				{ min, "0100", zero, zero, ones },
+				{ ones, "ff", min, one, ones },
+				{ max, "fe", "c000000000000000000000000000000000000000000000000000000000000000",
+						one, one } };
+		int[] shifts = { Bytecode.SHL, Bytecode.SHR, Bytecode.SAR };
+		for (String[] example : examples) {
+			for (int k = 0; k != shifts.length; ++k) {
+				String code = "7f" + example[0] + "61" + (example[1].length() == 2 ? "00" : "") + example[1]
+						+ String.format("%02x", shifts[k]);
+				String expected = example[2 + k];
+				for (VirtualMachine.Dispatch dispatch : VirtualMachine.Dispatch.values()) {
+					ArrayState state = new ArrayState(Hex.fromBigEndianString(code));
+					new VirtualMachine(dispatch, CONSTANTINOPLE).execute(state, Long.MAX_VALUE);
+					VirtualMachine.Stack<w256> stack = state.getStackMemory();
+					String actual = Hex.toBigEndianString(stack.read(stack.used() - 1).toByteArray());
+					if (!actual.equalsIgnoreCase(expected)) {
+						failures++;
+						System.out.println("FAILED: " + code + " gives " + actual);
+					}
+				}
+				// Not available before Constantinople, whether stepped, run or compiled
+				byte[] bytes = Hex.fromBigEndianString(code);
+				ArrayState[] states = new ArrayState[3];
+				for (int i = 0; i != states.length; ++i) {
+					states[i] = new ArrayState(null, bytes, Long.MAX_VALUE, BYZANTIUM);
+				}
+				new VirtualMachine(BYZANTIUM).execute(states[0], Long.MAX_VALUE);
+				VirtualMachine.run(states[1]);
+				Compiler.execute(states[2], Compiler.compile(states[2].getProgram()), Long.MAX_VALUE);
+				for (ArrayState state : states) {
+					if (state.status() != Status.EXCEPTION) {
+						failures++;
+						System.out.println("FAILED: " + code + " accepted by " + BYZANTIUM);
+					}
+				}
+			}
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	/**
+	 * Check that the cost of each byte of an exponent is that of the fork (see
+	 * EIP-160), on every execution path and in the static bound.
+	 */
+	public static void testExponent() {
+		System.out.println("*** TESTING EXPONENT");
+		int failures = 0;
+		// PUSH2 0x0100, PUSH1 2, EXP
+		byte[] code = Hex.fromBigEndianString("61010060020a");
+		InstructionSet[] forks = { HOMESTEAD, BYZANTIUM, CONSTANTINOPLE };
+		int[] expected = { 36, 116, 116 };
+		for (int i = 0; i != forks.length; ++i) {
+			InstructionSet fork = forks[i];
+			ArrayState[] states = new ArrayState[4];
+			for (int j = 0; j != states.length; ++j) {
+				states[j] = new ArrayState(null, code, 1000, fork);
+			}
+			new VirtualMachine(VirtualMachine.Dispatch.SWITCH, fork).execute(states[0], Long.MAX_VALUE);
+			new VirtualMachine(VirtualMachine.Dispatch.TABLE, fork).execute(states[1], Long.MAX_VALUE);
+			VirtualMachine.run(states[2]);
+			Compiler.execute(states[3], Compiler.compile(states[3].getProgram()), Long.MAX_VALUE);
+			for (ArrayState state : states) {
+				long used = 1000 - state.gas();
+				if (state.status() != Status.OK || used != expected[i]) {
+					failures++;
+					System.out.println("FAILED: " + fork + " used " + used + " (" + state.status() + ")");
+				}
+			}
+			if (states[0].getProgram().getBound().gas() != 16 + (32 * fork.gasExpByte())) {
+				failures++;
+				System.out.println("FAILED: " + fork + " bound " + states[0].getProgram().getBound());
+			}
+		}
+		// Programs are cached for each fork separately
+		w256 hash = w256.valueOf(0xE1E0);
+		if (Program.of(hash, code, HOMESTEAD) == Program.of(hash, code, CONSTANTINOPLE)
+				|| Program.of(hash, code, HOMESTEAD).getInstructionSet() != HOMESTEAD) {
+			failures++;
+			System.out.println("FAILED: program cache shared between forks");
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	public static void main(String[] args) {
+		testForks();
+		testExponent();
+	}
+}
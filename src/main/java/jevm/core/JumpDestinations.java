@@ -0,0 +1,117 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import jevm.util.CodeCache;
+import jevm.util.Word.w256;
+
+/**
+ * Identifies the valid jump destinations within some contract code. That is,
+ * every position holding a <code>JUMPDEST</code> instruction. Importantly, a
+ * <code>0x5b</code> byte which occurs within the immediate data of a
+ * <code>PUSH</code> instruction is not a valid destination. The destinations
+ * are held in a compact bitset, such that checking a jump target is a single
+ * bit test. Since this analysis depends only on the code, it is shared across
+ * all executions of the same code via a bounded cache keyed by code hash.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class JumpDestinations {
+	/**
+	 * Cache of analyses for recently executed code.
+	 */
+	private static final CodeCache<JumpDestinations> CACHE = new CodeCache<>(1024);
+
+	/**
+	 * Bitset where bit <code>i</code> is set if position <code>i</code> is a
+	 * valid jump destination.
+	 */
+	private final long[] bits;
+
+	/**
+	 * The length of the code in bytes.
+	 */
+	private final int length;
+
+	private JumpDestinations(long[] bits, int length) {
+		this.bits = bits;
+		this.length = length;
+	}
+
+	/**
+	 * Check whether a given position is a valid jump destination. Positions
+	 * outside the code are never valid.
+	 *
+	 * @param pc
+	 * @return
+	 */
+	public boolean isValid(int pc) {
+		return pc >= 0 && pc < length && (bits[pc >>> 6] & (1L << pc)) != 0;
+	}
+
+	/**
+	 * Get the jump destinations for some code with a known hash, using the
+	 * analysis cache where possible.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @return
+	 */
+	public static JumpDestinations of(w256 codeHash, byte[] code) {
+		return CACHE.get(codeHash, code, JumpDestinations::analyse);
+	}
+
+	/**
+	 * Get the cache of jump destination analyses, such as for monitoring.
+	 *
+	 * @return
+	 */
+	public static CodeCache<JumpDestinations> getCache() {
+		return CACHE;
+	}
+
+	/**
+	 * Determine the jump destinations of some code by a single pass over it,
+	 * skipping the immediate data of push instructions.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public static JumpDestinations analyse(byte[] code) {
+		long[] bits = new long[(code.length + 63) >>> 6];
+		for (int pc = 0; pc < code.length; ++pc) {
+			int opcode = code[pc] & 0xFF;
+			if (opcode == Bytecode.JUMPDEST) {
+				bits[pc >>> 6] |= 1L << pc;
+			} else if (opcode >= Bytecode.PUSH1 && opcode <= Bytecode.PUSH32) {
+				pc += opcode - Bytecode.PUSH1 + 1;
+			}
+		}
+		return new JumpDestinations(bits, code.length);
+	}
+
+	public static void main(String[] args) {
+		byte[] code = { Bytecode.JUMPDEST, Bytecode.PUSH2, Bytecode.JUMPDEST, Bytecode.JUMPDEST, Bytecode.JUMPDEST,
+				Bytecode.PUSH1, Bytecode.JUMPDEST };
+		JumpDestinations jumps = analyse(code);
+		boolean[] expected = { true, false, false, false, true, false, false };
+		for (int i = -1; i <= code.length; ++i) {
+			boolean e = i >= 0 && i < code.length && expected[i];
+			if (jumps.isValid(i) != e) {
+				System.out.println("*** ERROR: " + i + " => " + jumps.isValid(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,1055 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jevm.util.CodeCache;
+import jevm.util.Hex;
+import jevm.util.Word.m256;
+import jevm.util.Word.w256;
+
+/**
+ * A pre-decoded form of some contract code, which is produced once and then
+ * executed by <code>VirtualMachine.run()</code>. Code is decoded into a
+ * sequence of instructions, each of which has a handler identifier and an
+ * argument. The operands of <code>PUSH</code> instructions are decoded into a
+ * constant pool of ready-made words (with the argument identifying the
+ * constant), whilst <code>DUP</code> and <code>SWAP</code> instructions have
+ * their depth as the argument. Jump targets are remapped from positions in the
+ * code to instruction indices. The instruction sequence is terminated by an
+ * <code>END</code> handler, which signals that execution ran off the end of
+ * the code.
+ * <p>
+ * The code is also split into basic blocks, each of which begins with a
+ * <code>BLOCK</code> handler identifying it. For each block, the static gas
+ * cost, the minimum stack height required on entry and the maximum growth of
+ * the stack within it are determined. This allows gas and the stack bounds to
+ * be checked once on entry to a block, rather than for every instruction
+ * within it. Blocks begin at the start of the code, at every
+ * <code>JUMPDEST</code>, and after every instruction which ends a block (see
+ * <code>Bytecode.isTerminator()</code>).
+ * </p>
+ * <p>
+ * Within each block, runs of instructions which only push constants and
+ * shuffle the stack are executed symbolically, treating each stack slot as a
+ * virtual register holding either a known constant or a word present at the
+ * start of the run. A run whose overall effect is to push a single constant
+ * (e.g. <code>PUSH1 0x01; PUSH1 0x02; ADD</code>) is folded into a
+ * <code>FOLD</code> instruction, whilst one which has no overall effect (e.g.
+ * <code>DUP2; POP</code>) is folded into a <code>SKIP</code> instruction.
+ * </p>
+ * <p>
+ * Finally, common sequences of instructions are fused into superinstructions,
+ * which are executed as a single step. The handler of the first instruction in
+ * a sequence is replaced by that of the superinstruction, but the remaining
+ * instructions are left in place. Thus, execution can still resume part way
+ * through a sequence. Since no sequence spans more than one block, the gas
+ * and stack bounds of its block already account for it.
+ * </p>
+ * Since this depends only on the code, it is shared across all executions of
+ * the same code via a bounded cache keyed by code hash.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Program {
+	/**
+	 * Handler identifier for the end of the code. Handler identifiers for
+	 * ordinary instructions are their opcodes, hence this lies outside the range
+	 * of opcodes.
+	 */
+	public static final int END = 0x100;
+
+	/**
+	 * Handler identifier for the start of a basic block, whose argument
+	 * identifies the block. This is not an instruction.
+	 */
+	public static final int BLOCK = 0x101;
+
+	/**
+	 * Superinstruction for <code>PUSHn; JUMP</code>, whose argument is the
+	 * (remapped) target or <code>-1</code> if that is invalid.
+	 */
+	public static final int PUSH_JUMP = 0x102;
+
+	/**
+	 * Superinstruction for <code>PUSHn; JUMPI</code>, whose argument is the
+	 * (remapped) target or <code>-1</code> if that is invalid.
+	 */
+	public static final int PUSH_JUMPI = 0x103;
+
+	/**
+	 * Superinstruction for <code>ISZERO; PUSHn; JUMPI</code>, whose argument is
+	 * the (remapped) target or <code>-1</code> if that is invalid.
+	 */
+	public static final int ISZERO_PUSH_JUMPI = 0x104;
+
+	/**
+	 * Superinstruction for <code>DUPn; SWAPm</code>, whose argument is
+	 * <code>(n << 8) | m</code>.
+	 */
+	public static final int DUP_SWAP = 0x105;
+
+	/**
+	 * Superinstruction for <code>PUSHn; ADD</code>, whose argument identifies
+	 * the constant. The most common case is <code>PUSH1 0x20; ADD</code>.
+	 */
+	public static final int PUSH_ADD = 0x106;
+
+	/**
+	 * Folded run of instructions which pushes a single constant, whose argument
+	 * is <code>(k << 8) | n</code> for constant <code>k</code> and a run of
+	 * <code>n</code> instructions.
+	 */
+	public static final int FOLD = 0x107;
+
+	/**
+	 * Folded run of instructions which has no overall effect, whose argument is
+	 * the number of instructions in the run.
+	 */
+	public static final int SKIP = 0x108;
+
+	/**
+	 * Names of superinstructions, indexed from <code>PUSH_JUMP</code>.
+	 */
+	private static final String[] SUPERINSTRUCTIONS = { "PUSH_JUMP", "PUSH_JUMPI", "ISZERO_PUSH_JUMPI", "DUP_SWAP",
+			"PUSH_ADD", "FOLD", "SKIP" };
+
+	/**
+	 * The number of distinct superinstructions.
+	 */
+	static final int FUSIONS = SUPERINSTRUCTIONS.length;
+
+	/**
+	 * Number of stack slots below the start of a run which folding can
+	 * account for. This is enough for <code>SWAP16</code> plus a few
+	 * <code>POP</code>s.
+	 */
+	private static final int FOLD_DEPTH = 24;
+
+	/**
+	 * Maximum number of instructions in a folded run, which must fit into the
+	 * argument of <code>FOLD</code> alongside the constant.
+	 */
+	private static final int FOLD_LENGTH = 255;
+
+	/**
+	 * Number of times each superinstruction has been executed, indexed from
+	 * <code>PUSH_JUMP</code>.
+	 */
+	private static final LongAdder[] HITS = new LongAdder[SUPERINSTRUCTIONS.length];
+
+	static {
+		for (int i = 0; i != HITS.length; ++i) {
+			HITS[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Caches of programs for recently executed code, one for each instruction
+	 * set since the same code decodes differently in different forks.
+	 */
+	private static final ConcurrentHashMap<InstructionSet, CodeCache<Program>> CACHES = new ConcurrentHashMap<>();
+
+	/**
+	 * The handler identifier of each instruction.
+	 */
+	final int[] handlers;
+
+	/**
+	 * The argument of each instruction.
+	 */
+	final int[] arguments;
+
+	/**
+	 * The position in the code of each instruction.
+	 */
+	final int[] positions;
+
+	/**
+	 * Maps each position in the code to the index of the instruction there, or
+	 * <code>-1</code> for positions within the immediate data of a
+	 * <code>PUSH</code>. The position immediately after the code maps to the
+	 * <code>END</code> instruction.
+	 */
+	final int[] indices;
+
+	/**
+	 * The constant pool, where each constant occupies four consecutive limbs
+	 * (most significant first).
+	 */
+	final long[] constants;
+
+	/**
+	 * The static gas cost of the remainder of the enclosing block from each
+	 * instruction onwards, or zero for a block leader. This is the gas to refund
+	 * when execution stops part way through a block which was charged on entry.
+	 */
+	final int[] remainders;
+
+	/**
+	 * The static gas cost of each block.
+	 */
+	final int[] costs;
+
+	/**
+	 * The minimum stack height required on entry to each block.
+	 */
+	final int[] minimums;
+
+	/**
+	 * The maximum height of the stack within each block, relative to its height
+	 * on entry.
+	 */
+	final int[] growths;
+
+	/**
+	 * The bound on gas consumed when executing from the start of the code.
+	 */
+	final GasBound bound;
+
+	/**
+	 * The instruction set for which the code was decoded.
+	 */
+	final InstructionSet instructions;
+
+	private Program(int[] handlers, int[] arguments, int[] positions, int[] indices, long[] constants,
+			int[] remainders, int[] costs, int[] minimums, int[] growths, GasBound bound,
+			InstructionSet instructions) {
+		this.handlers = handlers;
+		this.arguments = arguments;
+		this.positions = positions;
+		this.indices = indices;
+		this.constants = constants;
+		this.remainders = remainders;
+		this.costs = costs;
+		this.minimums = minimums;
+		this.growths = growths;
+		this.bound = bound;
+		this.instructions = instructions;
+	}
+
+	/**
+	 * Get the instruction set for which this program was decoded.
+	 *
+	 * @return
+	 */
+	public InstructionSet getInstructionSet() {
+		return instructions;
+	}
+
+	/**
+	 * Get the bound on gas consumed and instructions executed, when executing
+	 * from the start of the code (see <code>GasBound</code>).
+	 *
+	 * @return
+	 */
+	public GasBound getBound() {
+		return bound;
+	}
+
+	/**
+	 * Get the number of handlers in this program, including those for the start
+	 * of each block but excluding that for the end.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return handlers.length - 1;
+	}
+
+	/**
+	 * Get the number of basic blocks in this program.
+	 *
+	 * @return
+	 */
+	public int blocks() {
+		return costs.length;
+	}
+
+	/**
+	 * Get the static gas cost of a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int cost(int block) {
+		return costs[block];
+	}
+
+	/**
+	 * Get the minimum stack height required on entry to a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int minimum(int block) {
+		return minimums[block];
+	}
+
+	/**
+	 * Get the maximum growth of the stack within a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int growth(int block) {
+		return growths[block];
+	}
+
+	/**
+	 * Get the length of the original code in bytes.
+	 *
+	 * @return
+	 */
+	public int length() {
+		return indices.length - 1;
+	}
+
+	/**
+	 * Get the index of the instruction at a given position in the code, or
+	 * <code>-1</code> if no instruction starts there.
+	 *
+	 * @param pc
+	 * @return
+	 */
+	public int indexOf(int pc) {
+		return pc >= 0 && pc < indices.length ? indices[pc] : -1;
+	}
+
+	/**
+	 * Get the index of the handler to which a jump to a given position transfers
+	 * control, or <code>-1</code> if that is not a valid jump destination. Since
+	 * every <code>JUMPDEST</code> begins a block, this is the start of that
+	 * block.
+	 *
+	 * @param pc
+	 * @return
+	 */
+	public int target(int pc) {
+		return target(handlers, indices, pc);
+	}
+
+	/**
+	 * Get the number of words in the constant pool.
+	 *
+	 * @return
+	 */
+	public int constants() {
+		return constants.length >> 2;
+	}
+
+	/**
+	 * Get a given word from the constant pool.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public w256 constant(int i) {
+		int j = i << 2;
+		return w256.valueOf(constants[j], constants[j + 1], constants[j + 2], constants[j + 3]);
+	}
+
+	@Override
+	public String toString() {
+		String r = "[";
+		for (int i = 0; i < size(); ++i) {
+			if (i != 0) {
+				r += ",";
+			}
+			int handler = handlers[i];
+			if (handler == BLOCK) {
+				int b = arguments[i];
+				r += "BLOCK(" + costs[b] + "," + minimums[b] + "," + growths[b] + ")";
+				continue;
+			}
+			if (handler >= PUSH_JUMP) {
+				r += SUPERINSTRUCTIONS[handler - PUSH_JUMP] + "(" + arguments[i] + ")";
+				continue;
+			}
+			r += Bytecode.decode((byte) handler);
+			if (handler >= Bytecode.PUSH1 && handler <= Bytecode.PUSH32) {
+				r += " " + constant(arguments[i]);
+			}
+		}
+		return r + "]";
+	}
+
+	/**
+	 * Get the number of times a given superinstruction has been executed, across
+	 * all programs.
+	 *
+	 * @param handler
+	 * @return
+	 */
+	public static long getFusionHits(int handler) {
+		return HITS[handler - PUSH_JUMP].sum();
+	}
+
+	/**
+	 * Record the number of times each superinstruction was executed, indexed
+	 * from <code>PUSH_JUMP</code>. The given counts are reset.
+	 *
+	 * @param hits
+	 */
+	static void recordFusionHits(long[] hits) {
+		for (int i = 0; i != hits.length; ++i) {
+			if (hits[i] != 0) {
+				HITS[i].add(hits[i]);
+				hits[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Get a summary of the number of times each superinstruction has been
+	 * executed, such as for monitoring.
+	 *
+	 * @return
+	 */
+	public static String getFusionStatistics() {
+		String r = "";
+		for (int i = 0; i != HITS.length; ++i) {
+			if (i != 0) {
+				r += ", ";
+			}
+			r += SUPERINSTRUCTIONS[i] + "=" + HITS[i].sum();
+		}
+		return r;
+	}
+
+	/**
+	 * Get the program for some code with a known hash, using the program cache
+	 * where possible.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @return
+	 */
+	public static Program of(w256 codeHash, byte[] code) {
+		return of(codeHash, code, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Get the program for some code with a known hash in a given instruction
+	 * set, using the program cache for that instruction set where possible.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param instructions
+	 * @return
+	 */
+	public static Program of(w256 codeHash, byte[] code, InstructionSet instructions) {
+		return getCache(instructions).get(codeHash, code, c -> decode(c, instructions));
+	}
+
+	/**
+	 * Get the cache of programs for the latest instruction set, such as for
+	 * monitoring.
+	 *
+	 * @return
+	 */
+	public static CodeCache<Program> getCache() {
+		return getCache(InstructionSet.LATEST);
+	}
+
+	/**
+	 * Get the cache of programs for a given instruction set.
+	 *
+	 * @param instructions
+	 * @return
+	 */
+	public static CodeCache<Program> getCache(InstructionSet instructions) {
+		return CACHES.computeIfAbsent(instructions, i -> new CodeCache<>(1024));
+	}
+
+	/**
+	 * Decode some code into a program by a single pass over it. Identical
+	 * operands are shared in the constant pool, and bytes of immediate data
+	 * beyond the end of the code read as zero. The argument of a <code>GAS</code>
+	 * instruction is the static gas cost of the remainder of its block, which has
+	 * already been charged on entry to the block. Likewise, the argument of an
+	 * instruction with a dynamic cost (e.g. <code>MSTORE</code>) is the static
+	 * gas cost of the block from that instruction onwards. This allows the gas
+	 * available when stepping one instruction at a time to be recovered, should
+	 * the dynamic cost not be met.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public static Program decode(byte[] code) {
+		return decode(code, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Decode some code into a program for a given instruction set. Opcodes which
+	 * are not valid in that instruction set are decoded as <code>INVALID</code>.
+	 *
+	 * @param code
+	 * @param instructions
+	 * @return
+	 */
+	public static Program decode(byte[] code, InstructionSet instructions) {
+		// NOTE: at most one block starts at each instruction
+		int capacity = (2 * code.length) + 1;
+		int[] handlers = new int[capacity];
+		int[] arguments = new int[capacity];
+		int[] positions = new int[capacity];
+		int[] indices = new int[code.length + 1];
+		Pool pool = new Pool();
+		int[] costs = new int[16];
+		int[] minimums = new int[16];
+		int[] growths = new int[16];
+		Arrays.fill(indices, -1);
+		int n = 0;
+		int block = -1;
+		// Stack height relative to entry of current block
+		int height = 0;
+		boolean leader = true;
+		for (int pc = 0; pc < code.length; ++pc) {
+			int opcode = code[pc] & 0xFF;
+			if (!instructions.isValid(opcode)) {
+				opcode = Bytecode.INVALID;
+			}
+			if (leader || opcode == Bytecode.JUMPDEST) {
+				// Start a new block
+				block = block + 1;
+				if (block == costs.length) {
+					costs = Arrays.copyOf(costs, block * 2);
+					minimums = Arrays.copyOf(minimums, block * 2);
+					growths = Arrays.copyOf(growths, block * 2);
+				}
+				height = 0;
+				indices[pc] = n;
+				positions[n] = pc;
+				handlers[n] = BLOCK;
+				arguments[n] = block;
+				n = n + 1;
+			} else {
+				indices[pc] = n;
+			}
+			positions[n] = pc;
+			handlers[n] = opcode;
+			// Update properties of current block
+			int taken = instructions.arguments(opcode);
+			costs[block] += instructions.gas(opcode);
+			minimums[block] = Math.max(minimums[block], taken - height);
+			height = height + instructions.returns(opcode) - taken;
+			growths[block] = Math.max(growths[block], height);
+			leader = Bytecode.isTerminator(opcode);
+			if (opcode >= Bytecode.PUSH1 && opcode <= Bytecode.PUSH32) {
+				int count = opcode - Bytecode.PUSH1 + 1;
+				// Accumulate operand into limbs, where l0 is the most significant
+				long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+				for (int i = 1; i <= count; ++i) {
+					int pos = pc + i;
+					l0 = (l0 << 8) | (l1 >>> 56);
+					l1 = (l1 << 8) | (l2 >>> 56);
+					l2 = (l2 << 8) | (l3 >>> 56);
+					l3 = (l3 << 8) | (pos < code.length ? code[pos] & 0xFF : 0);
+				}
+				arguments[n] = pool.add(l0, l1, l2, l3);
+				pc += count;
+			} else if (opcode >= Bytecode.DUP1 && opcode <= Bytecode.DUP16) {
+				arguments[n] = opcode - Bytecode.DUP1 + 1;
+			} else if (opcode >= Bytecode.SWAP1 && opcode <= Bytecode.SWAP16) {
+				arguments[n] = opcode - Bytecode.SWAP1 + 1;
+			}
+			n = n + 1;
+		}
+		// Terminate the instruction sequence
+		indices[code.length] = n;
+		positions[n] = code.length;
+		handlers[n] = END;
+		n = n + 1;
+		// Determine the remaining cost of each block after a GAS instruction, and
+		// from each instruction (in particular, one with a dynamic cost)
+		int[] remainders = new int[n];
+		int remaining = 0;
+		for (int i = n - 1; i >= 0; --i) {
+			int handler = handlers[i];
+			if (handler == BLOCK || handler == END) {
+				remaining = 0;
+			} else {
+				if (handler == Bytecode.GAS) {
+					arguments[i] = remaining;
+				}
+				remaining += instructions.gas(handler);
+				remainders[i] = remaining;
+				if (isMetered(handler)) {
+					arguments[i] = remaining;
+				}
+			}
+		}
+		fold(handlers, arguments, pool, n);
+		fuse(handlers, arguments, indices, pool.limbs, n);
+		block = block + 1;
+		return new Program(Arrays.copyOf(handlers, n), Arrays.copyOf(arguments, n), Arrays.copyOf(positions, n),
+				indices, pool.toArray(), remainders, Arrays.copyOf(costs, block), Arrays.copyOf(minimums, block),
+				Arrays.copyOf(growths, block), GasBound.analyse(code, instructions), instructions);
+	}
+
+	/**
+	 * Fold runs of instructions which only push constants, operate on them and
+	 * shuffle the stack. Each run is executed symbolically over an abstract
+	 * stack, where each slot holds either a known constant or a word present on
+	 * the stack at the start of the run. Runs never span more than one block,
+	 * hence the gas and stack bounds of the block already account for them.
+	 * Likewise, since stack heights within a block are static, execution which
+	 * resumes part way through a run (i.e. in its original instructions) leaves
+	 * the stack exactly as the folded run would. Only the handler of the first
+	 * instruction in a run is replaced.
+	 *
+	 * @param handlers
+	 * @param arguments
+	 * @param pool
+	 * @param n
+	 *            Number of handlers
+	 */
+	private static void fold(int[] handlers, int[] arguments, Pool pool, int n) {
+		// Abstract stack, where non-negative entries identify known constants and
+		// negative entries identify words present at the start of the run.
+		int[] stack = new int[FOLD_DEPTH + FOLD_LENGTH];
+		// Known constants, each occupying four limbs
+		long[] values = new long[FOLD_LENGTH << 2];
+		long[] operands = new long[12];
+		m256 a = new m256();
+		m256 b = new m256();
+		m256 c = new m256();
+		int i = 0;
+		while (i < n) {
+			// Slot FOLD_DEPTH - 1 - d initially holds the word at depth d
+			for (int d = 0; d != FOLD_DEPTH; ++d) {
+				stack[FOLD_DEPTH - 1 - d] = -(d + 1);
+			}
+			int sp = FOLD_DEPTH;
+			// Lowest slot accessed by the run
+			int low = FOLD_DEPTH;
+			int count = 0;
+			// End of longest run which can be folded, and its result
+			int end = -1;
+			int result = -1;
+			for (int j = i; j < n && j - i < FOLD_LENGTH; ++j) {
+				int handler = handlers[j];
+				int argument = arguments[j];
+				int from;
+				if (handler >= Bytecode.PUSH1 && handler <= Bytecode.PUSH32) {
+					from = sp;
+					System.arraycopy(pool.limbs, argument << 2, values, count << 2, 4);
+					stack[sp++] = count++;
+				} else if (handler >= Bytecode.DUP1 && handler <= Bytecode.DUP16) {
+					from = sp - argument;
+					if (from < 0) {
+						break;
+					}
+					stack[sp++] = stack[from];
+				} else if (handler >= Bytecode.SWAP1 && handler <= Bytecode.SWAP16) {
+					from = sp - 1 - argument;
+					if (from < 0) {
+						break;
+					}
+					int tmp = stack[from];
+					stack[from] = stack[sp - 1];
+					stack[sp - 1] = tmp;
+				} else if (handler == Bytecode.POP) {
+					from = sp - 1;
+					if (from < 0) {
+						break;
+					}
+					sp = from;
+				} else if (isFoldable(handler)) {
+					int arity = Bytecode.decode((byte) handler).arguments;
+					from = sp - arity;
+					if (from < 0 || !isKnown(stack, from, sp)) {
+						break;
+					}
+					// Lay out operands as on the stack, where the first is on top
+					for (int k = 0; k != arity; ++k) {
+						System.arraycopy(values, stack[sp - 1 - k] << 2, operands, (arity - 1 - k) << 2, 4);
+					}
+					evaluate(handler, operands, (arity - 1) << 2, a, b, c);
+					System.arraycopy(operands, 0, values, count << 2, 4);
+					stack[from] = count++;
+					sp = from + 1;
+				} else {
+					break;
+				}
+				low = Math.min(low, from);
+				if (isUnchanged(stack, low)) {
+					if (sp == FOLD_DEPTH) {
+						end = j;
+						result = -1;
+					} else if (sp == FOLD_DEPTH + 1 && stack[FOLD_DEPTH] >= 0) {
+						end = j;
+						result = stack[FOLD_DEPTH];
+					}
+				}
+			}
+			if (end > i) {
+				int length = end - i + 1;
+				if (result < 0) {
+					handlers[i] = SKIP;
+					arguments[i] = length;
+				} else {
+					int r = result << 2;
+					int k = pool.add(values[r], values[r + 1], values[r + 2], values[r + 3]);
+					handlers[i] = FOLD;
+					arguments[i] = (k << 8) | length;
+				}
+				i = end + 1;
+			} else {
+				i = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Check whether every slot in a given range of the abstract stack holds a
+	 * known constant.
+	 */
+	private static boolean isKnown(int[] stack, int from, int to) {
+		for (int p = from; p < to; ++p) {
+			if (stack[p] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether every slot of the abstract stack from a given slot upto the
+	 * start of the run still holds the word it held at the start.
+	 */
+	private static boolean isUnchanged(int[] stack, int low) {
+		for (int p = low; p < FOLD_DEPTH; ++p) {
+			if (stack[p] != -(FOLD_DEPTH - p)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a given instruction has a dynamic gas cost, in addition to
+	 * its static cost.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	static boolean isMetered(int opcode) {
+		switch (opcode) {
+		case Bytecode.EXP:
+		case Bytecode.SHA3:
+		case Bytecode.MLOAD:
+		case Bytecode.MSTORE:
+		case Bytecode.SSTORE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether a given instruction computes its result purely from its
+	 * operands, and hence can be evaluated when its operands are known. This
+	 * excludes <code>EXP</code>, whose gas cost depends upon its exponent and so
+	 * must be charged when it is executed.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	static boolean isFoldable(int opcode) {
+		switch (opcode) {
+		case Bytecode.ADD:
+		case Bytecode.MUL:
+		case Bytecode.SUB:
+		case Bytecode.DIV:
+		case Bytecode.SDIV:
+		case Bytecode.MOD:
+		case Bytecode.SMOD:
+		case Bytecode.ADDMOD:
+		case Bytecode.MULMOD:
+		case Bytecode.SIGNEXTEND:
+		case Bytecode.LT:
+		case Bytecode.GT:
+		case Bytecode.SLT:
+		case Bytecode.SGT:
+		case Bytecode.EQ:
+		case Bytecode.ISZERO:
+		case Bytecode.AND:
+		case Bytecode.OR:
+		case Bytecode.XOR:
+		case Bytecode.NOT:
+		case Bytecode.BYTE:
+		case Bytecode.SHL:
+		case Bytecode.SHR:
+		case Bytecode.SAR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluate an arithmetic, comparison or bitwise instruction on an array of
+	 * limbs laid out as for the stack in <code>VirtualMachine.run()</code>. The
+	 * first operand starts at the given offset, the next four limbs below it and
+	 * so on. The result replaces the last operand. The given words are used as
+	 * scratch space.
+	 *
+	 * @param opcode
+	 * @param s
+	 * @param top
+	 * @param a
+	 * @param b
+	 * @param c
+	 */
+	static void evaluate(int opcode, long[] s, int top, m256 a, m256 b, m256 c) {
+		switch (opcode) {
+		case Bytecode.ISZERO: {
+			boolean zero = (s[top] | s[top + 1] | s[top + 2] | s[top + 3]) == 0;
+			s[top] = 0;
+			s[top + 1] = 0;
+			s[top + 2] = 0;
+			s[top + 3] = zero ? 1 : 0;
+			return;
+		}
+		case Bytecode.NOT:
+			s[top] = ~s[top];
+			s[top + 1] = ~s[top + 1];
+			s[top + 2] = ~s[top + 2];
+			s[top + 3] = ~s[top + 3];
+			return;
+		case Bytecode.ADDMOD:
+			a.load(s, top).addModInto(b.load(s, top - 4), c.load(s, top - 8)).store(s, top - 8);
+			return;
+		case Bytecode.MULMOD:
+			a.load(s, top).mulModInto(b.load(s, top - 4), c.load(s, top - 8)).store(s, top - 8);
+			return;
+		}
+		a.load(s, top);
+		b.load(s, top - 4);
+		switch (opcode) {
+		case Bytecode.ADD:
+			a.addInto(b);
+			break;
+		case Bytecode.MUL:
+			a.mulInto(b);
+			break;
+		case Bytecode.SUB:
+			a.subInto(b);
+			break;
+		case Bytecode.DIV:
+			a.divInto(b);
+			break;
+		case Bytecode.SDIV:
+			a.sdivInto(b);
+			break;
+		case Bytecode.MOD:
+			a.modInto(b);
+			break;
+		case Bytecode.SMOD:
+			a.smodInto(b);
+			break;
+		case Bytecode.EXP:
+			a.expInto(b);
+			break;
+		case Bytecode.SIGNEXTEND: {
+			int offset = a.toInt();
+			// NOTE: offsets outside the word have no effect
+			if (a.isInt() && offset >= 0 && offset < 31) {
+				b.signExtend(offset + 1);
+			}
+			break;
+		}
+		case Bytecode.LT:
+			a.ltInto(b);
+			break;
+		case Bytecode.GT:
+			a.gtInto(b);
+			break;
+		case Bytecode.SLT:
+			a.sltInto(b);
+			break;
+		case Bytecode.SGT:
+			a.sgtInto(b);
+			break;
+		case Bytecode.EQ:
+			a.eqInto(b);
+			break;
+		case Bytecode.AND:
+			a.andInto(b);
+			break;
+		case Bytecode.OR:
+			a.orInto(b);
+			break;
+		case Bytecode.XOR:
+			a.xorInto(b);
+			break;
+		case Bytecode.BYTE: {
+			int offset = a.toInt();
+			b.set(a.isInt() && offset >= 0 && offset < 32 ? b.getByte(offset) : 0);
+			break;
+		}
+		case Bytecode.SHL:
+			a.shlInto(b);
+			break;
+		case Bytecode.SHR:
+			a.shrInto(b);
+			break;
+		case Bytecode.SAR:
+			a.sarInto(b);
+			break;
+		default:
+			throw new IllegalArgumentException("invalid opcode");
+		}
+		b.store(s, top - 4);
+	}
+
+	/**
+	 * Fuse common sequences of instructions into superinstructions. Sequences
+	 * may overlap, since only the handler of the first instruction in each is
+	 * replaced.
+	 *
+	 * @param handlers
+	 * @param arguments
+	 * @param indices
+	 * @param constants
+	 * @param n
+	 *            Number of handlers
+	 */
+	private static void fuse(int[] handlers, int[] arguments, int[] indices, long[] constants, int n) {
+		for (int i = 0; i + 1 < n; ++i) {
+			int first = handlers[i];
+			int second = handlers[i + 1];
+			if (isPush(first) && second == Bytecode.JUMP) {
+				handlers[i] = PUSH_JUMP;
+				arguments[i] = target(handlers, indices, constants, arguments[i]);
+			} else if (isPush(first) && second == Bytecode.JUMPI) {
+				handlers[i] = PUSH_JUMPI;
+				arguments[i] = target(handlers, indices, constants, arguments[i]);
+			} else if (first == Bytecode.ISZERO && isPush(second) && i + 2 < n
+					&& handlers[i + 2] == Bytecode.JUMPI) {
+				handlers[i] = ISZERO_PUSH_JUMPI;
+				arguments[i] = target(handlers, indices, constants, arguments[i + 1]);
+			} else if (first >= Bytecode.DUP1 && first <= Bytecode.DUP16 && second >= Bytecode.SWAP1
+					&& second <= Bytecode.SWAP16) {
+				handlers[i] = DUP_SWAP;
+				arguments[i] = (arguments[i] << 8) | arguments[i + 1];
+			} else if (isPush(first) && second == Bytecode.ADD) {
+				handlers[i] = PUSH_ADD;
+			}
+		}
+	}
+
+	/**
+	 * A constant pool under construction, in which identical constants are
+	 * shared.
+	 */
+	private static final class Pool {
+		private final HashMap<w256, Integer> indices = new HashMap<>();
+		/**
+		 * Each constant occupies four consecutive limbs (most significant first).
+		 */
+		long[] limbs = new long[16];
+
+		/**
+		 * Add a constant given by its limbs, returning its index.
+		 */
+		int add(long l0, long l1, long l2, long l3) {
+			w256 operand = w256.valueOf(l0, l1, l2, l3);
+			Integer k = indices.get(operand);
+			if (k == null) {
+				k = indices.size();
+				indices.put(operand, k);
+				int j = k << 2;
+				if (j == limbs.length) {
+					limbs = Arrays.copyOf(limbs, j * 2);
+				}
+				limbs[j] = l0;
+				limbs[j + 1] = l1;
+				limbs[j + 2] = l2;
+				limbs[j + 3] = l3;
+			}
+			return k;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(limbs, indices.size() << 2);
+		}
+	}
+
+	private static boolean isPush(int handler) {
+		return handler >= Bytecode.PUSH1 && handler <= Bytecode.PUSH32;
+	}
+
+	/**
+	 * Determine the index of the handler to which a jump to a given constant
+	 * transfers control, or <code>-1</code> if it is not a valid jump
+	 * destination.
+	 *
+	 * @param handlers
+	 * @param indices
+	 * @param constants
+	 * @param k
+	 *            Identifies the constant.
+	 * @return
+	 */
+	private static int target(int[] handlers, int[] indices, long[] constants, int k) {
+		int j = k << 2;
+		long pc = constants[j + 3];
+		if ((constants[j] | constants[j + 1] | constants[j + 2]) != 0 || pc != (int) pc) {
+			return -1;
+		} else {
+			return target(handlers, indices, (int) pc);
+		}
+	}
+
+	private static int target(int[] handlers, int[] indices, int pc) {
+		int index = pc >= 0 && pc < indices.length ? indices[pc] : -1;
+		return index >= 0 && handlers[index] == BLOCK && handlers[index + 1] == Bytecode.JUMPDEST ? index : -1;
+	}
+
+	public static void main(String[] args) {
+		byte[] code = Hex.fromBigEndianString(
+				"6080604052607b600055348015601457600080fd5b5060358060226000396000f3006080604052600080fd00a165627a7a72305820eb2a49ca9445598c397756374a0f997239da31baed31403e05d0fbe5666571930029");
+		Program program = decode(code);
+		System.out.println(program);
+		System.out.println(program.size() + " handlers, " + program.blocks() + " blocks, " + program.constants()
+				+ " constants");
+		JumpDestinations jumps = JumpDestinations.analyse(code);
+		for (int pc = -1; pc <= code.length; ++pc) {
+			if (jumps.isValid(pc) != (program.target(pc) >= 0)) {
+				System.out.println("*** ERROR: " + pc + " => " + program.target(pc));
+			}
+		}
+		// PUSH1 0x01; PUSH1 0x02; ADD; DUP2; POP; PUSH1 0x03; SWAP1; SWAP1; MUL
+		Program folded = decode(Hex.fromBigEndianString("600160020181506003909002"));
+		System.out.println(folded);
+		if (folded.handlers[1] != FOLD || (folded.arguments[1] & 0xFF) != 9
+				|| !folded.constant(folded.arguments[1] >>> 8).equals(w256.valueOf(9))) {
+			System.out.println("*** ERROR: not folded");
+		}
+		// DUP2; POP; SWAP1; SWAP1; ADD
+		Program skipped = decode(Hex.fromBigEndianString("8150909001"));
+		System.out.println(skipped);
+		if (skipped.handlers[1] != SKIP || skipped.arguments[1] != 4) {
+			System.out.println("*** ERROR: not skipped");
+		}
+	}
+}
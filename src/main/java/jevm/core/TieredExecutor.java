@@ -0,0 +1,356 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import jevm.core.VirtualMachine.State;
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+import jevm.util.CodeCache;
+import jevm.util.Word.w256;
+
+/**
+ * Executes contracts in one of several tiers, based on how frequently they are
+ * used. Every contract starts in the plain interpreter (i.e. stepping through
+ * <code>Bytecode.execute()</code>). For each contract (identified by the hash
+ * of its code) the number of invocations and the number of backward jumps
+ * taken whilst interpreting are counted. When either crosses a given
+ * threshold, the contract is compiled in the background (see
+ * <code>Compiler</code>). The tier used for a call is fixed when it begins, and
+ * hence execution switches to compiled code at the next call after compilation
+ * completes. Contracts which cannot be compiled remain in the interpreter.
+ * <p>
+ * Profiles are held in a bounded cache, such that the long tail of rarely used
+ * contracts does not grow without bound. A contract whose profile is evicted
+ * simply starts again in the interpreter.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TieredExecutor {
+	/**
+	 * The tiers through which a contract can move.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Tier {
+		/**
+		 * Executed by the plain interpreter.
+		 */
+		INTERPRETED,
+		/**
+		 * Executed by the plain interpreter, whilst being compiled in the
+		 * background.
+		 */
+		COMPILING,
+		/**
+		 * Executed as compiled code.
+		 */
+		COMPILED,
+		/**
+		 * Executed by the plain interpreter, since compilation failed.
+		 */
+		UNCOMPILABLE
+	}
+
+	/**
+	 * The hotness counters and current tier of a given contract.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Profile {
+		private final LongAdder invocations = new LongAdder();
+		private final LongAdder backJumps = new LongAdder();
+		private final AtomicReference<Tier> tier = new AtomicReference<>(Tier.INTERPRETED);
+		private volatile Compiler.Compiled compiled;
+
+		/**
+		 * Get the number of times this contract has been invoked.
+		 *
+		 * @return
+		 */
+		public long invocations() {
+			return invocations.sum();
+		}
+
+		/**
+		 * Get the number of backward jumps taken whilst interpreting this
+		 * contract.
+		 *
+		 * @return
+		 */
+		public long backJumps() {
+			return backJumps.sum();
+		}
+
+		/**
+		 * Get the current tier of this contract.
+		 *
+		 * @return
+		 */
+		public Tier tier() {
+			return tier.get();
+		}
+
+		@Override
+		public String toString() {
+			return tier() + ", invocations=" + invocations() + ", backJumps=" + backJumps();
+		}
+	}
+
+	/**
+	 * Default number of invocations after which a contract is compiled.
+	 */
+	public static final int INVOCATION_THRESHOLD = 1000;
+
+	/**
+	 * Default number of backward jumps after which a contract is compiled.
+	 */
+	public static final int BACKJUMP_THRESHOLD = 10000;
+
+	private final CodeCache<Profile> profiles;
+	private final int invocationThreshold;
+	private final int backJumpThreshold;
+	private final Executor background;
+	/**
+	 * Counts the transitions into each tier, where starting in the interpreter
+	 * counts as a transition into it.
+	 */
+	private final LongAdder[] transitions = new LongAdder[Tier.values().length];
+
+	/**
+	 * Construct an executor with the default thresholds, which compiles on a
+	 * single background thread.
+	 */
+	public TieredExecutor() {
+		this(INVOCATION_THRESHOLD, BACKJUMP_THRESHOLD, daemon());
+	}
+
+	/**
+	 * Construct an executor with given thresholds, which compiles using a given
+	 * executor.
+	 *
+	 * @param invocationThreshold
+	 *            Number of invocations after which a contract is compiled.
+	 * @param backJumpThreshold
+	 *            Number of backward jumps after which a contract is compiled.
+	 * @param background
+	 *            Used to perform compilation.
+	 */
+	public TieredExecutor(int invocationThreshold, int backJumpThreshold, Executor background) {
+		this.profiles = new CodeCache<>(4096);
+		this.invocationThreshold = invocationThreshold;
+		this.backJumpThreshold = backJumpThreshold;
+		this.background = background;
+		for (int i = 0; i != transitions.length; ++i) {
+			transitions[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Execute a given state to completion, using the tier of the given contract
+	 * at the point of the call. Returns the number of instructions executed.
+	 *
+	 * @param codeHash
+	 *            Hash of the state's code, which identifies the contract.
+	 * @param state
+	 * @return
+	 */
+	public long execute(w256 codeHash, State state) {
+		Profile profile = getProfile(codeHash);
+		profile.invocations.increment();
+		Compiler.Compiled compiled = profile.compiled;
+		long count;
+		if (compiled != null && compiled.getProgram().getInstructionSet() == state.getInstructionSet()) {
+			count = Compiler.execute(state, compiled, Long.MAX_VALUE);
+		} else if (compiled != null) {
+			// NOTE: code compiled for one fork is never executed in another
+			count = interpret(profile, state);
+		} else {
+			count = interpret(profile, state);
+			if (profile.invocations.sum() >= invocationThreshold) {
+				promote(profile, state.getProgram());
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the profile of a given contract, such as for monitoring.
+	 *
+	 * @param codeHash
+	 * @return
+	 */
+	public Profile getProfile(w256 codeHash) {
+		// NOTE: creating a profile does not require the code itself
+		return profiles.get(codeHash, null, code -> {
+			transitions[Tier.INTERPRETED.ordinal()].increment();
+			return new Profile();
+		});
+	}
+
+	/**
+	 * Get the number of transitions into a given tier.
+	 *
+	 * @param tier
+	 * @return
+	 */
+	public long getTransitions(Tier tier) {
+		return transitions[tier.ordinal()].sum();
+	}
+
+	/**
+	 * Get a summary of the number of contracts profiled and the transitions
+	 * between tiers, such as for monitoring.
+	 *
+	 * @return
+	 */
+	public String getStatistics() {
+		String r = "profiles=" + profiles.size();
+		for (Tier tier : Tier.values()) {
+			r += ", " + tier + "=" + getTransitions(tier);
+		}
+		return r;
+	}
+
+	/**
+	 * Step through a given state using the plain interpreter, counting backward
+	 * jumps and triggering compilation when there are enough of them.
+	 *
+	 * @param profile
+	 * @param state
+	 * @return
+	 */
+	private long interpret(Profile profile, State state) {
+		int length = state.getCodeMemory().used();
+		// Number of backward jumps remaining before compilation
+		long remaining = backJumpThreshold - profile.backJumps.sum();
+		long count = 0;
+		long jumps = 0;
+		while (state.status() == Status.OK && state.pc() < length) {
+			int pc = state.pc();
+			Bytecode.execute(state);
+			count++;
+			if (state.pc() < pc && ++jumps == remaining) {
+				promote(profile, state.getProgram());
+			}
+		}
+		profile.backJumps.add(jumps);
+		return count;
+	}
+
+	/**
+	 * Compile a given contract in the background, unless this has already
+	 * happened. A contract whose compilation fails for any reason (e.g. the
+	 * generated class cannot be loaded) remains in the interpreter, rather than
+	 * being left compiling forever.
+	 *
+	 * @param profile
+	 * @param program
+	 */
+	private void promote(Profile profile, Program program) {
+		if (profile.tier.compareAndSet(Tier.INTERPRETED, Tier.COMPILING)) {
+			transitions[Tier.COMPILING.ordinal()].increment();
+			background.execute(() -> {
+				Compiler.Compiled compiled;
+				try {
+					compiled = Compiler.compile(program);
+				} catch (Throwable e) {
+					compiled = null;
+				}
+				Tier tier = (compiled == null) ? Tier.UNCOMPILABLE : Tier.COMPILED;
+				profile.compiled = compiled;
+				profile.tier.set(tier);
+				transitions[tier.ordinal()].increment();
+			});
+		}
+	}
+
+	/**
+	 * Create a single background thread which does not prevent the JVM from
+	 * exiting.
+	 *
+	 * @return
+	 */
+	private static ExecutorService daemon() {
+		return Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "jevm-compiler");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that contracts are promoted after crossing each threshold, and that
+	 * every tier gives the same result as the plain interpreter. Compilation is
+	 * performed on the calling thread, such that promotion is deterministic.
+	 */
+	public static void testTiers() {
+		System.out.println("*** TESTING TIERS");
+		int failures = 0;
+		TieredExecutor executor = new TieredExecutor(3, Integer.MAX_VALUE, Runnable::run);
+		w256 contract = w256.valueOf(1);
+		w256 loop = w256.valueOf(2);
+		ArrayState expected = new ArrayState(VirtualMachine.CONTRACT);
+		while (expected.status() == Status.OK && expected.pc() < VirtualMachine.CONTRACT.length) {
+			Bytecode.execute(expected);
+		}
+		for (int i = 0; i != 5; ++i) {
+			ArrayState actual = new ArrayState(contract, VirtualMachine.CONTRACT);
+			Tier tier = executor.getProfile(contract).tier();
+			executor.execute(contract, actual);
+			// Promoted at the end of the third call
+			Tier expectedTier = (i < 3) ? Tier.INTERPRETED : Tier.COMPILED;
+			if (tier != expectedTier || !VirtualMachine.equals(expected, actual)) {
+				failures++;
+				System.out.println("FAILED: call " + i + " in " + tier);
+			}
+		}
+		System.out.println(executor.getStatistics());
+		// A long running loop is promoted part way through its first call
+		executor = new TieredExecutor(Integer.MAX_VALUE, 1000, Runnable::run);
+		ArrayState state = new ArrayState(loop, VirtualMachine.LOOP);
+		executor.execute(loop, state);
+		Profile profile = executor.getProfile(loop);
+		if (profile.tier() != Tier.COMPILED || profile.backJumps() < 1000 || profile.invocations() != 1) {
+			failures++;
+			System.out.println("FAILED: " + profile);
+		}
+		// A contract whose compilation throws is left in the interpreter
+		w256 broken = w256.valueOf(3);
+		profile = executor.getProfile(broken);
+		executor.promote(profile, null);
+		if (profile.tier() != Tier.UNCOMPILABLE || executor.getTransitions(Tier.UNCOMPILABLE) != 1) {
+			failures++;
+			System.out.println("FAILED: " + profile);
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	public static void main(String[] args) {
+		testTiers();
+	}
+}
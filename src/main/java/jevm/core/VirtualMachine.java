@@ -13,6 +13,16 @@
 // limitations under the License.
 package jevm.core;
 
+import static jevm.core.Bytecode.*;
+
+import java.util.Random;
+
+import jevm.core.VirtualMachine.State.Status;
+import jevm.util.ArrayState;
+import jevm.util.ArrayWordStack;
+import jevm.util.Hex;
+import jevm.util.LimbStack;
+import jevm.util.Word.m256;
 import jevm.util.Word.w256;
 
 /**
@@ -22,6 +32,126 @@ import jevm.util.Word.w256;
  *
  */
 public class VirtualMachine {
+	/**
+	 * The maximum number of words which can be held on the stack.
+	 */
+	public static final int STACK_LIMIT = 1024;
+
+	/**
+	 * Identifies how instructions are dispatched when stepping through a
+	 * contract.
+	 */
+	public enum Dispatch {
+		/**
+		 * Dispatch using the <code>switch</code> in <code>Bytecode.execute()</code>.
+		 */
+		SWITCH,
+		/**
+		 * Dispatch using the handler table in <code>Bytecode.dispatch()</code>.
+		 */
+		TABLE
+	}
+
+	/**
+	 * The dispatch mode used by this machine.
+	 */
+	private final Dispatch dispatch;
+
+	/**
+	 * The instructions available to contracts executed by this machine.
+	 */
+	private final InstructionSet instructions;
+
+	public VirtualMachine() {
+		this(Dispatch.SWITCH);
+	}
+
+	public VirtualMachine(Dispatch dispatch) {
+		this(dispatch, InstructionSet.LATEST);
+	}
+
+	public VirtualMachine(InstructionSet instructions) {
+		this(Dispatch.SWITCH, instructions);
+	}
+
+	public VirtualMachine(Dispatch dispatch, InstructionSet instructions) {
+		this.dispatch = dispatch;
+		this.instructions = instructions;
+	}
+
+	/**
+	 * Get the dispatch mode used by this machine.
+	 *
+	 * @return
+	 */
+	public Dispatch getDispatch() {
+		return dispatch;
+	}
+
+	/**
+	 * Get the instruction set used by this machine.
+	 *
+	 * @return
+	 */
+	public InstructionSet getInstructionSet() {
+		return instructions;
+	}
+
+	/**
+	 * Execute the instruction at the current program counter of a given state,
+	 * charging its gas according to this machine's instruction set. Opcodes
+	 * which are not valid in that instruction set halt with an exception, as do
+	 * those which would underflow the stack or exceed its limit. The state must
+	 * be for the same instruction set, since its code is decoded accordingly.
+	 *
+	 * @param state
+	 * @return
+	 */
+	public boolean step(State state) {
+		if (state.getInstructionSet() != instructions) {
+			throw new IllegalArgumentException("state is for " + state.getInstructionSet() + ", not " + instructions);
+		}
+		int pc = state.pc();
+		int opcode = state.getCodeMemory().read(pc) & 0xFF;
+		Stack<w256> stack = state.getStackMemory();
+		if (dispatch == Dispatch.TABLE && (stack instanceof LimbStack || stack instanceof WordStack)) {
+			if (!Bytecode.charge(state, instructions.gas(opcode))) {
+				return false;
+			} else if (!Bytecode.fits(stack, instructions.arguments(opcode), instructions.returns(opcode))) {
+				state.halt(Status.EXCEPTION);
+				return false;
+			} else if (stack instanceof LimbStack) {
+				return instructions.getLimbHandler(opcode).execute(pc, state, (LimbStack) stack);
+			} else {
+				return instructions.getHandler(opcode).execute(pc, state, (WordStack) stack);
+			}
+		} else if (instructions.isValid(opcode)) {
+			return Bytecode.execute(state, instructions.gas(opcode));
+		} else {
+			state.halt(Status.EXCEPTION);
+			return false;
+		}
+	}
+
+	/**
+	 * Step through a given state until it halts, runs off the end of its code or
+	 * has executed a given number of instructions. This returns the number of
+	 * instructions executed.
+	 *
+	 * @param state
+	 * @param limit
+	 * @return
+	 */
+	public long execute(State state, long limit) {
+		int length = state.getCodeMemory().used();
+		long count = 0;
+		while (count < limit && state.status() == Status.OK && state.pc() < length) {
+			step(state);
+			count++;
+		}
+		return count;
+	}
+
 
 	/**
 	 * Represents the state of a contract executing in the virtual machine.
@@ -38,7 +168,8 @@ public class VirtualMachine {
 			OK,
 			STOP,
 			REVERT,
-			EXCEPTION
+			EXCEPTION,
+			OUT_OF_GAS
 		}
 
 		/**
@@ -49,7 +180,9 @@ public class VirtualMachine {
 		public Status status();
 
 		/**
-		 * Set the status of this machine
+		 * Set the status of this machine. Halting exceptionally (i.e. with
+		 * <code>EXCEPTION</code> or <code>OUT_OF_GAS</code>) consumes all remaining
+		 * gas.
 		 */
 		public void halt(Status status);
 
@@ -65,7 +198,14 @@ public class VirtualMachine {
 		 *
 		 * @return
 		 */
-		public int gas();
+		public long gas();
+
+		/**
+		 * Consume a given amount of the remaining GAS.
+		 *
+		 * @param gas
+		 */
+		public void consume(long gas);
 
 		/**
 		 * Get the value of the program counter.
@@ -81,6 +221,30 @@ public class VirtualMachine {
 		 */
 		public Memory<Byte> getCodeMemory();
 
+		/**
+		 * Get the valid jump destinations within the contract code.
+		 *
+		 * @return
+		 */
+		public JumpDestinations getJumpDestinations();
+
+		/**
+		 * Get the pre-decoded form of the contract code, as executed by
+		 * <code>run()</code>. This is decoded according to the instruction set
+		 * of this state.
+		 *
+		 * @return
+		 */
+		public Program getProgram();
+
+		/**
+		 * Get the instructions available to the contract code, as determined by
+		 * the fork in which it executes.
+		 *
+		 * @return
+		 */
+		public InstructionSet getInstructionSet();
+
 		/**
 		 * Get the stack memory associated with this machine state.
 		 * @return
@@ -184,4 +348,1155 @@ public class VirtualMachine {
 		 */
 		public void push(T value);
 	}
+
+	/**
+	 * A stack of words whose slots can be operated upon in place, rather than by
+	 * popping and pushing immutable words. For example, an addition can be
+	 * implemented as <code>peek(0).addInto(peek(1))</code> followed by
+	 * <code>drop(1)</code>. The slots returned from this stack remain owned by
+	 * it, and should not be retained beyond the current instruction.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface WordStack extends Stack<w256> {
+		/**
+		 * Get the slot at a given depth, where the top of the stack has depth zero.
+		 *
+		 * @param depth
+		 * @return
+		 */
+		public m256 peek(int depth);
+
+		/**
+		 * Push a new slot onto the stack, returning it so that it can be assigned.
+		 * The initial contents of this slot are undefined.
+		 *
+		 * @return
+		 */
+		public m256 push();
+
+		/**
+		 * Remove a given number of slots from the top of the stack.
+		 *
+		 * @param n
+		 */
+		public void drop(int n);
+
+		/**
+		 * Push a copy of the <code>n</code>th slot (where the top of the stack is
+		 * the first).
+		 *
+		 * @param n
+		 */
+		public void dup(int n);
+
+		/**
+		 * Exchange the top of the stack with the slot <code>n</code> positions
+		 * beneath it.
+		 *
+		 * @param n
+		 */
+		public void swap(int n);
+	}
+
+	/**
+	 * Registers used by <code>run()</code>, which are allocated once per thread
+	 * and reused across runs. The stack holds up to <code>STACK_LIMIT</code>
+	 * words, each occupying four consecutive limbs (most significant first).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Registers {
+		final long[] stack = new long[STACK_LIMIT * 4];
+		final m256 a = new m256();
+		final m256 b = new m256();
+		final m256 c = new m256();
+		/**
+		 * Number of times each superinstruction has been executed since last
+		 * recorded, indexed from <code>Program.PUSH_JUMP</code>.
+		 */
+		final long[] fusions = new long[Program.FUSIONS];
+	}
+
+	private static final ThreadLocal<Registers> REGISTERS = ThreadLocal.withInitial(Registers::new);
+
+	/**
+	 * Run a given state until it halts or runs off the end of its code. See
+	 * <code>run(State,long)</code> for more details.
+	 *
+	 * @param state
+	 * @return
+	 */
+	public static long run(State state) {
+		return run(state, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Run a given state for at most a given number of instructions, returning
+	 * the number actually executed. Unlike stepping through
+	 * <code>Bytecode.execute()</code>, the code is executed in its pre-decoded
+	 * form (see <code>Program</code>), the current instruction, stack pointer and
+	 * gas are held in locals, and the stack is held as an array of limbs. The
+	 * static gas cost of each basic block is charged on entry to it, at which
+	 * point the stack bounds for the block are also checked. A block with
+	 * insufficient gas, or which would underflow the stack or exceed its limit,
+	 * is stepped through one instruction at a time, such that it halts at exactly
+	 * the same point as the per-step interpreter. Likewise, execution which
+	 * begins part way through a block (e.g. after stepping) is stepped through
+	 * to the end of that block, since its static cost was not charged on entry.
+	 * Conversely, execution which exhausts its instruction limit part way
+	 * through a block is refunded the static cost of the remainder. Thus,
+	 * <code>run()</code> and stepping can be freely interleaved.
+	 * Dynamic costs (e.g. for expanding memory) are charged by the instructions
+	 * which incur them. Code which is bounded (see <code>GasBound</code>) and
+	 * executed from its start with at least as much gas as its bound cannot run
+	 * out of gas, hence gas is then deducted without being checked. The state is
+	 * only written back when this method returns, that is when
+	 * execution halts, runs off the end of the code (which leaves the status
+	 * unchanged, as for the per-step loop) or exhausts its instruction limit.
+	 * Instructions not handled here fall back on <code>Bytecode.execute()</code>,
+	 * which requires synchronising the state around them. Superinstructions
+	 * count as the number of instructions they replace, and so may take the
+	 * total beyond the limit. When the state's stack is a
+	 * <code>LimbStack</code>, its limbs are operated upon directly rather than
+	 * being copied.
+	 *
+	 * @param state
+	 * @param limit
+	 * @return
+	 */
+	public static long run(State state, long limit) {
+		Registers registers = REGISTERS.get();
+		final Stack<w256> stack = state.getStackMemory();
+		final long[] s = limbs(stack, registers.stack);
+		final m256 a = registers.a;
+		final m256 b = registers.b;
+		final m256 c = registers.c;
+		final long[] fusions = registers.fusions;
+		final Program program = state.getProgram();
+		final int[] handlers = program.handlers;
+		final int[] arguments = program.arguments;
+		final long[] constants = program.constants;
+		final int[] costs = program.costs;
+		final int[] minimums = program.minimums;
+		final int[] growths = program.growths;
+		final Memory<w256> local = state.getLocalMemory();
+		final Memory<w256> storage = state.getStorageMemory();
+		// Index of current instruction
+		int ip = program.indexOf(state.pc());
+		if (ip >= 0 && handlers[ip] != Program.BLOCK && handlers[ip] != Program.END) {
+			// Static cost of this block was not charged, so step to its end
+			long count = align(state, program, limit);
+			if (count < limit && state.status() == Status.OK) {
+				count += run(state, limit - count);
+			}
+			return count;
+		}
+		long gas = state.gas();
+		// Stack pointer (in words)
+		int sp = load(stack, s);
+		long count = 0;
+		Status status = null;
+		boolean synced = false;
+		GasBound bound = program.bound;
+		final boolean metered = state.pc() != 0 || !bound.isBounded() || gas < bound.gas();
+		if (ip < 0) {
+			// Not at an instruction, hence must be beyond the end of the code
+			return count;
+		}
+		// NOTE: gas and the stack bounds are checked on entry to each block, hence
+		// instructions within a block are executed without any checks.
+		loop: while (count < limit) {
+			int handler = handlers[ip];
+			// Offset of first limb of top of stack
+			int top = (sp - 1) << 2;
+			count++;
+			switch (handler) {
+			case Program.END:
+				// Ran off the end of the code, which is not an instruction
+				count--;
+				break loop;
+			case Program.BLOCK: {
+				int block = arguments[ip];
+				count--;
+				if (sp < minimums[block] || (sp + growths[block]) > STACK_LIMIT
+						|| (metered && gas < costs[block])) {
+					// Step through, to halt exactly where stepping from the start would
+					count += exhaust(state, program, s, sp, ip + 1, gas);
+					synced = true;
+					break loop;
+				}
+				gas = gas - costs[block];
+				ip = ip + 1;
+				continue;
+			}
+			case Program.PUSH_JUMP: {
+				int target = arguments[ip];
+				fusions[0]++;
+				count++;
+				if (target < 0) {
+					// Halt on the jump itself
+					ip = ip + 1;
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				ip = target;
+				continue;
+			}
+			case Program.PUSH_JUMPI: {
+				boolean taken = (s[top] | s[top + 1] | s[top + 2] | s[top + 3]) != 0;
+				int target = arguments[ip];
+				fusions[1]++;
+				count++;
+				sp = sp - 1;
+				if (!taken) {
+					ip = ip + 2;
+				} else if (target < 0) {
+					ip = ip + 1;
+					status = Status.EXCEPTION;
+					break loop;
+				} else {
+					ip = target;
+				}
+				continue;
+			}
+			case Program.ISZERO_PUSH_JUMPI: {
+				boolean taken = (s[top] | s[top + 1] | s[top + 2] | s[top + 3]) == 0;
+				int target = arguments[ip];
+				fusions[2]++;
+				count += 2;
+				sp = sp - 1;
+				if (!taken) {
+					ip = ip + 3;
+				} else if (target < 0) {
+					ip = ip + 2;
+					status = Status.EXCEPTION;
+					break loop;
+				} else {
+					ip = target;
+				}
+				continue;
+			}
+			case Program.DUP_SWAP: {
+				int argument = arguments[ip];
+				int from = top - (((argument >> 8) - 1) << 2);
+				int next = top + 4;
+				int other = next - ((argument & 0xFF) << 2);
+				s[next] = s[other];
+				s[next + 1] = s[other + 1];
+				s[next + 2] = s[other + 2];
+				s[next + 3] = s[other + 3];
+				s[other] = s[from];
+				s[other + 1] = s[from + 1];
+				s[other + 2] = s[from + 2];
+				s[other + 3] = s[from + 3];
+				fusions[3]++;
+				count++;
+				sp = sp + 1;
+				ip = ip + 2;
+				continue;
+			}
+			case Program.PUSH_ADD:
+				a.load(constants, arguments[ip] << 2).addInto(b.load(s, top)).store(s, top);
+				fusions[4]++;
+				count++;
+				ip = ip + 2;
+				continue;
+			case Program.FOLD: {
+				int argument = arguments[ip];
+				int k = (argument >>> 8) << 2;
+				int next = top + 4;
+				s[next] = constants[k];
+				s[next + 1] = constants[k + 1];
+				s[next + 2] = constants[k + 2];
+				s[next + 3] = constants[k + 3];
+				fusions[5]++;
+				count += (argument & 0xFF) - 1;
+				sp = sp + 1;
+				ip = ip + (argument & 0xFF);
+				continue;
+			}
+			case Program.SKIP:
+				fusions[6]++;
+				count += arguments[ip] - 1;
+				ip = ip + arguments[ip];
+				continue;
+			case STOP:
+				status = Status.STOP;
+				break loop;
+			case ADD:
+				a.load(s, top).addInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case MUL:
+				a.load(s, top).mulInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SUB:
+				a.load(s, top).subInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case DIV:
+				a.load(s, top).divInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SDIV:
+				a.load(s, top).sdivInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case MOD:
+				a.load(s, top).modInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SMOD:
+				a.load(s, top).smodInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case ADDMOD:
+				a.load(s, top).addModInto(b.load(s, top - 4), c.load(s, top - 8)).store(s, top - 8);
+				sp = sp - 2;
+				ip = ip + 1;
+				continue;
+			case MULMOD:
+				a.load(s, top).mulModInto(b.load(s, top - 4), c.load(s, top - 8)).store(s, top - 8);
+				sp = sp - 2;
+				ip = ip + 1;
+				continue;
+			case EXP: {
+				long cost = program.instructions.gasExpByte() * b.load(s, top - 4).byteLength();
+				if (metered && gas < cost) {
+					// Recover gas charged for remainder of block
+					count += exhaust(state, program, s, sp, ip, gas + arguments[ip]) - 1;
+					synced = true;
+					break loop;
+				}
+				gas = gas - cost;
+				a.load(s, top).expInto(b).store(s, top - 4);
+				break;
+			}
+			case SIGNEXTEND: {
+				a.load(s, top);
+				b.load(s, top - 4);
+				int offset = a.toInt();
+				// NOTE: offsets outside the word have no effect
+				if (a.isInt() && offset >= 0 && offset < 31) {
+					b.signExtend(offset + 1).store(s, top - 4);
+				}
+				break;
+			}
+			case LT:
+				a.load(s, top).ltInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case GT:
+				a.load(s, top).gtInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SLT:
+				a.load(s, top).sltInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SGT:
+				a.load(s, top).sgtInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case EQ: {
+				boolean eq = s[top] == s[top - 4] && s[top + 1] == s[top - 3] && s[top + 2] == s[top - 2]
+						&& s[top + 3] == s[top - 1];
+				set(s, top - 4, eq ? 1 : 0);
+				break;
+			}
+			case ISZERO:
+				set(s, top, (s[top] | s[top + 1] | s[top + 2] | s[top + 3]) == 0 ? 1 : 0);
+				ip = ip + 1;
+				continue;
+			case AND:
+				s[top - 4] &= s[top];
+				s[top - 3] &= s[top + 1];
+				s[top - 2] &= s[top + 2];
+				s[top - 1] &= s[top + 3];
+				break;
+			case OR:
+				s[top - 4] |= s[top];
+				s[top - 3] |= s[top + 1];
+				s[top - 2] |= s[top + 2];
+				s[top - 1] |= s[top + 3];
+				break;
+			case XOR:
+				s[top - 4] ^= s[top];
+				s[top - 3] ^= s[top + 1];
+				s[top - 2] ^= s[top + 2];
+				s[top - 1] ^= s[top + 3];
+				break;
+			case NOT:
+				s[top] = ~s[top];
+				s[top + 1] = ~s[top + 1];
+				s[top + 2] = ~s[top + 2];
+				s[top + 3] = ~s[top + 3];
+				ip = ip + 1;
+				continue;
+			case BYTE: {
+				a.load(s, top);
+				b.load(s, top - 4);
+				int offset = a.toInt();
+				set(s, top - 4, a.isInt() && offset >= 0 && offset < 32 ? b.getByte(offset) : 0);
+				break;
+			}
+			case SHA3: {
+				a.load(s, top);
+				b.load(s, top - 4);
+				long cost = Bytecode.gasSHA3(local, a.toInt(), b.toInt(), a.isInt() && b.isInt());
+				if (metered && gas < cost) {
+					// Recover gas charged for remainder of block
+					count += exhaust(state, program, s, sp, ip, gas + arguments[ip]) - 1;
+					synced = true;
+					break loop;
+				}
+				gas = gas - cost;
+				w256 hash = Bytecode.sha3(local, a.toInt(), b.toInt(), a.isInt() && b.isInt());
+				sp = sp - 1;
+				if (hash == null) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				c.set(hash).store(s, top - 4);
+				ip = ip + 1;
+				continue;
+			}
+			case SHL:
+				a.load(s, top).shlInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SHR:
+				a.load(s, top).shrInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case SAR:
+				a.load(s, top).sarInto(b.load(s, top - 4)).store(s, top - 4);
+				break;
+			case POP:
+				break;
+			case MLOAD: {
+				w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+				long cost = Bytecode.gasMemory(local, address);
+				if (metered && gas < cost) {
+					// Recover gas charged for remainder of block
+					count += exhaust(state, program, s, sp, ip, gas + arguments[ip]) - 1;
+					synced = true;
+					break loop;
+				}
+				gas = gas - cost;
+				if (!local.expand(address)) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				c.set(local.read(address)).store(s, top);
+				ip = ip + 1;
+				continue;
+			}
+			case MSTORE: {
+				w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+				w256 value = w256.valueOf(s[top - 4], s[top - 3], s[top - 2], s[top - 1]);
+				long cost = Bytecode.gasMemory(local, address);
+				if (metered && gas < cost) {
+					// Recover gas charged for remainder of block
+					count += exhaust(state, program, s, sp, ip, gas + arguments[ip]) - 1;
+					synced = true;
+					break loop;
+				}
+				gas = gas - cost;
+				sp = sp - 2;
+				if (!local.expand(address)) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				local.write(address, value);
+				ip = ip + 1;
+				continue;
+			}
+			case SLOAD: {
+				w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+				if (!storage.expand(address)) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				c.set(storage.read(address)).store(s, top);
+				ip = ip + 1;
+				continue;
+			}
+			case SSTORE: {
+				w256 address = w256.valueOf(s[top], s[top + 1], s[top + 2], s[top + 3]);
+				w256 value = w256.valueOf(s[top - 4], s[top - 3], s[top - 2], s[top - 1]);
+				long cost = Bytecode.gasSSTORE(storage, address, value);
+				if (metered && gas < cost) {
+					// Recover gas charged for remainder of block
+					count += exhaust(state, program, s, sp, ip, gas + arguments[ip]) - 1;
+					synced = true;
+					break loop;
+				}
+				gas = gas - cost;
+				sp = sp - 2;
+				if (!storage.expand(address)) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				storage.write(address, value);
+				ip = ip + 1;
+				continue;
+			}
+			case JUMP: {
+				a.load(s, top);
+				int target = a.isInt() ? program.target(a.toInt()) : -1;
+				sp = sp - 1;
+				if (target < 0) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				ip = target;
+				continue;
+			}
+			case JUMPI: {
+				a.load(s, top);
+				boolean taken = (s[top - 4] | s[top - 3] | s[top - 2] | s[top - 1]) != 0;
+				sp = sp - 2;
+				if (!taken) {
+					ip = ip + 1;
+					continue;
+				}
+				int target = a.isInt() ? program.target(a.toInt()) : -1;
+				if (target < 0) {
+					status = Status.EXCEPTION;
+					break loop;
+				}
+				ip = target;
+				continue;
+			}
+			case GAS:
+				// Account for remainder of block, which has already been charged
+				set(s, top + 4, gas + arguments[ip]);
+				sp = sp + 1;
+				ip = ip + 1;
+				continue;
+			case JUMPDEST:
+				ip = ip + 1;
+				continue;
+			case PUSH1:
+			case PUSH2:
+			case PUSH3:
+			case PUSH4:
+			case PUSH5:
+			case PUSH6:
+			case PUSH7:
+			case PUSH8:
+			case PUSH9:
+			case PUSH10:
+			case PUSH11:
+			case PUSH12:
+			case PUSH13:
+			case PUSH14:
+			case PUSH15:
+			case PUSH16:
+			case PUSH17:
+			case PUSH18:
+			case PUSH19:
+			case PUSH20:
+			case PUSH21:
+			case PUSH22:
+			case PUSH23:
+			case PUSH24:
+			case PUSH25:
+			case PUSH26:
+			case PUSH27:
+			case PUSH28:
+			case PUSH29:
+			case PUSH30:
+			case PUSH31:
+			case PUSH32: {
+				// Copy operand from constant pool
+				int k = arguments[ip] << 2;
+				int next = top + 4;
+				s[next] = constants[k];
+				s[next + 1] = constants[k + 1];
+				s[next + 2] = constants[k + 2];
+				s[next + 3] = constants[k + 3];
+				sp = sp + 1;
+				ip = ip + 1;
+				continue;
+			}
+			case DUP1:
+			case DUP2:
+			case DUP3:
+			case DUP4:
+			case DUP5:
+			case DUP6:
+			case DUP7:
+			case DUP8:
+			case DUP9:
+			case DUP10:
+			case DUP11:
+			case DUP12:
+			case DUP13:
+			case DUP14:
+			case DUP15:
+			case DUP16: {
+				int from = top - ((arguments[ip] - 1) << 2);
+				int next = top + 4;
+				s[next] = s[from];
+				s[next + 1] = s[from + 1];
+				s[next + 2] = s[from + 2];
+				s[next + 3] = s[from + 3];
+				sp = sp + 1;
+				ip = ip + 1;
+				continue;
+			}
+			case SWAP1:
+			case SWAP2:
+			case SWAP3:
+			case SWAP4:
+			case SWAP5:
+			case SWAP6:
+			case SWAP7:
+			case SWAP8:
+			case SWAP9:
+			case SWAP10:
+			case SWAP11:
+			case SWAP12:
+			case SWAP13:
+			case SWAP14:
+			case SWAP15:
+			case SWAP16: {
+				int other = top - (arguments[ip] << 2);
+				for (int i = 0; i != 4; ++i) {
+					long tmp = s[top + i];
+					s[top + i] = s[other + i];
+					s[other + i] = tmp;
+				}
+				ip = ip + 1;
+				continue;
+			}
+			case INVALID:
+				status = Status.EXCEPTION;
+				break loop;
+			default:
+				// Fall back on the per-step interpreter, which requires the
+				// state to be synchronised before and after.
+				store(s, sp, stack);
+				state.jump(program.positions[ip]);
+				state.consume(state.gas() - gas);
+				// Static cost already charged on entry to the block
+				Bytecode.execute(state, 0);
+				ip = program.indexOf(state.pc());
+				if (state.status() != Status.OK || ip < 0) {
+					// State already written back
+					synced = true;
+					break loop;
+				}
+				sp = load(stack, s);
+				gas = state.gas();
+				continue;
+			}
+			// Binary operations consume one more operand than they produce
+			sp = sp - 1;
+			ip = ip + 1;
+		}
+		Program.recordFusionHits(fusions);
+		if (!synced) {
+			// Write back state
+			store(s, sp, stack);
+			state.jump(program.positions[ip]);
+			if (status != null) {
+				state.consume(state.gas() - gas);
+				state.halt(status);
+			} else {
+				// Refund the remainder of the block, should the limit be reached in it
+				state.consume(state.gas() - gas - program.remainders[ip]);
+			}
+		} else if (state.status() == Status.OK && count < limit) {
+			// Resume, should a block be stepped through without running out of gas
+			count += run(state, limit - count);
+		}
+		return count;
+	}
+
+	/**
+	 * Step through the remainder of a block, when execution begins part way
+	 * through it, for at most a given number of instructions. This returns the
+	 * number of instructions executed, which stops at the next block (or the end
+	 * of the code) unless execution halts or exhausts its limit first.
+	 *
+	 * @param state
+	 * @param program
+	 * @param limit
+	 * @return
+	 */
+	static long align(State state, Program program, long limit) {
+		int ip = program.indexOf(state.pc());
+		long count = 0;
+		while (count < limit && state.status() == Status.OK && ip >= 0 && program.handlers[ip] != Program.BLOCK
+				&& program.handlers[ip] != Program.END) {
+			Bytecode.execute(state);
+			count++;
+			ip = program.indexOf(state.pc());
+		}
+		return count;
+	}
+
+	/**
+	 * Step through the remainder of a block which has insufficient gas, or which
+	 * would underflow the stack or exceed its limit, using the per-step
+	 * interpreter. This begins at the instruction with a given
+	 * index, for which the given amount of gas is available (i.e. before its
+	 * static cost is charged). Hence, execution runs out of gas at exactly the
+	 * same point as when stepping from the start. This returns the number of
+	 * instructions executed, and the state is written back.
+	 *
+	 * @param state
+	 * @param program
+	 * @param s
+	 * @param sp
+	 * @param ip
+	 * @param gas
+	 * @return
+	 */
+	static long exhaust(State state, Program program, long[] s, int sp, int ip, long gas) {
+		store(s, sp, state.getStackMemory());
+		state.jump(program.positions[ip]);
+		state.consume(state.gas() - gas);
+		long count = 0;
+		do {
+			Bytecode.execute(state);
+			count++;
+			ip = program.indexOf(state.pc());
+		} while (state.status() == Status.OK && ip >= 0 && program.handlers[ip] != Program.BLOCK);
+		return count;
+	}
+
+	/**
+	 * Assign a small value to the stack word starting at a given offset.
+	 *
+	 * @param s
+	 * @param offset
+	 * @param value
+	 */
+	static void set(long[] s, int offset, long value) {
+		s[offset] = 0;
+		s[offset + 1] = 0;
+		s[offset + 2] = 0;
+		s[offset + 3] = value;
+	}
+
+	/**
+	 * Get the array of limbs with which to execute a given stack. This is the
+	 * stack's own array for a <code>LimbStack</code>, and otherwise a given
+	 * array into which the stack will be copied.
+	 *
+	 * @param stack
+	 * @param registers
+	 * @return
+	 */
+	static long[] limbs(Stack<w256> stack, long[] registers) {
+		return (stack instanceof LimbStack) ? ((LimbStack) stack).limbs() : registers;
+	}
+
+	/**
+	 * Copy the contents of a given stack into an array of limbs, returning the
+	 * number of words copied. Nothing is copied when the array already backs
+	 * the stack.
+	 *
+	 * @param stack
+	 * @param s
+	 * @return
+	 */
+	static int load(Stack<w256> stack, long[] s) {
+		int n = stack.used();
+		if (stack instanceof LimbStack && ((LimbStack) stack).limbs() == s) {
+			return n;
+		} else if (stack instanceof WordStack) {
+			WordStack ws = (WordStack) stack;
+			for (int i = 0; i != n; ++i) {
+				ws.peek(n - i - 1).store(s, i << 2);
+			}
+		} else {
+			for (int i = 0; i != n; ++i) {
+				w256 w = stack.read(i);
+				for (int j = 0; j != 4; ++j) {
+					s[(i << 2) + j] = w.limb(j);
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Replace the contents of a given stack with the first <code>n</code> words
+	 * from an array of limbs. When the array already backs the stack, only the
+	 * number of words is updated.
+	 *
+	 * @param s
+	 * @param n
+	 * @param stack
+	 */
+	static void store(long[] s, int n, Stack<w256> stack) {
+		if (stack instanceof LimbStack && ((LimbStack) stack).limbs() == s) {
+			((LimbStack) stack).resize(n);
+		} else if (stack instanceof WordStack) {
+			WordStack ws = (WordStack) stack;
+			ws.drop(ws.used());
+			for (int i = 0; i != n; ++i) {
+				ws.push().load(s, i << 2);
+			}
+		} else {
+			while (stack.used() > 0) {
+				stack.pop();
+			}
+			for (int i = 0; i != n; ++i) {
+				int j = i << 2;
+				stack.push(w256.valueOf(s[j], s[j + 1], s[j + 2], s[j + 3]));
+			}
+		}
+	}
+
+	/**
+	 * A simple arithmetic loop, which includes MUL, DIV and EXP, and stores the
+	 * loop counter in memory and storage on each iteration.
+	 */
+	static final byte[] LOOP = new byte[] {
+			PUSH1, 0x00,
+			JUMPDEST,
+			PUSH1, 0x01, ADD, // i = i + 1
+			(byte) DUP1, (byte) DUP1, MUL, (byte) DUP2, (byte) SWAP1, DIV, POP, // i / (i * i)
+			(byte) DUP1, PUSH1, 0x03, EXP, POP, // 3^i
+			(byte) DUP1, PUSH1, 0x20, MSTORE, (byte) DUP1, PUSH1, 0x00, SSTORE, // mem[0x20] = store[0] = i
+			(byte) DUP1, PUSH3, 0x01, 0x00, 0x00, GT, PUSH1, 0x02, JUMPI, // loop while i < 0x10000
+			STOP };
+
+	/**
+	 * Generate a random straight-line program of arithmetic, comparison, bitwise
+	 * and stack instructions, which never underflows the stack.
+	 *
+	 * @param random
+	 * @return
+	 */
+	static byte[] randomProgram(Random random) {
+		int[] binary = { ADD, MUL, SUB, DIV, SDIV, MOD, SMOD, EXP, SIGNEXTEND, LT, GT, SLT, SGT, EQ, AND, OR, XOR,
+				BYTE, SHL, SHR, SAR };
+		int[] unary = { ISZERO, NOT, POP };
+		java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+		int depth = 0;
+		for (int k = 0; k != 40; ++k) {
+			int choice = random.nextInt(10);
+			if (depth < 3 || choice < 4) {
+				int n = random.nextInt(3) == 0 ? 1 : 1 + random.nextInt(32);
+				out.write(PUSH1 + n - 1);
+				for (int i = 0; i != n; ++i) {
+					out.write(random.nextInt(4) == 0 ? 0xff : random.nextInt(256));
+				}
+				depth++;
+			} else if (choice < 6) {
+				out.write(binary[random.nextInt(binary.length)]);
+				depth--;
+			} else if (choice < 7) {
+				out.write(random.nextBoolean() ? ADDMOD : MULMOD);
+				depth -= 2;
+			} else if (choice < 8) {
+				int opcode = unary[random.nextInt(unary.length)];
+				out.write(opcode);
+				depth -= (opcode == POP) ? 1 : 0;
+			} else if (choice < 9) {
+				out.write(DUP1 + random.nextInt(Math.min(depth, 16)));
+				depth++;
+			} else {
+				out.write(SWAP1 + random.nextInt(Math.min(depth - 1, 16)));
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Check that <code>run()</code> and table dispatch agree with stepping
+	 * through <code>Bytecode.execute()</code> on randomly generated straight-line
+	 * programs, followed by some loops.
+	 */
+	public static void testRun() {
+		System.out.println("*** TESTING RUN");
+		Random random = new Random(3);
+		int failures = 0;
+		for (int t = 0; t != 10002; ++t) {
+			// Finish with loops, which exercise jumps and memory
+			byte[] code = (t == 10000) ? LOOP : (t == 10001) ? CONTRACT : randomProgram(random);
+			ArrayState expected = new ArrayState(code);
+			while (expected.status() == Status.OK && expected.pc() < code.length) {
+				Bytecode.execute(expected);
+			}
+			ArrayState actual = new ArrayState(code);
+			run(actual);
+			ArrayState table = new ArrayState(code);
+			new VirtualMachine(Dispatch.TABLE).execute(table, Long.MAX_VALUE);
+			// Table dispatch also operates in place on a word stack
+			ArrayState words = new ArrayState(null, code, Long.MAX_VALUE, new ArrayWordStack(16));
+			new VirtualMachine(Dispatch.TABLE).execute(words, Long.MAX_VALUE);
+			if (!equals(expected, actual) || !equals(expected, table) || !equals(expected, words)) {
+				if (failures++ < 3) {
+					System.out.println("FAILED: " + expected.getStackMemory() + " != " + actual.getStackMemory()
+							+ ", " + table.getStackMemory() + ", " + words.getStackMemory());
+				}
+			}
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	/**
+	 * Check that every way of executing agrees on exactly where execution runs
+	 * out of gas, for various amounts of gas up to that needed to complete.
+	 * Also, check the cost of expanding memory and that an infinite loop is
+	 * bounded by its gas.
+	 */
+	public static void testGas() {
+		System.out.println("*** TESTING GAS");
+		Random random = new Random(5);
+		int failures = 0;
+		// Memory of 33 words for the first MSTORE, then none for the second
+		byte[] memory = { PUSH1, 0x01, PUSH2, 0x04, 0x00, MSTORE, PUSH1, 0x01, PUSH1, 0x00, MSTORE, STOP };
+		byte[] forever = { JUMPDEST, PUSH1, 0x00, JUMP };
+		// Limits for interleaving run() with stepping, drawn independently
+		Random limits = new Random(9);
+		for (int t = 0; t != 1003; ++t) {
+			byte[] code = (t == 1000) ? LOOP : (t == 1001) ? CONTRACT : (t == 1002) ? memory : randomProgram(random);
+			ArrayState full = new ArrayState(code);
+			while (full.status() == Status.OK && full.pc() < code.length) {
+				Bytecode.execute(full);
+			}
+			long needed = Long.MAX_VALUE - full.gas();
+			if (t == 1002 && needed != 18 + Bytecode.gasMemory(33)) {
+				failures++;
+				System.out.println("FAILED: memory expansion cost " + needed);
+			}
+			for (long gas : new long[] { needed, needed - 1, random.nextInt((int) needed + 1), 0 }) {
+				ArrayState expected = new ArrayState(null, code, gas);
+				while (expected.status() == Status.OK && expected.pc() < code.length) {
+					Bytecode.execute(expected);
+				}
+				ArrayState actual = new ArrayState(null, code, gas);
+				run(actual);
+				ArrayState table = new ArrayState(null, code, gas);
+				new VirtualMachine(Dispatch.TABLE).execute(table, Long.MAX_VALUE);
+				ArrayState compiled = new ArrayState(null, code, gas);
+				Compiler.execute(compiled, Compiler.compile(compiled.getProgram()), Long.MAX_VALUE);
+				// Alternate between run() at small limits and stepping, in both orders
+				ArrayState mixed = new ArrayState(null, code, gas);
+				boolean stepping = (t & 1) == 0;
+				while (mixed.status() == Status.OK && mixed.pc() < code.length) {
+					if (stepping) {
+						Bytecode.execute(mixed);
+					} else {
+						run(mixed, 1 + limits.nextInt(3));
+					}
+					stepping = !stepping;
+				}
+				boolean exhausted = (gas < needed) == (expected.status() == Status.OUT_OF_GAS);
+				if (!exhausted || !equals(expected, actual) || !equals(expected, table)
+						|| !equals(expected, compiled) || !equals(expected, mixed)) {
+					if (failures++ < 3) {
+						System.out.println("FAILED: " + gas + " of " + needed + " gives " + expected + " != " + actual
+								+ ", " + table + ", " + compiled + ", " + mixed);
+					}
+				}
+			}
+		}
+		ArrayState state = new ArrayState(null, forever, 1000);
+		run(state);
+		if (state.status() != Status.OUT_OF_GAS || state.gas() != 0) {
+			failures++;
+			System.out.println("FAILED: infinite loop gives " + state.status());
+		}
+		// GAS, PUSH1 1, ADD, PUSH1 2, ADD, DUP1, SWAP1, SUB, STOP leaves 977 gas
+		byte[] resumed = Hex.fromBigEndianString("5A60010160020180900300");
+		ArrayState[] states = new ArrayState[4];
+		for (int i = 0; i != states.length; ++i) {
+			states[i] = new ArrayState(null, resumed, 1000);
+		}
+		run(states[0], 1);
+		Bytecode.execute(states[1]);
+		new VirtualMachine().execute(states[2], 1);
+		run(states[3], 3);
+		for (int i = 0; i != states.length; ++i) {
+			if (i == 0) {
+				while (states[i].status() == Status.OK && states[i].pc() < resumed.length) {
+					Bytecode.execute(states[i]);
+				}
+			} else {
+				run(states[i]);
+			}
+			if (states[i].status() != Status.STOP || states[i].gas() != 977) {
+				failures++;
+				System.out.println("FAILED: resuming leaves " + states[i].gas() + " gas");
+			}
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	/**
+	 * Check that underflowing the stack or exceeding its limit halts with an
+	 * exception at the same point, whether stepping or running, and that the
+	 * primitive stack reports such faults explicitly. A block which faults must
+	 * still run out of gas first, should the gas run out before the fault.
+	 */
+	public static void testStack() {
+		System.out.println("*** TESTING STACK");
+		int failures = 0;
+		byte[] underflow = { PUSH1, 0x01, ADD };
+		byte[] overflow = new byte[(STACK_LIMIT + 1) * 2];
+		for (int i = 0; i != overflow.length; i += 2) {
+			overflow[i] = PUSH1;
+		}
+		// Duplicate the top of the stack forever
+		byte[] growing = { PUSH1, 0x00, JUMPDEST, (byte) DUP1, PUSH1, 0x02, JUMP };
+		// Runs out of gas at PUSH1 0xF5, before SWAP3 underflows the stack
+		byte[] starved = Hex.fromBigEndianString("600060008060005560F5920C");
+		byte[][] codes = { underflow, overflow, growing, starved };
+		long[] gases = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 379 };
+		for (int i = 0; i != codes.length; ++i) {
+			byte[] code = codes[i];
+			long gas = gases[i];
+			ArrayState expected = new ArrayState(null, code, gas);
+			while (expected.status() == Status.OK && expected.pc() < code.length) {
+				Bytecode.execute(expected);
+			}
+			ArrayState actual = new ArrayState(null, code, gas);
+			run(actual);
+			ArrayState compiled = new ArrayState(null, code, gas);
+			Compiler.execute(compiled, Compiler.compile(compiled.getProgram()), Long.MAX_VALUE);
+			ArrayState table = new ArrayState(null, code, gas);
+			new VirtualMachine(Dispatch.TABLE).execute(table, Long.MAX_VALUE);
+			ArrayState words = new ArrayState(null, code, gas, new ArrayWordStack(16));
+			new VirtualMachine(Dispatch.TABLE).execute(words, Long.MAX_VALUE);
+			Status status = (code == starved) ? Status.OUT_OF_GAS : Status.EXCEPTION;
+			for (State state : new State[] { expected, actual, compiled, table, words }) {
+				if (state.status() != status || state.getStackMemory().used() > STACK_LIMIT
+						|| !equals(expected, state)) {
+					failures++;
+					System.out.println("FAILED: " + state.status() + " with " + state.getStackMemory().used()
+							+ " words at " + state.pc());
+				}
+			}
+			if (code == starved && expected.pc() != 7) {
+				failures++;
+				System.out.println("FAILED: halted at " + expected.pc());
+			}
+		}
+		LimbStack stack = new LimbStack();
+		if (stack.dup(1) || stack.swap(1) || stack.drop(1) || !stack.push(0, 0, 0, 1) || stack.swap(1)) {
+			failures++;
+			System.out.println("FAILED: stack underflow not reported");
+		}
+		while (stack.dup(1)) {
+		}
+		if (stack.used() != STACK_LIMIT || stack.push(0, 0, 0, 1) || !stack.swap(STACK_LIMIT - 1)) {
+			failures++;
+			System.out.println("FAILED: stack limit not reported");
+		}
+		try {
+			new LimbStack().pop();
+			failures++;
+			System.out.println("FAILED: pop from empty stack");
+		} catch (IllegalStateException e) {
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	static boolean equals(State lhs, State rhs) {
+		String l = lhs.getStackMemory().toString();
+		String r = rhs.getStackMemory().toString();
+		return lhs.status() == rhs.status() && lhs.pc() == rhs.pc() && lhs.gas() == rhs.gas() && l.equals(r)
+				&& equals(lhs.getLocalMemory(), rhs.getLocalMemory())
+				&& equals(lhs.getStorageMemory(), rhs.getStorageMemory());
+	}
+
+	private static boolean equals(Memory<w256> lhs, Memory<w256> rhs) {
+		if (lhs.used() != rhs.used()) {
+			return false;
+		}
+		for (int i = 0; i != lhs.used(); ++i) {
+			if (!lhs.read(i).equals(rhs.read(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare the throughput of <code>run()</code> against stepping through
+	 * <code>Bytecode.execute()</code>, on a simple loop.
+	 */
+	public static void benchRun() {
+		System.out.println("*** BENCHMARKING RUN");
+		byte[] bytes = LOOP;
+		for (int i = 0; i != 10; ++i) {
+			ArrayState state = new ArrayState(bytes);
+			long count = 0;
+			long start = System.nanoTime();
+			while (state.status() == Status.OK && state.pc() < state.getCodeMemory().used()) {
+				Bytecode.execute(state);
+				count++;
+			}
+			long step = System.nanoTime() - start;
+			state = new ArrayState(bytes);
+			start = System.nanoTime();
+			run(state);
+			long tight = System.nanoTime() - start;
+			System.out.println(count + " instructions, step " + (step / count) + "ns/instruction, run "
+					+ (tight / count) + "ns/instruction");
+		}
+	}
+
+	/**
+	 * Code in the style of a compiled Solidity function, which accumulates a sum
+	 * of squares in a loop and hashes a mapping key on each iteration, as follows:
+	 *
+	 * <pre>
+	 * for (uint i = 0; i < 1000; i++) {
+	 * 	s += i * i;
+	 * 	m[i] = s;
+	 * }
+	 * </pre>
+	 *
+	 * Since storage is indexed directly, the hash of the key is discarded and the
+	 * sum is stored at index <code>i</code>.
+	 */
+	static final byte[] CONTRACT = new byte[] {
+			PUSH1, (byte) 0x80, PUSH1, 0x40, MSTORE, // free memory pointer
+			PUSH1, 0x00, PUSH1, 0x00, // s = 0, i = 0
+			JUMPDEST, // loop:
+			PUSH2, 0x03, (byte) 0xe8, (byte) DUP2, LT, ISZERO, PUSH1, 0x32, JUMPI, // if !(i < 1000) goto end
+			(byte) DUP1, (byte) DUP1, MUL, (byte) DUP3, ADD, (byte) SWAP2, POP, // s = s + i * i
+			(byte) DUP1, PUSH1, 0x00, MSTORE, PUSH1, 0x01, PUSH1, 0x20, MSTORE, // mem = i . 1
+			PUSH1, 0x40, PUSH1, 0x00, SHA3, POP, // keccak(mem)
+			(byte) DUP2, (byte) DUP2, SSTORE, // m[i] = s
+			PUSH1, 0x01, ADD, PUSH1, 0x09, JUMP, // i++; goto loop
+			JUMPDEST, POP, POP, STOP // end:
+	};
+
+	/**
+	 * Compare the throughput of switch and table dispatch, when stepping through
+	 * code in the style of a compiled Solidity function.
+	 */
+	public static void benchDispatch() {
+		System.out.println("*** BENCHMARKING DISPATCH");
+		VirtualMachine[] machines = { new VirtualMachine(Dispatch.SWITCH), new VirtualMachine(Dispatch.TABLE) };
+		for (int i = 0; i != 10; ++i) {
+			String r = "";
+			for (VirtualMachine vm : machines) {
+				long count = 0;
+				long start = System.nanoTime();
+				for (int j = 0; j != 20; ++j) {
+					ArrayState state = new ArrayState(CONTRACT);
+					count += vm.execute(state, Long.MAX_VALUE);
+					if (state.status() != Status.STOP) {
+						throw new IllegalStateException("unexpected status: " + state.status());
+					}
+				}
+				long time = System.nanoTime() - start;
+				r += vm.getDispatch() + " " + (time / count) + "ns/instruction ";
+			}
+			System.out.println(r);
+		}
+	}
+
+	public static void main(String[] args) {
+		testRun();
+		testGas();
+		testStack();
+		benchRun();
+		benchDispatch();
+		System.out.println("Superinstructions: " + Program.getFusionStatistics());
+	}
 }
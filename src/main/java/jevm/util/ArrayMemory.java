@@ -100,7 +100,7 @@ public class ArrayMemory<T> implements VirtualMachine.Memory<T> {
 
 	@Override
 	public w256 size() {
-		return new w256(fp);
+		return w256.valueOf(fp);
 	}
 
 	@Override
@@ -108,6 +108,25 @@ public class ArrayMemory<T> implements VirtualMachine.Memory<T> {
 		return fp;
 	}
 
+	/**
+	 * Get the number of slots allocated for this memory, which may exceed the
+	 * number in use.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return memory.length;
+	}
+
+	/**
+	 * Return every slot in use to the initial value, such that this memory is
+	 * empty but retains its allocated slots.
+	 */
+	public void clear() {
+		Arrays.fill(memory, 0, fp, value);
+		fp = 0;
+	}
+
 	@Override
 	public String toString() {
 		System.out.println("FP: " + fp);
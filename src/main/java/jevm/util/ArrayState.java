@@ -16,6 +16,9 @@ package jevm.util;
 import java.util.Arrays;
 
 import jevm.core.Bytecode;
+import jevm.core.InstructionSet;
+import jevm.core.JumpDestinations;
+import jevm.core.Program;
 import jevm.core.VirtualMachine;
 import jevm.util.Word.w256;
 
@@ -28,17 +31,39 @@ public class ArrayState implements VirtualMachine.State {
 	/**
 	 * GAS counter identifies amount of remaining GAS.
 	 */
-	private int gas;
+	private long gas;
 
 	/**
 	 * The set of bytecodes associated with this state.
 	 */
 	private ByteArrayMemory code;
 
+	/**
+	 * The hash of the code, or <code>null</code> if this is not known.
+	 */
+	private w256 codeHash;
+
+	/**
+	 * The instructions available to the code, as determined by the fork in
+	 * which it executes.
+	 */
+	private InstructionSet instructions;
+
+	/**
+	 * The valid jump destinations within the code, which are determined when
+	 * first required.
+	 */
+	private JumpDestinations jumpDestinations;
+
+	/**
+	 * The pre-decoded form of the code, which is determined when first required.
+	 */
+	private Program program;
+
 	/**
 	 * Stack of 256bit words.
 	 */
-	private ArrayStack<w256> stack;
+	private VirtualMachine.Stack<w256> stack;
 	/**
 	 * Memory Pointer identifies first unused slot in memory
 	 */
@@ -55,13 +80,146 @@ public class ArrayState implements VirtualMachine.State {
 	private VirtualMachine.State.Status status;
 
 	public ArrayState(byte[] code) {
+		this(null, code);
+	}
+
+	/**
+	 * Construct a state for executing some code with a known hash, and
+	 * effectively unlimited gas.
+	 *
+	 * @param codeHash
+	 * @param code
+	 */
+	public ArrayState(w256 codeHash, byte[] code) {
+		this(codeHash, code, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Construct a state for executing some code with a known hash and a given
+	 * amount of gas. The hash allows the results of analysing the code (e.g. its
+	 * jump destinations) to be shared with other executions of the same code.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 */
+	public ArrayState(w256 codeHash, byte[] code, long gas) {
+		this(codeHash, code, gas, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Construct a state for executing some code with a known hash and a given
+	 * amount of gas, in a given fork. The code is decoded (and priced)
+	 * according to the instructions available in that fork.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @param instructions
+	 */
+	public ArrayState(w256 codeHash, byte[] code, long gas, InstructionSet instructions) {
+		this(codeHash, code, gas, instructions, new LimbStack());
+	}
+
+	/**
+	 * Construct a state for executing some code with a known hash and a given
+	 * amount of gas, using a given (empty) stack. By default, a
+	 * <code>LimbStack</code> is used.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @param stack
+	 */
+	public ArrayState(w256 codeHash, byte[] code, long gas, VirtualMachine.Stack<w256> stack) {
+		this(codeHash, code, gas, InstructionSet.LATEST, stack);
+	}
+
+	/**
+	 * Construct a state for executing some code with a known hash and a given
+	 * amount of gas in a given fork, using a given (empty) stack.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @param instructions
+	 * @param stack
+	 */
+	public ArrayState(w256 codeHash, byte[] code, long gas, InstructionSet instructions,
+			VirtualMachine.Stack<w256> stack) {
 		this.status = VirtualMachine.State.Status.OK;
+		this.gas = gas;
+		this.codeHash = codeHash;
+		this.instructions = instructions;
 		this.code = new ByteArrayMemory(code);
-		this.stack = new ArrayStack<>(w256.ZERO,new w256[0]);
+		this.stack = stack;
 		this.memory = new ArrayMemory<>(w256.ZERO,new w256[0]);
 		this.storage = new ArrayMemory<>(w256.ZERO,new w256[0]);
 	}
 
+	/**
+	 * Reinitialise this state for executing some code with a known hash and a
+	 * given amount of gas, as though it had just been constructed. The stack and
+	 * memories are emptied rather than reallocated, whilst the results of
+	 * analysing the code are retained when it is unchanged.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @return
+	 */
+	public ArrayState reset(w256 codeHash, byte[] code, long gas) {
+		return reset(codeHash, code, gas, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Reinitialise this state for executing some code with a known hash and a
+	 * given amount of gas in a given fork. The decoded form of the code is
+	 * retained only when both the code and the fork are unchanged.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @param instructions
+	 * @return
+	 */
+	public ArrayState reset(w256 codeHash, byte[] code, long gas, InstructionSet instructions) {
+		boolean same = this.code.holds(code)
+				&& (codeHash == null ? this.codeHash == null : codeHash.equals(this.codeHash));
+		if (!same) {
+			this.code.reset(code);
+			this.codeHash = codeHash;
+			this.jumpDestinations = null;
+			this.program = null;
+		} else if (instructions != this.instructions) {
+			this.program = null;
+		}
+		this.instructions = instructions;
+		this.pc = 0;
+		this.gas = gas;
+		this.status = VirtualMachine.State.Status.OK;
+		if (stack instanceof LimbStack) {
+			((LimbStack) stack).resize(0);
+		} else {
+			while (stack.used() > 0) {
+				stack.pop();
+			}
+		}
+		memory.clear();
+		storage.clear();
+		return this;
+	}
+
+	/**
+	 * Get the number of memory and storage slots allocated for this state, which
+	 * determines how much is retained when it is reused.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return memory.capacity() + storage.capacity();
+	}
+
 	@Override
 	public Status status() {
 		return status;
@@ -70,6 +228,9 @@ public class ArrayState implements VirtualMachine.State {
 	@Override
 	public void halt(Status status) {
 		this.status = status;
+		if (status == Status.EXCEPTION || status == Status.OUT_OF_GAS) {
+			this.gas = 0;
+		}
 	}
 
 	@Override
@@ -83,15 +244,46 @@ public class ArrayState implements VirtualMachine.State {
 	}
 
 	@Override
-	public int gas() {
+	public long gas() {
 		return gas;
 	}
 
+	@Override
+	public void consume(long gas) {
+		this.gas -= gas;
+	}
+
 	@Override
 	public VirtualMachine.Memory<Byte> getCodeMemory() {
 		return code;
 	}
 
+	@Override
+	public JumpDestinations getJumpDestinations() {
+		if (jumpDestinations == null) {
+			byte[] bytes = code.peekBytes(0, code.used());
+			// NOTE: without a known hash, analysing the code is cheaper than hashing it
+			jumpDestinations = (codeHash == null) ? JumpDestinations.analyse(bytes)
+					: JumpDestinations.of(codeHash, bytes);
+		}
+		return jumpDestinations;
+	}
+
+	@Override
+	public Program getProgram() {
+		if (program == null) {
+			byte[] bytes = code.peekBytes(0, code.used());
+			program = (codeHash == null) ? Program.decode(bytes, instructions)
+					: Program.of(codeHash, bytes, instructions);
+		}
+		return program;
+	}
+
+	@Override
+	public InstructionSet getInstructionSet() {
+		return instructions;
+	}
+
 	@Override
 	public VirtualMachine.Stack<w256> getStackMemory() {
 		return stack;
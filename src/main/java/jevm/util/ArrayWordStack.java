@@ -0,0 +1,172 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.util;
+
+import java.util.Arrays;
+
+import jevm.core.VirtualMachine;
+import jevm.util.Word.m256;
+import jevm.util.Word.w256;
+
+/**
+ * A stack of words backed by an array of mutable slots. Slots are allocated
+ * when the array is expanded and then reused for the lifetime of the stack.
+ * Thus, once the stack has reached its maximum depth, operating on it in place
+ * does not allocate.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ArrayWordStack implements VirtualMachine.WordStack {
+	/**
+	 * Free pointer
+	 */
+	protected int fp;
+
+	/**
+	 * Stack slots, where the bottom of the stack is at index zero.
+	 */
+	protected m256[] slots;
+
+	public ArrayWordStack(int capacity) {
+		this.slots = new m256[0];
+		ensureCapacity(capacity);
+	}
+
+	@Override
+	public w256 read(w256 address) {
+		if(address.isInt()) {
+			return read(address.toInt());
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public w256 read(int address) {
+		return slots[address].toWord();
+	}
+
+	@Override
+	public boolean write(w256 address, w256 value) {
+		if(address.isInt()) {
+			return write(address.toInt(),value);
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public boolean write(int address, w256 value) {
+		slots[address].set(value);
+		return true;
+	}
+
+	@Override
+	public boolean expand(w256 address) {
+		if(address.isInt()) {
+			int addr = address.toInt();
+			if(fp <= addr) {
+				ensureCapacity(addr + 1);
+				while(fp <= addr) {
+					slots[fp++].set(0);
+				}
+			}
+			return true;
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public w256 size() {
+		return w256.valueOf(fp);
+	}
+
+	@Override
+	public int used() {
+		return fp;
+	}
+
+	@Override
+	public w256 pop() {
+		return slots[--fp].toWord();
+	}
+
+	@Override
+	public void push(w256 value) {
+		push().set(value);
+	}
+
+	@Override
+	public m256 peek(int depth) {
+		return slots[fp - depth - 1];
+	}
+
+	@Override
+	public m256 push() {
+		if(slots.length <= fp) {
+			ensureCapacity((1 + slots.length) * 2);
+		}
+		return slots[fp++];
+	}
+
+	@Override
+	public void drop(int n) {
+		fp = fp - n;
+	}
+
+	@Override
+	public void dup(int n) {
+		m256 slot = slots[fp - n];
+		push().set(slot);
+	}
+
+	@Override
+	public void swap(int n) {
+		// Exchange slots themselves rather than their contents
+		int top = fp - 1;
+		m256 tmp = slots[top];
+		slots[top] = slots[top - n];
+		slots[top - n] = tmp;
+	}
+
+	@Override
+	public String toString() {
+		String r = "[";
+		for(int i=0;i!=fp;++i) {
+			if(i != 0) {
+				r += ",";
+			}
+			r += slots[i];
+		}
+		return r + "]";
+	}
+
+	/**
+	 * Ensure the underlying array has at least a given number of slots, allocating
+	 * any new slots as necessary.
+	 *
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if(slots.length < capacity) {
+			int length = slots.length;
+			slots = Arrays.copyOf(slots, capacity);
+			for(int i=length;i<capacity;++i) {
+				slots[i] = new m256();
+			}
+		}
+	}
+}
@@ -92,7 +92,7 @@ public class ByteArrayMemory implements VirtualMachine.Memory<Byte> {
 
 	@Override
 	public w256 size() {
-		return new w256(fp);
+		return w256.valueOf(fp);
 	}
 
 	@Override
@@ -100,6 +100,27 @@ public class ByteArrayMemory implements VirtualMachine.Memory<Byte> {
 		return fp;
 	}
 
+	/**
+	 * Check whether this memory is backed by a given array of bytes.
+	 *
+	 * @param data
+	 * @return
+	 */
+	boolean holds(byte[] data) {
+		return memory == data;
+	}
+
+	/**
+	 * Reinitialise this memory with the given array of bytes, as for
+	 * construction.
+	 *
+	 * @param data
+	 */
+	void reset(byte[] data) {
+		this.memory = data;
+		this.fp = data.length;
+	}
+
 	public byte[] peekBytes(int start, int end) {
 		return Arrays.copyOfRange(memory, start, end);
 	}
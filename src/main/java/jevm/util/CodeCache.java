@@ -0,0 +1,123 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import jevm.util.Word.w256;
+
+/**
+ * A bounded cache of the results from analysing contract code, keyed by the
+ * hash of that code. Since code is immutable, the result of analysing it can
+ * be shared across all executions of the same contract. When the cache is
+ * full, the least recently used entry is evicted. The cache is safe for use by
+ * multiple threads. The analysis itself is performed outside of any lock, so
+ * two threads missing on the same code at the same time may both analyse it.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ *            The result of analysing some code.
+ */
+public class CodeCache<T> {
+	private final LinkedHashMap<w256, T> entries;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public CodeCache(final int capacity) {
+		this.entries = new LinkedHashMap<w256, T>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<w256, T> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get the result of analysing some code, either from the cache or by
+	 * applying the given analysis.
+	 *
+	 * @param codeHash
+	 *            Hash of the code, which identifies it.
+	 * @param code
+	 * @param analysis
+	 * @return
+	 */
+	public T get(w256 codeHash, byte[] code, Function<byte[], T> analysis) {
+		T result;
+		synchronized (entries) {
+			result = entries.get(codeHash);
+		}
+		if (result != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			result = analysis.apply(code);
+			synchronized (entries) {
+				entries.put(codeHash, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache.
+	 *
+	 * @return
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups which required the code to be analysed.
+	 *
+	 * @return
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of entries currently held in the cache.
+	 *
+	 * @return
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Discard all entries and reset the counters.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		hits.reset();
+		misses.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits() + ", misses=" + misses() + ", size=" + size();
+	}
+}
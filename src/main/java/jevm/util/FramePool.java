@@ -0,0 +1,242 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.util;
+
+import jevm.core.InstructionSet;
+import jevm.core.VirtualMachine;
+import jevm.util.Word.w256;
+
+/**
+ * A pool of execution frames (i.e. states, along with their stacks and
+ * memories) which are reset for reuse rather than reallocated. Frames are
+ * acquired for each execution (e.g. each nested call) and released once it
+ * completes, in any order. The pool retains a bounded number of frames, and
+ * discards any frame whose memory and storage have grown beyond a bounded
+ * number of slots. Thus, a single large execution does not pin its memory for
+ * the lifetime of the pool.
+ * <p>
+ * A pool is confined to the thread which created it, and is not safe for use
+ * by any other. Each thread can obtain its own pool via <code>local()</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class FramePool {
+	/**
+	 * The default number of frames retained by each thread's pool.
+	 */
+	public static final int DEFAULT_FRAMES = 64;
+
+	/**
+	 * The default number of memory and storage slots a frame may have allocated
+	 * and still be retained.
+	 */
+	public static final int DEFAULT_SLOTS = 1 << 16;
+
+	private static final ThreadLocal<FramePool> POOLS = ThreadLocal
+			.withInitial(() -> new FramePool(DEFAULT_FRAMES, DEFAULT_SLOTS));
+
+	private final Thread owner = Thread.currentThread();
+	private final ArrayState[] frames;
+	private final int slots;
+	private int size;
+	private long hits;
+	private long misses;
+	private long discards;
+
+	/**
+	 * Construct a pool for the current thread, which retains at most a given
+	 * number of frames, each of which has at most a given number of memory and
+	 * storage slots allocated.
+	 *
+	 * @param frames
+	 * @param slots
+	 */
+	public FramePool(int frames, int slots) {
+		this.frames = new ArrayState[frames];
+		this.slots = slots;
+	}
+
+	/**
+	 * Get the pool for the current thread.
+	 *
+	 * @return
+	 */
+	public static FramePool local() {
+		return POOLS.get();
+	}
+
+	/**
+	 * Acquire a frame for executing some code with a known hash (or
+	 * <code>null</code>) and a given amount of gas. This is reset from a
+	 * retained frame where possible, and allocated otherwise.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @return
+	 */
+	public ArrayState acquire(w256 codeHash, byte[] code, long gas) {
+		return acquire(codeHash, code, gas, InstructionSet.LATEST);
+	}
+
+	/**
+	 * Acquire a frame for executing some code with a known hash (or
+	 * <code>null</code>) and a given amount of gas in a given fork.
+	 *
+	 * @param codeHash
+	 * @param code
+	 * @param gas
+	 * @param instructions
+	 * @return
+	 */
+	public ArrayState acquire(w256 codeHash, byte[] code, long gas, InstructionSet instructions) {
+		checkOwner();
+		if (size == 0) {
+			misses++;
+			return new ArrayState(codeHash, code, gas, instructions);
+		}
+		ArrayState frame = frames[--size];
+		frames[size] = null;
+		hits++;
+		return frame.reset(codeHash, code, gas, instructions);
+	}
+
+	/**
+	 * Release a frame which is no longer in use, such that it may be reused.
+	 * Frames are discarded when the pool is full or they have grown too large.
+	 * A frame must not be used (or released again) once released.
+	 *
+	 * @param frame
+	 */
+	public void release(ArrayState frame) {
+		checkOwner();
+		if (size == frames.length || frame.capacity() > slots) {
+			discards++;
+		} else {
+			frames[size++] = frame;
+		}
+	}
+
+	/**
+	 * Get the number of frames acquired from those retained.
+	 *
+	 * @return
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of frames acquired by allocating them.
+	 *
+	 * @return
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of frames released but not retained.
+	 *
+	 * @return
+	 */
+	public long discards() {
+		return discards;
+	}
+
+	/**
+	 * Get the number of frames currently retained.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Discard all retained frames and reset the statistics.
+	 */
+	public void clear() {
+		checkOwner();
+		for (int i = 0; i != size; ++i) {
+			frames[i] = null;
+		}
+		size = 0;
+		hits = 0;
+		misses = 0;
+		discards = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits + ", misses=" + misses + ", discards=" + discards + ", size=" + size;
+	}
+
+	private void checkOwner() {
+		if (Thread.currentThread() != owner) {
+			throw new IllegalStateException("frame pool accessed from another thread");
+		}
+	}
+
+	// ========================================================================
+	// Tests
+	// ========================================================================
+
+	/**
+	 * Check that a frame reused from a pool executes exactly as a fresh one, and
+	 * that frames are discarded when the pool is full or they are too large.
+	 */
+	public static void testPool() {
+		System.out.println("*** TESTING POOL");
+		int failures = 0;
+		FramePool pool = new FramePool(2, 4096);
+		// Write to storage and memory, then stop
+		byte[] store = Hex.fromBigEndianString("6001600055600260205200");
+		// Count down from 16 to 0
+		byte[] loop = Hex.fromBigEndianString("60105b600190038060025700");
+		// Expand memory beyond 4096 slots
+		byte[] large = Hex.fromBigEndianString("6001612000520000");
+		ArrayState[] frames = new ArrayState[3];
+		for (int i = 0; i != frames.length; ++i) {
+			frames[i] = pool.acquire(null, store, Long.MAX_VALUE);
+			VirtualMachine.run(frames[i]);
+		}
+		for (ArrayState frame : frames) {
+			pool.release(frame);
+		}
+		for (byte[] code : new byte[][] { loop, large }) {
+			ArrayState expected = new ArrayState(code);
+			VirtualMachine.run(expected);
+			ArrayState actual = pool.acquire(null, code, Long.MAX_VALUE);
+			VirtualMachine.run(actual);
+			if (expected.gas() != actual.gas() || !expected.toString().equals(actual.toString())) {
+				failures++;
+				System.out.println("FAILED: " + expected + " != " + actual);
+			}
+			pool.release(actual);
+		}
+		// One released when full, then one which expanded memory beyond 4096 slots
+		if (pool.hits() != 2 || pool.misses() != 3 || pool.discards() != 2 || pool.size() != 1) {
+			failures++;
+			System.out.println("FAILED: " + pool);
+		}
+		System.out.println("failures: " + failures);
+	}
+
+	public static void main(String[] args) {
+		testPool();
+	}
+}
@@ -13,44 +13,211 @@
 // limitations under the License.
 package jevm.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
 
-import jevm.core.Bytecode;
+import jevm.util.Word.w256;
 
 /**
- * Various utilities for dealing with hexadecimal ASCII data.
+ * Various utilities for dealing with hexadecimal ASCII data. Encoding and
+ * decoding are driven by lookup tables, and can write directly into a
+ * <code>char[]</code>, <code>ByteBuffer</code> or <code>Appendable</code> to
+ * avoid building intermediate strings.
  *
  * @author David J. Pearce
  *
  */
 public class Hex {
+	/**
+	 * Hexadecimal digits indexed by their value.
+	 */
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Values of hexadecimal digits indexed by (ASCII) character, where
+	 * <code>-1</code> indicates a character which is not a digit.
+	 */
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i != 10; ++i) {
+			VALUES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i != 6; ++i) {
+			VALUES['a' + i] = (byte) (10 + i);
+			VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+
 	/**
 	 * Read a stream of hexadecimal strings and convert them into bytes. For
 	 * example, "<code>0a30ff</code>" gives the byte sequence
-	 * <code>[10,48,255]</code>.
+	 * <code>[10,48,255]</code>. An optional "<code>0x</code>" prefix at the start
+	 * of the stream is ignored, as is any whitespace (e.g. line breaks) between
+	 * digits. Characters are read from the underlying reader in bulk.
 	 *
 	 * @author David J. Pearce
 	 *
 	 */
 	public static class InputStream extends java.io.InputStream {
 		private final Reader reader;
+		private final char[] buffer;
+		/**
+		 * Position of next character to decode in buffer
+		 */
+		private int position;
+		/**
+		 * Number of characters currently held in buffer
+		 */
+		private int limit;
+		/**
+		 * Indicates whether the start of the stream has been examined for a prefix
+		 */
+		private boolean started;
 
 		public InputStream(Reader reader) {
+			this(reader, 8192);
+		}
+
+		public InputStream(Reader reader, int bufferSize) {
 			this.reader = reader;
+			this.buffer = new char[Math.max(2, bufferSize)];
 		}
 
 		@Override
 		public int read() throws IOException {
 			// Each byte requires two hexadecimal characters
-			int first = Character.digit(reader.read(), 16);
-			int second = Character.digit(reader.read(), 16);
+			int first = nextDigit();
+			if (first < 0) {
+				return -1;
+			}
+			int second = nextDigit();
+			if (second < 0) {
+				throw new EOFException("odd number of hexadecimal digits");
+			}
 			return (first << 4) | second;
 		}
-	}
 
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || length > bytes.length - offset) {
+				throw new IndexOutOfBoundsException();
+			} else if (length == 0) {
+				return 0;
+			}
+			int count = 0;
+			while (count < length) {
+				// Decode directly from buffer whilst possible
+				int n = Math.min(length - count, (limit - position) >>> 1);
+				int i = 0;
+				for (; i != n; ++i) {
+					int first = digit(buffer[position]);
+					int second = digit(buffer[position + 1]);
+					if ((first | second) < 0) {
+						break;
+					}
+					bytes[offset + count + i] = (byte) ((first << 4) | second);
+					position += 2;
+				}
+				count += i;
+				if (count < length) {
+					// Otherwise, buffer is exhausted or whitespace encountered
+					int b = read();
+					if (b < 0) {
+						break;
+					}
+					bytes[offset + count++] = (byte) b;
+				}
+			}
+			return (count == 0) ? -1 : count;
+		}
+
+		/**
+		 * Read the next 32 bytes from the stream as a word in big endian form.
+		 *
+		 * @return The word read, or <code>null</code> if the end of stream is
+		 *         reached.
+		 * @throws IOException
+		 */
+		public w256 readWord() throws IOException {
+			long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+			for (int i = 0; i != 64; ++i) {
+				int d = nextDigit();
+				if (d < 0 && i == 0) {
+					return null;
+				} else if (d < 0) {
+					throw new EOFException("incomplete word");
+				}
+				l0 = (l0 << 4) | (l1 >>> 60);
+				l1 = (l1 << 4) | (l2 >>> 60);
+				l2 = (l2 << 4) | (l3 >>> 60);
+				l3 = (l3 << 4) | d;
+			}
+			return w256.valueOf(l0, l1, l2, l3);
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+		/**
+		 * Get the value of the next hexadecimal digit, skipping any whitespace.
+		 *
+		 * @return The value of the digit, or <code>-1</code> at the end of stream.
+		 * @throws IOException
+		 */
+		private int nextDigit() throws IOException {
+			while (true) {
+				if (position == limit && !fill()) {
+					return -1;
+				}
+				char c = buffer[position++];
+				int d = digit(c);
+				if (d >= 0) {
+					return d;
+				} else if (!Character.isWhitespace(c)) {
+					throw new IOException("invalid hexadecimal character '" + c + "'");
+				}
+			}
+		}
+
+		/**
+		 * Refill the buffer from the underlying reader, skipping any prefix at the
+		 * start of the stream.
+		 *
+		 * @return False if the end of stream was reached.
+		 * @throws IOException
+		 */
+		private boolean fill() throws IOException {
+			position = 0;
+			limit = 0;
+			do {
+				int n = reader.read(buffer, limit, buffer.length - limit);
+				if (n < 0) {
+					break;
+				}
+				limit += n;
+			} while (!started && limit < 2);
+			if (!started) {
+				started = true;
+				if (limit >= 2 && buffer[0] == '0' && (buffer[1] == 'x' || buffer[1] == 'X')) {
+					position = 2;
+					if (limit == 2) {
+						return fill();
+					}
+				}
+			}
+			return position < limit;
+		}
+	}
 
 	/**
 	 * Convert a sequence of bytes into a hexadecimal string.
@@ -59,35 +226,316 @@ public class Hex {
 	 * @return
 	 */
 	public static String toBigEndianString(byte[] bytes) {
-		String r = "";
-		for(int i=0;i!=bytes.length;++i) {
-			int b = bytes[i] & 0xff;
-			r = r + String.format("%02X",b);
+		char[] chars = new char[bytes.length << 1];
+		encode(bytes, 0, bytes.length, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Encode a range of bytes as hexadecimal characters into a given array.
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            Index of first byte to encode.
+	 * @param length
+	 *            Number of bytes to encode.
+	 * @param chars
+	 * @param position
+	 *            Index of first character to write.
+	 * @return The index following the last character written.
+	 */
+	public static int encode(byte[] bytes, int offset, int length, char[] chars, int position) {
+		for (int i = offset; i != offset + length; ++i) {
+			int b = bytes[i] & 0xFF;
+			chars[position++] = DIGITS[b >>> 4];
+			chars[position++] = DIGITS[b & 0xF];
+		}
+		return position;
+	}
+
+	/**
+	 * Encode a range of bytes as (ASCII) hexadecimal characters into a given
+	 * buffer.
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            Index of first byte to encode.
+	 * @param length
+	 *            Number of bytes to encode.
+	 * @param buffer
+	 */
+	public static void encode(byte[] bytes, int offset, int length, ByteBuffer buffer) {
+		for (int i = offset; i != offset + length; ++i) {
+			int b = bytes[i] & 0xFF;
+			buffer.put((byte) DIGITS[b >>> 4]);
+			buffer.put((byte) DIGITS[b & 0xF]);
+		}
+	}
+
+	/**
+	 * Encode a range of bytes as hexadecimal characters onto a given output.
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            Index of first byte to encode.
+	 * @param length
+	 *            Number of bytes to encode.
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void encode(byte[] bytes, int offset, int length, Appendable out) throws IOException {
+		for (int i = offset; i != offset + length; ++i) {
+			int b = bytes[i] & 0xFF;
+			out.append(DIGITS[b >>> 4]);
+			out.append(DIGITS[b & 0xF]);
+		}
+	}
+
+	/**
+	 * Encode a word as 64 hexadecimal characters (in big endian form) into a
+	 * given array.
+	 *
+	 * @param word
+	 * @param chars
+	 * @param position
+	 *            Index of first character to write.
+	 * @return The index following the last character written.
+	 */
+	public static int encode(w256 word, char[] chars, int position) {
+		for (int i = 0; i != 4; ++i) {
+			position = encode(word.limb(i), chars, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Encode a word as 64 hexadecimal characters (in big endian form) onto a
+	 * given output.
+	 *
+	 * @param word
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void encode(w256 word, Appendable out) throws IOException {
+		for (int i = 0; i != 4; ++i) {
+			long limb = word.limb(i);
+			for (int j = 60; j >= 0; j -= 4) {
+				out.append(DIGITS[(int) (limb >>> j) & 0xF]);
+			}
+		}
+	}
+
+	/**
+	 * Encode a limb as 16 hexadecimal characters (in big endian form) into a
+	 * given array.
+	 *
+	 * @param limb
+	 * @param chars
+	 * @param position
+	 *            Index of first character to write.
+	 * @return The index following the last character written.
+	 */
+	public static int encode(long limb, char[] chars, int position) {
+		for (int i = 15; i >= 0; --i) {
+			chars[position + i] = DIGITS[(int) (limb & 0xF)];
+			limb = limb >>> 4;
 		}
-		return r;
+		return position + 16;
 	}
 
 	/**
-	 * Give a sequence of hexadecimal characters return an array of bytes. If the
-	 * sequence is not divisible by two an exception is thrown.
+	 * Encode an int as 8 hexadecimal characters (in big endian form) into a given
+	 * array.
+	 *
+	 * @param value
+	 * @param chars
+	 * @param position
+	 *            Index of first character to write.
+	 * @return The index following the last character written.
+	 */
+	public static int encode(int value, char[] chars, int position) {
+		for (int i = 7; i >= 0; --i) {
+			chars[position + i] = DIGITS[value & 0xF];
+			value = value >>> 4;
+		}
+		return position + 8;
+	}
+
+	/**
+	 * Give a sequence of hexadecimal characters return an array of bytes. An
+	 * optional "<code>0x</code>" prefix is permitted. If the sequence is not
+	 * divisible by two, or contains a character which is not a hexadecimal digit,
+	 * then an exception is thrown.
 	 *
 	 * @param string
 	 * @return
 	 */
 	public static byte[] fromBigEndianString(String string) {
-		if (string.length() % 2 != 0) {
+		int start = prefix(string);
+		if ((string.length() - start) % 2 != 0) {
 			throw new IllegalArgumentException("length of hex string not multiple of two");
 		}
-		byte[] data = new byte[string.length() / 2];
-		for (int i = 0; i != data.length; ++i) {
-			int pos = i << 1;
-			int first = Character.digit(string.charAt(pos), 16);
-			int second = Character.digit(string.charAt(pos + 1), 16);
-			data[i] = (byte) ((first << 4) | second);
-		}
+		byte[] data = new byte[(string.length() - start) / 2];
+		decode(string, start, string.length(), data, 0);
 		return data;
 	}
 
+	/**
+	 * Decode a range of hexadecimal characters (of even length) into a given
+	 * array of bytes.
+	 *
+	 * @param chars
+	 * @param start
+	 *            Index of first character to decode.
+	 * @param end
+	 *            Index following last character to decode.
+	 * @param bytes
+	 * @param offset
+	 *            Index of first byte to write.
+	 * @return The index following the last byte written.
+	 */
+	public static int decode(CharSequence chars, int start, int end, byte[] bytes, int offset) {
+		for (int i = start; i < end; i += 2) {
+			int first = digit(chars.charAt(i));
+			int second = digit(chars.charAt(i + 1));
+			if ((first | second) < 0) {
+				throw new IllegalArgumentException("invalid hex character");
+			}
+			bytes[offset++] = (byte) ((first << 4) | second);
+		}
+		return offset;
+	}
+
+	/**
+	 * Parse a sequence of (at most 64) hexadecimal characters directly into a
+	 * word, without first decoding into an array of bytes. An optional
+	 * "<code>0x</code>" prefix is permitted, and the sequence need not be of even
+	 * length. For example, "<code>0x1ff</code>" gives the word <code>511</code>.
+	 *
+	 * @param chars
+	 * @return
+	 */
+	public static w256 toWord(CharSequence chars) {
+		int start = prefix(chars);
+		if (chars.length() - start > 64) {
+			throw new IllegalArgumentException("hex string too long for word");
+		}
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		for (int i = start; i != chars.length(); ++i) {
+			int d = digit(chars.charAt(i));
+			if (d < 0) {
+				throw new IllegalArgumentException("invalid hex character");
+			}
+			l0 = (l0 << 4) | (l1 >>> 60);
+			l1 = (l1 << 4) | (l2 >>> 60);
+			l2 = (l2 << 4) | (l3 >>> 60);
+			l3 = (l3 << 4) | d;
+		}
+		return w256.valueOf(l0, l1, l2, l3);
+	}
+
+	/**
+	 * Get the value of a given hexadecimal digit, or <code>-1</code> if the
+	 * character is not a digit.
+	 *
+	 * @param c
+	 * @return
+	 */
+	private static int digit(char c) {
+		return (c < 128) ? VALUES[c] : -1;
+	}
+
+	/**
+	 * Determine the length of any "<code>0x</code>" prefix on a sequence of
+	 * characters.
+	 *
+	 * @param chars
+	 * @return
+	 */
+	private static int prefix(CharSequence chars) {
+		if (chars.length() >= 2 && chars.charAt(0) == '0' && (chars.charAt(1) == 'x' || chars.charAt(1) == 'X')) {
+			return 2;
+		} else {
+			return 0;
+		}
+	}
+
+	// ========================================================================
+	// Tests & Benchmarks
+	// ========================================================================
+
+	public static void testCodec() throws IOException {
+		System.out.println("*** TESTING HEX CODEC");
+		Random random = new Random(1);
+		for (int length = 0; length != 300; ++length) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			String hex = toBigEndianString(bytes);
+			StringBuilder sb = new StringBuilder();
+			encode(bytes, 0, length, sb);
+			ByteBuffer buffer = ByteBuffer.allocate(length * 2);
+			encode(bytes, 0, length, buffer);
+			if (!hex.equals(sb.toString()) || !hex.equals(new String(buffer.array(), "US-ASCII"))) {
+				System.out.println("*** ERROR: encoding " + Arrays.toString(bytes));
+			}
+			if (!Arrays.equals(bytes, fromBigEndianString("0x" + hex.toLowerCase()))) {
+				System.out.println("*** ERROR: decoding " + hex);
+			}
+			// Stream (with prefix and line breaks) using a small buffer
+			String text = "0x" + hex.replaceAll("(.{62})", "$1\n");
+			InputStream in = new InputStream(new StringReader(text), 5);
+			byte[] read = new byte[length];
+			int n = 0;
+			while (n < length) {
+				int r = in.read(read, n, Math.min(7, length - n));
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+			if (n != length || in.read() != -1 || !Arrays.equals(bytes, read)) {
+				System.out.println("*** ERROR: streaming " + text);
+			}
+		}
+		for (int i = 0; i != 1000; ++i) {
+			byte[] bytes = new byte[32];
+			random.nextBytes(bytes);
+			w256 w = new w256(bytes);
+			String hex = toBigEndianString(bytes);
+			if (!w.equals(toWord("0x" + hex)) || !w.equals(new InputStream(new StringReader(hex)).readWord())) {
+				System.out.println("*** ERROR: parsing word " + hex);
+			}
+			BigInteger b = new BigInteger(1, bytes).shiftRight(i % 256);
+			if (!toWord(b.toString(16)).toBigInteger().equals(new w256(toBytes(b)).toBigInteger())) {
+				System.out.println("*** ERROR: parsing word " + b.toString(16));
+			}
+		}
+	}
+
+	private static byte[] toBytes(BigInteger b) {
+		byte[] bytes = b.toByteArray();
+		return (bytes.length > 32) ? Arrays.copyOfRange(bytes, bytes.length - 32, bytes.length) : bytes;
+	}
+
+	public static void benchCodec() throws IOException {
+		System.out.println("*** BENCHMARKING HEX CODEC");
+		byte[] bytes = new byte[1 << 20];
+		new Random(1).nextBytes(bytes);
+		for (int run = 0; run != 5; ++run) {
+			long start = System.nanoTime();
+			String hex = toBigEndianString(bytes);
+			long middle = System.nanoTime();
+			byte[] data = new byte[bytes.length];
+			InputStream in = new InputStream(new StringReader(hex));
+			for (int n = 0; n < data.length;) {
+				n += in.read(data, n, data.length - n);
+			}
+			long end = System.nanoTime();
+			System.out.println("encode " + ((middle - start) / 1000000) + "ms, decode " + ((end - middle) / 1000000)
+					+ "ms (" + bytes.length + " bytes, " + Arrays.equals(bytes, data) + ")");
+		}
+	}
+
 	public static void main(String[] args) throws IOException {
 //		byte[] bytes = fromBigEndianString("60806040526000805460ff1916607b179055348015601c57600080fd5b50603580602a6000396000f3006080604052600080fd00a165627a7a72305820e0643a302559e78256b8973d9ead587f53365c97427b0b57956bfa80a9ef0dc40029");
 //		System.out.println("READ: " + Arrays.toString(bytes));
@@ -101,6 +549,8 @@ public class Hex {
 //			System.out.println();
 //			i = i + opcode.width;
 //		}
+		testCodec();
+		benchCodec();
 		BigInteger value = new BigInteger("100000000000000000000000000000",16);
 		byte[] bytes = value.toByteArray();
 		System.out.println("HEX IS: " + Hex.toBigEndianString(bytes));
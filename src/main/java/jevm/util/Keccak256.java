@@ -0,0 +1,491 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import jevm.util.Word.w256;
+
+/**
+ * An implementation of the Keccak-256 hash function, as used by the
+ * <code>SHA3</code> instruction. This is the original Keccak submission, which
+ * differs from the standardised SHA3-256 function only in its padding. The
+ * sponge state is held in a reusable array of 25 lanes, and input can be
+ * absorbed a whole word at a time. Thus, once constructed, hashing does not
+ * allocate (other than for the resulting word).
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Keccak256 {
+	/**
+	 * Number of bytes absorbed per permutation (i.e. <code>1600 - 2*256</code>
+	 * bits).
+	 */
+	private static final int RATE = 136;
+
+	/**
+	 * Round constants for the iota step.
+	 */
+	private static final long[] ROUND_CONSTANTS = {
+			0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+			0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
+			0x000000000000008aL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+			0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+			0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL,
+			0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L };
+
+	/**
+	 * The sponge state, where lane <code>x + 5*y</code> holds the little endian
+	 * bytes <code>8*(x + 5*y)</code> onwards.
+	 */
+	private final long[] lanes = new long[25];
+
+	/**
+	 * Number of bytes absorbed into the current block.
+	 */
+	private int position;
+
+	/**
+	 * Discard any input absorbed so far.
+	 *
+	 * @return
+	 */
+	public Keccak256 reset() {
+		for (int i = 0; i != lanes.length; ++i) {
+			lanes[i] = 0;
+		}
+		position = 0;
+		return this;
+	}
+
+	/**
+	 * Absorb a single byte.
+	 *
+	 * @param b
+	 * @return
+	 */
+	public Keccak256 update(byte b) {
+		lanes[position >>> 3] ^= (b & 0xFFL) << ((position & 7) << 3);
+		if (++position == RATE) {
+			permute(lanes);
+			position = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * Absorb a given range of bytes.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public Keccak256 update(byte[] bytes, int offset, int length) {
+		for (int i = offset; i != offset + length; ++i) {
+			update(bytes[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Absorb all 32 bytes of a word in big endian form.
+	 *
+	 * @param word
+	 * @return
+	 */
+	public Keccak256 update(w256 word) {
+		absorb(word.limb(0));
+		absorb(word.limb(1));
+		absorb(word.limb(2));
+		return absorb(word.limb(3));
+	}
+
+	/**
+	 * Absorb the first (i.e. most significant) <code>length</code> bytes of a
+	 * word in big endian form.
+	 *
+	 * @param word
+	 * @param length
+	 *            Number of bytes to absorb (between 0 and 32).
+	 * @return
+	 */
+	public Keccak256 update(w256 word, int length) {
+		for (int i = 0; i != 4 && length > 0; ++i) {
+			long limb = word.limb(i);
+			if (length >= 8) {
+				absorb(limb);
+			} else {
+				for (int j = 0; j != length; ++j) {
+					update((byte) (limb >>> (56 - (j << 3))));
+				}
+			}
+			length = length - 8;
+		}
+		return this;
+	}
+
+	/**
+	 * Complete the hash of all input absorbed since the last reset, and then
+	 * reset ready for the next input.
+	 *
+	 * @return
+	 */
+	public w256 digest() {
+		// Apply padding (0x01 ... 0x80)
+		lanes[position >>> 3] ^= 0x01L << ((position & 7) << 3);
+		lanes[(RATE - 1) >>> 3] ^= 0x80L << 56;
+		permute(lanes);
+		w256 hash = w256.valueOf(Long.reverseBytes(lanes[0]), Long.reverseBytes(lanes[1]),
+				Long.reverseBytes(lanes[2]), Long.reverseBytes(lanes[3]));
+		reset();
+		return hash;
+	}
+
+	/**
+	 * Hash a given array of bytes.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static w256 hash(byte[] bytes) {
+		return new Keccak256().update(bytes, 0, bytes.length).digest();
+	}
+
+	/**
+	 * Absorb eight bytes given as a big endian limb. When the current block is
+	 * aligned, this reduces to a single exclusive-or into the state.
+	 *
+	 * @param limb
+	 * @return
+	 */
+	private Keccak256 absorb(long limb) {
+		if ((position & 7) != 0) {
+			for (int i = 56; i >= 0; i -= 8) {
+				update((byte) (limb >>> i));
+			}
+		} else {
+			lanes[position >>> 3] ^= Long.reverseBytes(limb);
+			position += 8;
+			if (position == RATE) {
+				permute(lanes);
+				position = 0;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Apply the Keccak-f[1600] permutation to a given state in place. The lanes
+	 * are held in local variables throughout, with the rho and pi steps combined
+	 * into a single assignment per lane.
+	 *
+	 * @param a
+	 */
+	private static void permute(long[] a) {
+		long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4];
+		long a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+		long a10 = a[10], a11 = a[11], a12 = a[12], a13 = a[13], a14 = a[14];
+		long a15 = a[15], a16 = a[16], a17 = a[17], a18 = a[18], a19 = a[19];
+		long a20 = a[20], a21 = a[21], a22 = a[22], a23 = a[23], a24 = a[24];
+		for (int round = 0; round != 24; ++round) {
+			// Theta
+			long c0 = a0 ^ a5 ^ a10 ^ a15 ^ a20;
+			long c1 = a1 ^ a6 ^ a11 ^ a16 ^ a21;
+			long c2 = a2 ^ a7 ^ a12 ^ a17 ^ a22;
+			long c3 = a3 ^ a8 ^ a13 ^ a18 ^ a23;
+			long c4 = a4 ^ a9 ^ a14 ^ a19 ^ a24;
+			long d0 = c4 ^ Long.rotateLeft(c1, 1);
+			long d1 = c0 ^ Long.rotateLeft(c2, 1);
+			long d2 = c1 ^ Long.rotateLeft(c3, 1);
+			long d3 = c2 ^ Long.rotateLeft(c4, 1);
+			long d4 = c3 ^ Long.rotateLeft(c0, 1);
+			// Rho and Pi
+			long b0 = a0 ^ d0;
+			long b16 = Long.rotateLeft(a5 ^ d0, 36);
+			long b7 = Long.rotateLeft(a10 ^ d0, 3);
+			long b23 = Long.rotateLeft(a15 ^ d0, 41);
+			long b14 = Long.rotateLeft(a20 ^ d0, 18);
+			long b10 = Long.rotateLeft(a1 ^ d1, 1);
+			long b1 = Long.rotateLeft(a6 ^ d1, 44);
+			long b17 = Long.rotateLeft(a11 ^ d1, 10);
+			long b8 = Long.rotateLeft(a16 ^ d1, 45);
+			long b24 = Long.rotateLeft(a21 ^ d1, 2);
+			long b20 = Long.rotateLeft(a2 ^ d2, 62);
+			long b11 = Long.rotateLeft(a7 ^ d2, 6);
+			long b2 = Long.rotateLeft(a12 ^ d2, 43);
+			long b18 = Long.rotateLeft(a17 ^ d2, 15);
+			long b9 = Long.rotateLeft(a22 ^ d2, 61);
+			long b5 = Long.rotateLeft(a3 ^ d3, 28);
+			long b21 = Long.rotateLeft(a8 ^ d3, 55);
+			long b12 = Long.rotateLeft(a13 ^ d3, 25);
+			long b3 = Long.rotateLeft(a18 ^ d3, 21);
+			long b19 = Long.rotateLeft(a23 ^ d3, 56);
+			long b15 = Long.rotateLeft(a4 ^ d4, 27);
+			long b6 = Long.rotateLeft(a9 ^ d4, 20);
+			long b22 = Long.rotateLeft(a14 ^ d4, 39);
+			long b13 = Long.rotateLeft(a19 ^ d4, 8);
+			long b4 = Long.rotateLeft(a24 ^ d4, 14);
+			// Chi
+			a0 = b0 ^ (~b1 & b2);
+			a1 = b1 ^ (~b2 & b3);
+			a2 = b2 ^ (~b3 & b4);
+			a3 = b3 ^ (~b4 & b0);
+			a4 = b4 ^ (~b0 & b1);
+			a5 = b5 ^ (~b6 & b7);
+			a6 = b6 ^ (~b7 & b8);
+			a7 = b7 ^ (~b8 & b9);
+			a8 = b8 ^ (~b9 & b5);
+			a9 = b9 ^ (~b5 & b6);
+			a10 = b10 ^ (~b11 & b12);
+			a11 = b11 ^ (~b12 & b13);
+			a12 = b12 ^ (~b13 & b14);
+			a13 = b13 ^ (~b14 & b10);
+			a14 = b14 ^ (~b10 & b11);
+			a15 = b15 ^ (~b16 & b17);
+			a16 = b16 ^ (~b17 & b18);
+			a17 = b17 ^ (~b18 & b19);
+			a18 = b18 ^ (~b19 & b15);
+			a19 = b19 ^ (~b15 & b16);
+			a20 = b20 ^ (~b21 & b22);
+			a21 = b21 ^ (~b22 & b23);
+			a22 = b22 ^ (~b23 & b24);
+			a23 = b23 ^ (~b24 & b20);
+			a24 = b24 ^ (~b20 & b21);
+			// Iota
+			a0 ^= ROUND_CONSTANTS[round];
+		}
+		a[0] = a0;
+		a[1] = a1;
+		a[2] = a2;
+		a[3] = a3;
+		a[4] = a4;
+		a[5] = a5;
+		a[6] = a6;
+		a[7] = a7;
+		a[8] = a8;
+		a[9] = a9;
+		a[10] = a10;
+		a[11] = a11;
+		a[12] = a12;
+		a[13] = a13;
+		a[14] = a14;
+		a[15] = a15;
+		a[16] = a16;
+		a[17] = a17;
+		a[18] = a18;
+		a[19] = a19;
+		a[20] = a20;
+		a[21] = a21;
+		a[22] = a22;
+		a[23] = a23;
+		a[24] = a24;
+	}
+
+	/**
+	 * A bounded memo cache for the hashes of 64-byte inputs, keyed by the two
+	 * words making up the input. Such inputs are common since Solidity derives
+	 * the storage slot of a mapping entry by hashing the key followed by the slot
+	 * of the mapping itself. Thus, the same few keys are typically hashed over
+	 * and over.
+	 *
+	 * The cache is direct mapped: each input is assigned a single entry by its
+	 * hash code, and a miss simply replaces whatever occupied that entry. This
+	 * bounds the cache size without any bookkeeping for eviction. Entries are
+	 * immutable, so they can be safely shared between threads without locking;
+	 * the worst case from a race is that one thread's entry overwrites
+	 * another's.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Cache {
+		private static final class Entry {
+			private final w256 first;
+			private final w256 second;
+			private final w256 hash;
+
+			private Entry(w256 first, w256 second, w256 hash) {
+				this.first = first;
+				this.second = second;
+				this.hash = hash;
+			}
+		}
+
+		private final Entry[] entries;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		/**
+		 * Construct a cache with (at least) the given number of entries. This is
+		 * rounded up to the nearest power of two.
+		 *
+		 * @param capacity
+		 */
+		public Cache(int capacity) {
+			int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+			this.entries = new Entry[Math.max(1, Math.min(n, 1 << 30))];
+		}
+
+		/**
+		 * Determine the hash of the 64 bytes formed from two words (in big endian
+		 * form), either from the cache or by hashing them with a given engine.
+		 *
+		 * @param first
+		 * @param second
+		 * @param keccak
+		 *            Engine to use in the event of a miss.
+		 * @return
+		 */
+		public w256 hash(w256 first, w256 second, Keccak256 keccak) {
+			int h = (31 * first.hashCode()) + second.hashCode();
+			int index = (h ^ (h >>> 16)) & (entries.length - 1);
+			Entry entry = entries[index];
+			if (entry != null && entry.first.equals(first) && entry.second.equals(second)) {
+				hits.increment();
+				return entry.hash;
+			} else {
+				misses.increment();
+				w256 hash = keccak.update(first).update(second).digest();
+				entries[index] = new Entry(first, second, hash);
+				return hash;
+			}
+		}
+
+		/**
+		 * Get the number of lookups answered from the cache.
+		 *
+		 * @return
+		 */
+		public long hits() {
+			return hits.sum();
+		}
+
+		/**
+		 * Get the number of lookups which required hashing.
+		 *
+		 * @return
+		 */
+		public long misses() {
+			return misses.sum();
+		}
+
+		/**
+		 * Get the number of entries in this cache.
+		 *
+		 * @return
+		 */
+		public int capacity() {
+			return entries.length;
+		}
+
+		/**
+		 * Discard all entries and reset the counters.
+		 */
+		public void clear() {
+			Arrays.fill(entries, null);
+			hits.reset();
+			misses.reset();
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits() + ", misses=" + misses() + ", capacity=" + capacity();
+		}
+	}
+
+	// ========================================================================
+	// Tests & Benchmarks
+	// ========================================================================
+
+	private static final String[][] TEST_VECTORS = {
+			{ "", "0xc5d2460186f7233c927e7db2dcc703c0e500b653ca82273b7bfad8045d85a470" },
+			{ "abc", "0x4e03657aea45a94fc7d47ba826c8d667c0d1e6e33a64a036ec44f58fa12d6c45" },
+			{ "The quick brown fox jumps over the lazy dog",
+					"0x4d741b6f1eb29cb2a9b9911c82f56fa8d73b04959d3d9d222895df6c0b28aa15" } };
+
+	public static void testVectors() {
+		System.out.println("*** TESTING KECCAK-256");
+		for (String[] vector : TEST_VECTORS) {
+			w256 hash = hash(vector[0].getBytes(StandardCharsets.US_ASCII));
+			if (!hash.toString().equalsIgnoreCase(vector[1])) {
+				System.out.println("*** ERROR: \"" + vector[0] + "\" => " + hash);
+			}
+		}
+		// Absorbing whole words must agree with absorbing bytes, including across
+		// block boundaries.
+		Keccak256 keccak = new Keccak256();
+		byte[] bytes = new byte[32 * 20];
+		for (int i = 0; i != bytes.length; ++i) {
+			bytes[i] = (byte) (i * 31);
+		}
+		for (int length = 0; length <= bytes.length; length += 7) {
+			for (int i = 0; i < length; i += 32) {
+				byte[] word = new byte[32];
+				System.arraycopy(bytes, i, word, 0, Math.min(32, length - i));
+				keccak.update(new w256(word), Math.min(32, length - i));
+			}
+			w256 h1 = keccak.digest();
+			w256 h2 = keccak.update(bytes, 0, length).digest();
+			if (!h1.equals(h2)) {
+				System.out.println("*** ERROR: length " + length + " => " + h1 + " != " + h2);
+			}
+		}
+	}
+
+	public static void testCache() {
+		System.out.println("*** TESTING KECCAK-256 CACHE");
+		Cache cache = new Cache(16);
+		Keccak256 keccak = new Keccak256();
+		for (int i = 0; i != 64; ++i) {
+			w256 key = w256.valueOf(i % 8);
+			w256 slot = w256.valueOf(i % 3);
+			w256 expected = keccak.update(key).update(slot).digest();
+			w256 actual = cache.hash(key, slot, keccak);
+			if (!expected.equals(actual)) {
+				System.out.println("*** ERROR: " + key + ", " + slot + " => " + actual);
+			}
+		}
+		if (cache.hits() + cache.misses() != 64 || cache.hits() == 0) {
+			System.out.println("*** ERROR: " + cache);
+		}
+	}
+
+	public static void benchKeccak() {
+		System.out.println("*** BENCHMARKING KECCAK-256");
+		Keccak256 keccak = new Keccak256();
+		w256 key = w256.valueOf(0xDEADBEEFL);
+		w256 slot = w256.ONE;
+		int count = 1000000;
+		for (int run = 0; run != 5; ++run) {
+			long start = System.nanoTime();
+			w256 h = w256.ZERO;
+			for (int i = 0; i != count; ++i) {
+				// Typical mapping key derivation (64 bytes)
+				h = keccak.update(key).update(slot).digest();
+			}
+			long time = System.nanoTime() - start;
+			System.out.println((time / (double) count) + "ns/hash (" + h + ")");
+		}
+	}
+
+	public static void main(String[] args) {
+		testVectors();
+		testCache();
+		benchKeccak();
+	}
+}
@@ -0,0 +1,269 @@
+// Copyright 2019 The JEVM Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jevm.util;
+
+import java.util.Arrays;
+
+import jevm.core.VirtualMachine;
+import jevm.util.Word.m256;
+import jevm.util.Word.w256;
+
+/**
+ * A stack of words with a fixed capacity of <code>STACK_LIMIT</code>, backed
+ * by a flat array of limbs. Each word occupies four consecutive limbs (most
+ * significant first), with the bottom of the stack at index zero. Thus, no
+ * objects are allocated per slot, and instructions such as <code>DUP</code>
+ * and <code>SWAP</code> are implemented by copying limbs.
+ * <p>
+ * The primitive operations (e.g. <code>dup()</code>) return
+ * <code>false</code>, leaving the stack unchanged, when they would underflow
+ * the stack or exceed its limit. Since the <code>Stack</code> interface
+ * provides no such means, <code>pop()</code> and <code>push()</code> instead
+ * throw an <code>IllegalStateException</code>. The limb array itself is
+ * exposed so that an interpreter can operate upon it directly, using
+ * <code>used()</code> and <code>resize()</code> to synchronise the stack
+ * pointer.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class LimbStack implements VirtualMachine.Stack<w256> {
+	/**
+	 * Stack limbs, where the bottom of the stack is at index zero.
+	 */
+	private final long[] limbs = new long[VirtualMachine.STACK_LIMIT * 4];
+
+	/**
+	 * Stack pointer (in words), which identifies the first unused slot.
+	 */
+	private int sp;
+
+	/**
+	 * Get the array of limbs backing this stack. This remains the same for the
+	 * lifetime of the stack.
+	 *
+	 * @return
+	 */
+	public long[] limbs() {
+		return limbs;
+	}
+
+	/**
+	 * Set the number of words on the stack, such as after operating upon the
+	 * limb array directly.
+	 *
+	 * @param n
+	 */
+	public void resize(int n) {
+		if (n < 0 || n > VirtualMachine.STACK_LIMIT) {
+			throw new IllegalArgumentException("invalid stack size");
+		}
+		sp = n;
+	}
+
+	/**
+	 * Check whether an instruction which takes a given number of operands and
+	 * leaves a given number of results can be executed, without underflowing
+	 * the stack or exceeding its limit.
+	 *
+	 * @param arguments
+	 * @param returns
+	 * @return
+	 */
+	public boolean check(int arguments, int returns) {
+		return sp >= arguments && (sp - arguments + returns) <= VirtualMachine.STACK_LIMIT;
+	}
+
+	/**
+	 * Push a word given as its limbs, where <code>l0</code> is the most
+	 * significant.
+	 *
+	 * @param l0
+	 * @param l1
+	 * @param l2
+	 * @param l3
+	 * @return
+	 */
+	public boolean push(long l0, long l1, long l2, long l3) {
+		if (sp == VirtualMachine.STACK_LIMIT) {
+			return false;
+		}
+		int i = sp << 2;
+		limbs[i] = l0;
+		limbs[i + 1] = l1;
+		limbs[i + 2] = l2;
+		limbs[i + 3] = l3;
+		sp++;
+		return true;
+	}
+
+	/**
+	 * Load the word at a given depth, where the top of the stack has depth zero,
+	 * into a given mutable word.
+	 *
+	 * @param depth
+	 * @param word
+	 * @return
+	 */
+	public boolean peek(int depth, m256 word) {
+		if (depth < 0 || depth >= sp) {
+			return false;
+		}
+		word.load(limbs, (sp - depth - 1) << 2);
+		return true;
+	}
+
+	/**
+	 * Remove a given number of words from the top of the stack.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public boolean drop(int n) {
+		if (n < 0 || n > sp) {
+			return false;
+		}
+		sp = sp - n;
+		return true;
+	}
+
+	/**
+	 * Push a copy of the <code>n</code>th word (where the top of the stack is
+	 * the first).
+	 *
+	 * @param n
+	 * @return
+	 */
+	public boolean dup(int n) {
+		if (n < 1 || n > sp || sp == VirtualMachine.STACK_LIMIT) {
+			return false;
+		}
+		System.arraycopy(limbs, (sp - n) << 2, limbs, sp << 2, 4);
+		sp++;
+		return true;
+	}
+
+	/**
+	 * Exchange the top of the stack with the word <code>n</code> positions
+	 * beneath it.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public boolean swap(int n) {
+		if (n < 1 || n >= sp) {
+			return false;
+		}
+		int i = (sp - 1) << 2;
+		int j = (sp - 1 - n) << 2;
+		for (int k = 0; k != 4; ++k) {
+			long tmp = limbs[i + k];
+			limbs[i + k] = limbs[j + k];
+			limbs[j + k] = tmp;
+		}
+		return true;
+	}
+
+	@Override
+	public w256 read(w256 address) {
+		if (address.isInt()) {
+			return read(address.toInt());
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public w256 read(int address) {
+		if (address < 0 || address >= sp) {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+		int i = address << 2;
+		return w256.valueOf(limbs[i], limbs[i + 1], limbs[i + 2], limbs[i + 3]);
+	}
+
+	@Override
+	public boolean write(w256 address, w256 value) {
+		if (address.isInt()) {
+			return write(address.toInt(), value);
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public boolean write(int address, w256 value) {
+		if (address < 0 || address >= sp) {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+		for (int j = 0; j != 4; ++j) {
+			limbs[(address << 2) + j] = value.limb(j);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean expand(w256 address) {
+		if (address.isInt() && address.toInt() >= 0 && address.toInt() < VirtualMachine.STACK_LIMIT) {
+			int addr = address.toInt();
+			if (sp <= addr) {
+				Arrays.fill(limbs, sp << 2, (addr + 1) << 2, 0);
+				sp = addr + 1;
+			}
+			return true;
+		} else {
+			throw new IllegalArgumentException("invalid memory address");
+		}
+	}
+
+	@Override
+	public w256 size() {
+		return w256.valueOf(sp);
+	}
+
+	@Override
+	public int used() {
+		return sp;
+	}
+
+	@Override
+	public w256 pop() {
+		if (sp == 0) {
+			throw new IllegalStateException("stack underflow");
+		}
+		w256 top = read(sp - 1);
+		sp--;
+		return top;
+	}
+
+	@Override
+	public void push(w256 value) {
+		if (!push(value.limb(0), value.limb(1), value.limb(2), value.limb(3))) {
+			throw new IllegalStateException("stack overflow");
+		}
+	}
+
+	@Override
+	public String toString() {
+		String r = "[";
+		for (int i = 0; i != sp; ++i) {
+			if (i != 0) {
+				r += ",";
+			}
+			r += read(i);
+		}
+		return r + "]";
+	}
+}
@@ -90,18 +90,13 @@ public class Word {
 
 	@Override
 	public String toString() {
-		String r = "";
+		char[] chars = new char[2 + (ints.length * 8)];
+		chars[0] = '0';
+		chars[1] = 'x';
 		for (int i = 0; i != ints.length; ++i) {
-			int b1 = (ints[i] >> 24) & 0xff;
-			int b2 = (ints[i] >> 16) & 0xff;
-			int b3 = (ints[i] >> 8) & 0xff;
-			int b4 = ints[i] & 0xff;
-			r = r + String.format("%02X", b1);
-			r = r + String.format("%02X", b2);
-			r = r + String.format("%02X", b3);
-			r = r + String.format("%02X", b4);
+			Hex.encode(ints[i], chars, 2 + (i * 8));
 		}
-		return "0x" + r;
+		return new String(chars);
 	}
 
 	/**
@@ -283,99 +278,2066 @@ public class Word {
 		}
 	}
 
-	public final static class w256 extends Word {
+	/**
+	 * A 256-bit word represented using four 64-bit limbs, rather than an array of
+	 * ints. The limbs are stored in big endian order, such that <code>l0</code>
+	 * holds the most significant 64 bits and <code>l3</code> the least
+	 * significant:
+	 *
+	 * <pre>
+	 * |      l0       |      l1       |      l2       |      l3       |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * | : : : : : : : | : : : : : : : | : : : : : : : | : : : : : : : |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *  0                                                             31
+	 * </pre>
+	 *
+	 * Since the limbs are held directly as fields, constructing a word requires
+	 * exactly one allocation and operations such as <code>equals()</code> do not
+	 * need to traverse an array.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public final static class w256 {
 
 		public static final w256 ZERO = new w256(0);
 		public static final w256 ONE = new w256(1);
+		/**
+		 * The largest unsigned value (i.e. <code>0xFF..FF</code>), which is also
+		 * minus one.
+		 */
+		public static final w256 MAX_VALUE = new w256(-1L, -1L, -1L, -1L);
+		/**
+		 * Mask for the 160 least significant bits, as used for addresses.
+		 */
+		public static final w256 ADDRESS_MASK = new w256(0, 0xFFFFFFFFL, -1L, -1L);
+
+		/**
+		 * Canonical instances of small values (i.e. from 0 to 255).
+		 */
+		private static final w256[] SMALL_VALUES = new w256[256];
+		/**
+		 * Canonical instances of powers of two, indexed by exponent.
+		 */
+		private static final w256[] POWERS_OF_TWO = new w256[256];
+		/**
+		 * Canonical instances of masks covering the <code>n</code> least
+		 * significant bytes, indexed by <code>n</code> (from 1 to 32).
+		 */
+		private static final w256[] BYTE_MASKS = new w256[33];
+
+		static {
+			SMALL_VALUES[0] = ZERO;
+			SMALL_VALUES[1] = ONE;
+			for (int i = 2; i != 256; ++i) {
+				SMALL_VALUES[i] = new w256(0, 0, 0, i);
+			}
+			for (int i = 0; i != 256; ++i) {
+				POWERS_OF_TWO[i] = (i < 8) ? SMALL_VALUES[1 << i] : ONE.shiftLeft(i);
+			}
+			for (int n = 1; n != 33; ++n) {
+				switch (n) {
+				case 1:
+					BYTE_MASKS[n] = SMALL_VALUES[0xFF];
+					break;
+				case 20:
+					BYTE_MASKS[n] = ADDRESS_MASK;
+					break;
+				case 32:
+					BYTE_MASKS[n] = MAX_VALUE;
+					break;
+				default:
+					BYTE_MASKS[n] = MAX_VALUE.shiftRight(256 - (8 * n));
+				}
+			}
+		}
+
+		private final long l0, l1, l2, l3;
 
 		public w256() {
-			super(8);
+			this(0L, 0L, 0L, 0L);
+		}
+
+		/**
+		 * Construct a word from its four limbs, given in big endian order.
+		 *
+		 * @param l0
+		 *            most significant limb
+		 * @param l1
+		 * @param l2
+		 * @param l3
+		 *            least significant limb
+		 */
+		public w256(long l0, long l1, long l2, long l3) {
+			this.l0 = l0;
+			this.l1 = l1;
+			this.l2 = l2;
+			this.l3 = l3;
+		}
+
+		/**
+		 * Construct a word from an array of (at most eight) ints in big endian form.
+		 * The array is effectively padded with zeros to the left.
+		 *
+		 * @param ints
+		 */
+		public w256(int[] ints) {
+			if (ints.length > 8) {
+				throw new IllegalArgumentException("invalid int array (too big)");
+			}
+			this.l0 = toLimb(ints, 0);
+			this.l1 = toLimb(ints, 1);
+			this.l2 = toLimb(ints, 2);
+			this.l3 = toLimb(ints, 3);
+		}
+
+		/**
+		 * Construct a word from an array of (at most 32) bytes in big endian form.
+		 * The array is effectively padded with zeros to the left.
+		 *
+		 * @param bytes
+		 */
+		public w256(byte[] bytes) {
+			if (bytes.length > 32) {
+				throw new IllegalArgumentException("invalid byte array (too big)");
+			}
+			this.l0 = toLimb(bytes, 0);
+			this.l1 = toLimb(bytes, 1);
+			this.l2 = toLimb(bytes, 2);
+			this.l3 = toLimb(bytes, 3);
+		}
+
+		public w256(byte v) {
+			this((long) v);
+		}
+
+		/**
+		 * Obtain a word from its four limbs (given in big endian order), returning a
+		 * canonical instance where one exists. Canonical instances are held for
+		 * small values (from 0 to 255), powers of two and masks covering some number
+		 * of least significant bytes (e.g. <code>0xFF..FF</code> or the 160-bit
+		 * address mask). Since words are immutable, these can be shared freely.
+		 * Otherwise, a fresh word is allocated.
+		 *
+		 * @param l0
+		 *            most significant limb
+		 * @param l1
+		 * @param l2
+		 * @param l3
+		 *            least significant limb
+		 * @return
+		 */
+		public static w256 valueOf(long l0, long l1, long l2, long l3) {
+			if ((l0 | l1 | l2) == 0 && (l3 & ~0xFFL) == 0) {
+				return SMALL_VALUES[(int) l3];
+			}
+			int count = Long.bitCount(l0) + Long.bitCount(l1) + Long.bitCount(l2) + Long.bitCount(l3);
+			if (count == 1) {
+				int bit = (l0 != 0) ? 255 - Long.numberOfLeadingZeros(l0)
+						: (l1 != 0) ? 191 - Long.numberOfLeadingZeros(l1)
+								: (l2 != 0) ? 127 - Long.numberOfLeadingZeros(l2) : 63 - Long.numberOfLeadingZeros(l3);
+				return POWERS_OF_TWO[bit];
+			} else if ((count & 7) == 0) {
+				w256 mask = BYTE_MASKS[count >>> 3];
+				if (mask.l0 == l0 && mask.l1 == l1 && mask.l2 == l2 && mask.l3 == l3) {
+					return mask;
+				}
+			}
+			return new w256(l0, l1, l2, l3);
+		}
+
+		/**
+		 * Obtain a word from a (sign extended) long value, returning a canonical
+		 * instance where one exists.
+		 *
+		 * @param v
+		 * @return
+		 */
+		public static w256 valueOf(long v) {
+			if ((v & ~0xFFL) == 0) {
+				return SMALL_VALUES[(int) v];
+			} else {
+				long sign = v >> 63;
+				return valueOf(sign, sign, sign, v);
+			}
+		}
+
+		/**
+		 * Obtain a word from an array of (at most 32) bytes in big endian form,
+		 * returning a canonical instance where one exists.
+		 *
+		 * @param bytes
+		 * @return
+		 */
+		public static w256 valueOf(byte[] bytes) {
+			if (bytes.length > 32) {
+				throw new IllegalArgumentException("invalid byte array (too big)");
+			}
+			return valueOf(toLimb(bytes, 0), toLimb(bytes, 1), toLimb(bytes, 2), toLimb(bytes, 3));
+		}
+
+		/**
+		 * Obtain the canonical instance of <code>2^n</code>.
+		 *
+		 * @param n
+		 *            Exponent (between 0 and 255).
+		 * @return
+		 */
+		public static w256 powerOfTwo(int n) {
+			return POWERS_OF_TWO[n];
+		}
+
+		public w256(short v) {
+			this((long) v);
+		}
+
+		public w256(int v) {
+			this((long) v);
+		}
+
+		public w256(long v) {
+			// Sign extend into the upper limbs
+			long sign = v >> 63;
+			this.l0 = sign;
+			this.l1 = sign;
+			this.l2 = sign;
+			this.l3 = v;
+		}
+
+		/**
+		 * Increment by one.
+		 */
+		public w256 increment() {
+			return add(ONE);
+		}
+
+		/**
+		 * Perform a fixed-width two's complement addition with wrap around semantics.
+		 * The carry out of each limb is determined from the most significant bits of
+		 * the operands and the result.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 add(w256 rhs) {
+			long r3 = l3 + rhs.l3;
+			long c = carry(l3, rhs.l3, r3);
+			long r2 = l2 + rhs.l2 + c;
+			c = carry(l2, rhs.l2, r2);
+			long r1 = l1 + rhs.l1 + c;
+			c = carry(l1, rhs.l1, r1);
+			long r0 = l0 + rhs.l0 + c;
+			return new w256(r0, r1, r2, r3);
+		}
+
+		/**
+		 * Perform a fixed-width two's complement subtraction with wrap around
+		 * semantics.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 subtract(w256 rhs) {
+			long r3 = l3 - rhs.l3;
+			long b = borrow(l3, rhs.l3, r3);
+			long r2 = l2 - rhs.l2 - b;
+			b = borrow(l2, rhs.l2, r2);
+			long r1 = l1 - rhs.l1 - b;
+			b = borrow(l1, rhs.l1, r1);
+			long r0 = l0 - rhs.l0 - b;
+			return new w256(r0, r1, r2, r3);
+		}
+
+		/**
+		 * Perform a fixed-width multiplication with wrap around semantics. Since only
+		 * the least significant 256 bits of the product are retained, this is the
+		 * same for both signed and unsigned operands. Operands which fit into a
+		 * single limb, or which are powers of two, are handled as special cases.
+		 * Otherwise, a schoolbook multiplication over the limbs is used which
+		 * discards any partial products falling above 256 bits.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 multiply(w256 rhs) {
+			if ((l0 | l1 | l2 | rhs.l0 | rhs.l1 | rhs.l2) == 0) {
+				// Both operands fit within a single limb
+				return new w256(0, 0, unsignedMultiplyHigh(l3, rhs.l3), l3 * rhs.l3);
+			} else if (rhs.isPowerOfTwo()) {
+				return shiftLeft(rhs.bitLength() - 1);
+			} else if (isPowerOfTwo()) {
+				return rhs.shiftLeft(bitLength() - 1);
+			}
+			// Row for least significant limb of lhs
+			long r0 = l3 * rhs.l3;
+			long c = unsignedMultiplyHigh(l3, rhs.l3);
+			long p = l3 * rhs.l2;
+			long lo = p + c;
+			long hi = unsignedMultiplyHigh(l3, rhs.l2) + carry(p, c, lo);
+			long r1 = lo;
+			c = hi;
+			p = l3 * rhs.l1;
+			lo = p + c;
+			hi = unsignedMultiplyHigh(l3, rhs.l1) + carry(p, c, lo);
+			long r2 = lo;
+			long r3 = l3 * rhs.l0 + hi;
+			// Row for second limb of lhs
+			p = l2 * rhs.l3;
+			hi = unsignedMultiplyHigh(l2, rhs.l3);
+			lo = p + r1;
+			hi += carry(p, r1, lo);
+			r1 = lo;
+			c = hi;
+			p = l2 * rhs.l2;
+			hi = unsignedMultiplyHigh(l2, rhs.l2);
+			lo = p + r2;
+			hi += carry(p, r2, lo);
+			p = lo;
+			lo = p + c;
+			hi += carry(p, c, lo);
+			r2 = lo;
+			r3 += l2 * rhs.l1 + hi;
+			// Row for third limb of lhs
+			p = l1 * rhs.l3;
+			hi = unsignedMultiplyHigh(l1, rhs.l3);
+			lo = p + r2;
+			hi += carry(p, r2, lo);
+			r2 = lo;
+			r3 += l1 * rhs.l2 + hi;
+			// Row for most significant limb of lhs
+			r3 += l0 * rhs.l3;
+			return new w256(r3, r2, r1, r0);
+		}
+
+		/**
+		 * Shift this word left by a given number of bits, filling with zeros. Shifting
+		 * by 256 or more bits gives zero.
+		 *
+		 * @param n
+		 *            Number of bits to shift by (which cannot be negative).
+		 * @return
+		 */
+		public w256 shiftLeft(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("negative shift");
+			} else if (n == 0) {
+				return this;
+			} else if (n >= 256) {
+				return ZERO;
+			}
+			int k = n >>> 6;
+			int b = n & 63;
+			return new w256(shiftLeft(k, b, 3), shiftLeft(k, b, 2), shiftLeft(k, b, 1), shiftLeft(k, b, 0));
+		}
+
+		/**
+		 * Determine the limb at a given position (counting from the least significant)
+		 * after shifting left by <code>k</code> limbs and <code>b</code> bits.
+		 */
+		private long shiftLeft(int k, int b, int j) {
+			long hi = lsb(j - k);
+			if (b == 0) {
+				return hi;
+			} else {
+				return (hi << b) | (lsb(j - k - 1) >>> (64 - b));
+			}
+		}
+
+		/**
+		 * Shift this word right by a given number of bits, filling with zeros (i.e. a
+		 * logical shift). Shifting by 256 or more bits gives zero.
+		 *
+		 * @param n
+		 *            Number of bits to shift by (which cannot be negative).
+		 * @return
+		 */
+		public w256 shiftRight(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("negative shift");
+			} else if (n == 0) {
+				return this;
+			} else if (n >= 256) {
+				return ZERO;
+			}
+			int k = n >>> 6;
+			int b = n & 63;
+			return new w256(shiftRight(k, b, 3), shiftRight(k, b, 2), shiftRight(k, b, 1), shiftRight(k, b, 0));
+		}
+
+		/**
+		 * Determine the limb at a given position (counting from the least significant)
+		 * after shifting right by <code>k</code> limbs and <code>b</code> bits.
+		 */
+		private long shiftRight(int k, int b, int j) {
+			long lo = lsb(j + k);
+			if (b == 0) {
+				return lo;
+			} else {
+				return (lo >>> b) | (lsb(j + k + 1) << (64 - b));
+			}
+		}
+
+		/**
+		 * Perform an unsigned division with EVM semantics. That is, division by zero
+		 * gives zero.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 divide(w256 rhs) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.rhs.set(rhs);
+			fixedwidth_unsigned_division(scratch.lhs.set(this), r, false, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Perform an unsigned remainder with EVM semantics. That is, the remainder of
+		 * division by zero is zero.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 remainder(w256 rhs) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.rhs.set(rhs);
+			fixedwidth_unsigned_division(scratch.lhs.set(this), r, true, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Perform a signed (truncating) division with EVM semantics. That is, division
+		 * by zero gives zero, and dividing the most negative value by minus one gives
+		 * the most negative value (since the true result overflows).
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 signedDivide(w256 rhs) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.rhs.set(rhs);
+			fixedwidth_signed_division(scratch.lhs.set(this), r, false, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Perform a signed remainder with EVM semantics. That is, the sign of a
+		 * (non-zero) result matches that of the dividend, and the remainder of
+		 * division by zero is zero.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public w256 signedRemainder(w256 rhs) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.rhs.set(rhs);
+			fixedwidth_signed_division(scratch.lhs.set(this), r, true, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Compute <code>(this + rhs) % modulus</code>, where the intermediate sum is
+		 * not subject to the 256-bit modulus. If the modulus is zero, then zero is
+		 * returned.
+		 *
+		 * @param rhs
+		 * @param modulus
+		 * @return
+		 */
+		public w256 addMod(w256 rhs, w256 modulus) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.mod.set(modulus);
+			fixedwidth_unsigned_addmod(scratch.lhs.set(this), scratch.rhs.set(rhs), r, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Compute <code>(this * rhs) % modulus</code>, where the intermediate product
+		 * is not subject to the 256-bit modulus. If the modulus is zero, then zero is
+		 * returned.
+		 *
+		 * @param rhs
+		 * @param modulus
+		 * @return
+		 */
+		public w256 mulMod(w256 rhs, w256 modulus) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.mod.set(modulus);
+			fixedwidth_unsigned_mulmod(scratch.lhs.set(this), scratch.rhs.set(rhs), r, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Compute <code>this^exponent</code> with wrap around semantics.
+		 *
+		 * @param exponent
+		 * @return
+		 */
+		public w256 pow(w256 exponent) {
+			Scratch scratch = SCRATCH.get();
+			m256 r = scratch.rhs.set(exponent);
+			fixedwidth_unsigned_exponentiation(scratch.lhs.set(this), r, r, scratch);
+			return r.toWord();
+		}
+
+		/**
+		 * Check whether this word has exactly one bit set.
+		 *
+		 * @return
+		 */
+		public boolean isPowerOfTwo() {
+			return Long.bitCount(l0) + Long.bitCount(l1) + Long.bitCount(l2) + Long.bitCount(l3) == 1;
+		}
+
+		/**
+		 * Determine the number of bits required to represent this word as an unsigned
+		 * value. For example, zero has length <code>0</code>, whilst one has length
+		 * <code>1</code>.
+		 *
+		 * @return
+		 */
+		public int bitLength() {
+			if (l0 != 0) {
+				return 256 - Long.numberOfLeadingZeros(l0);
+			} else if (l1 != 0) {
+				return 192 - Long.numberOfLeadingZeros(l1);
+			} else if (l2 != 0) {
+				return 128 - Long.numberOfLeadingZeros(l2);
+			} else {
+				return 64 - Long.numberOfLeadingZeros(l3);
+			}
+		}
+
+		public w256 negate() {
+			return ZERO.subtract(this);
+		}
+
+		public boolean signedLessThan(w256 rhs) {
+			boolean l_sign = l0 < 0;
+			boolean r_sign = rhs.l0 < 0;
+			if (l_sign != r_sign) {
+				return l_sign;
+			} else {
+				return unsignedLessThan(rhs);
+			}
+		}
+
+		/**
+		 * Check whether this word is less than another by locating the most
+		 * significant limb which differs.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public boolean unsignedLessThan(w256 rhs) {
+			if (l0 != rhs.l0) {
+				return Long.compareUnsigned(l0, rhs.l0) < 0;
+			} else if (l1 != rhs.l1) {
+				return Long.compareUnsigned(l1, rhs.l1) < 0;
+			} else if (l2 != rhs.l2) {
+				return Long.compareUnsigned(l2, rhs.l2) < 0;
+			} else {
+				return Long.compareUnsigned(l3, rhs.l3) < 0;
+			}
+		}
+
+		public boolean isZero() {
+			return (l0 | l1 | l2 | l3) == 0;
+		}
+
+		public w256 and(w256 rhs) {
+			return new w256(l0 & rhs.l0, l1 & rhs.l1, l2 & rhs.l2, l3 & rhs.l3);
+		}
+
+		public w256 or(w256 rhs) {
+			return new w256(l0 | rhs.l0, l1 | rhs.l1, l2 | rhs.l2, l3 | rhs.l3);
+		}
+
+		public w256 xor(w256 rhs) {
+			return new w256(l0 ^ rhs.l0, l1 ^ rhs.l1, l2 ^ rhs.l2, l3 ^ rhs.l3);
+		}
+
+		public w256 not() {
+			return new w256(~l0, ~l1, ~l2, ~l3);
+		}
+
+		/**
+		 * Sign extend from the given number of (least significant) bytes. That is,
+		 * the most significant bit of the byte at <code>bytes-1</code> (counting from
+		 * the least significant end) is copied into all bits above it. For example,
+		 * sign extending <code>0x..0080</code> from one byte gives
+		 * <code>0xFF..FF80</code>, whilst sign extending <code>0xFF..FF7F</code> from
+		 * one byte gives <code>0x00..007F</code>.
+		 *
+		 * @param bytes
+		 *            Number of bytes to sign extend from (between 1 and 32).
+		 * @return
+		 */
+		public w256 signExtend(int bytes) {
+			if (bytes <= 0 || bytes >= 32) {
+				return this;
+			}
+			int bit = (bytes * 8) - 1;
+			// Identify limb (counting from least significant) holding sign bit
+			int k = bit >>> 6;
+			int b = bit & 63;
+			long limb = limb(3 - k);
+			long fill = -((limb >>> b) & 1);
+			return new w256(extend(l0, 3, k, b, fill), extend(l1, 2, k, b, fill), extend(l2, 1, k, b, fill),
+					extend(l3, 0, k, b, fill));
+		}
+
+		/**
+		 * Check whether this word corresponds to a single (signed) integer. That is,
+		 * the least significant 32 bits hold the value and all bits above are a sign
+		 * extension of it.
+		 *
+		 * @return
+		 */
+		public boolean isInt() {
+			long sign = l3 >> 63;
+			return l3 == (int) l3 && l0 == sign && l1 == sign && l2 == sign;
+		}
+
+		public int toInt() {
+			// Return least-significant int
+			return (int) l3;
+		}
+
+		/**
+		 * Determine the number of bytes required to represent this word as an
+		 * unsigned value (i.e. ignoring leading zero bytes). For example, zero has
+		 * length <code>0</code>, whilst <code>256</code> has length <code>2</code>.
+		 *
+		 * @return
+		 */
+		public int byteLength() {
+			return (bitLength() + 7) >>> 3;
+		}
+
+		/**
+		 * Get a given limb of this word, where limb <code>0</code> is the most
+		 * significant.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public long limb(int i) {
+			switch (i) {
+			case 0:
+				return l0;
+			case 1:
+				return l1;
+			case 2:
+				return l2;
+			case 3:
+				return l3;
+			default:
+				throw new IllegalArgumentException("invalid limb index");
+			}
+		}
+
+		/**
+		 * Get a given limb counting from the least significant, where limbs outside
+		 * the word are treated as zero.
+		 *
+		 * @param j
+		 * @return
+		 */
+		private long lsb(int j) {
+			return (j < 0 || j > 3) ? 0 : limb(3 - j);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof w256) {
+				w256 w = (w256) o;
+				return l0 == w.l0 && l1 == w.l1 && l2 == w.l2 && l3 == w.l3;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			int h = Long.hashCode(l0);
+			h = (31 * h) + Long.hashCode(l1);
+			h = (31 * h) + Long.hashCode(l2);
+			return (31 * h) + Long.hashCode(l3);
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[66];
+			chars[0] = '0';
+			chars[1] = 'x';
+			Hex.encode(l0, chars, 2);
+			Hex.encode(l1, chars, 18);
+			Hex.encode(l2, chars, 34);
+			Hex.encode(l3, chars, 50);
+			return new String(chars);
+		}
+
+		/**
+		 * Return an array of bytes in big endian form
+		 *
+		 * @return
+		 */
+		public byte[] toByteArray() {
+			byte[] bytes = new byte[32];
+			toBytes(l0, bytes, 0);
+			toBytes(l1, bytes, 8);
+			toBytes(l2, bytes, 16);
+			toBytes(l3, bytes, 24);
+			return bytes;
+		}
+
+		/**
+		 * Get a (signed) biginteger representation of this word
+		 *
+		 * @return
+		 */
+		public BigInteger toBigInteger() {
+			return new BigInteger(toByteArray());
+		}
+	}
+
+	/**
+	 * A mutable 256-bit word, represented using four 64-bit limbs in the same
+	 * manner as <code>w256</code>. This is intended for performance critical code,
+	 * such as the slots of an operand stack, where allocating a fresh word for
+	 * every intermediate value is undesirable. Binary operations follow the order
+	 * of operands on the EVM stack: the receiver is the left-hand side and the
+	 * result is written into the right-hand side. For example,
+	 * <code>lhs.subInto(rhs)</code> assigns <code>lhs - rhs</code> to
+	 * <code>rhs</code> and leaves <code>lhs</code> unchanged.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public final static class m256 {
+		private long l0, l1, l2, l3;
+
+		public m256() {
+		}
+
+		public m256(w256 w) {
+			set(w);
+		}
+
+		/**
+		 * Assign a (sign extended) long value to this word.
+		 *
+		 * @param v
+		 * @return
+		 */
+		public m256 set(long v) {
+			long sign = v >> 63;
+			this.l0 = sign;
+			this.l1 = sign;
+			this.l2 = sign;
+			this.l3 = v;
+			return this;
+		}
+
+		/**
+		 * Assign the limbs of this word, where <code>l0</code> is the most
+		 * significant.
+		 *
+		 * @param l0
+		 * @param l1
+		 * @param l2
+		 * @param l3
+		 * @return
+		 */
+		public m256 set(long l0, long l1, long l2, long l3) {
+			this.l0 = l0;
+			this.l1 = l1;
+			this.l2 = l2;
+			this.l3 = l3;
+			return this;
+		}
+
+		public m256 set(w256 w) {
+			return set(w.l0, w.l1, w.l2, w.l3);
+		}
+
+		public m256 set(m256 w) {
+			return set(w.l0, w.l1, w.l2, w.l3);
+		}
+
+		/**
+		 * Assign this word from four consecutive limbs of an array, starting with
+		 * the most significant.
+		 *
+		 * @param limbs
+		 * @param offset
+		 * @return
+		 */
+		public m256 load(long[] limbs, int offset) {
+			return set(limbs[offset], limbs[offset + 1], limbs[offset + 2], limbs[offset + 3]);
+		}
+
+		/**
+		 * Write the limbs of this word into four consecutive elements of an array,
+		 * starting with the most significant.
+		 *
+		 * @param limbs
+		 * @param offset
+		 */
+		public void store(long[] limbs, int offset) {
+			limbs[offset] = l0;
+			limbs[offset + 1] = l1;
+			limbs[offset + 2] = l2;
+			limbs[offset + 3] = l3;
+		}
+
+		/**
+		 * Get an immutable snapshot of this word, which may be a canonical instance.
+		 *
+		 * @return
+		 */
+		public w256 toWord() {
+			return w256.valueOf(l0, l1, l2, l3);
+		}
+
+		public boolean isZero() {
+			return (l0 | l1 | l2 | l3) == 0;
+		}
+
+		/**
+		 * Check whether this word corresponds to a single (signed) integer. See
+		 * <code>w256.isInt()</code> for more details.
+		 *
+		 * @return
+		 */
+		public boolean isInt() {
+			long sign = l3 >> 63;
+			return l3 == (int) l3 && l0 == sign && l1 == sign && l2 == sign;
+		}
+
+		public int toInt() {
+			// Return least-significant int
+			return (int) l3;
+		}
+
+		public int bitLength() {
+			if (l0 != 0) {
+				return 256 - Long.numberOfLeadingZeros(l0);
+			} else if (l1 != 0) {
+				return 192 - Long.numberOfLeadingZeros(l1);
+			} else if (l2 != 0) {
+				return 128 - Long.numberOfLeadingZeros(l2);
+			} else {
+				return 64 - Long.numberOfLeadingZeros(l3);
+			}
+		}
+
+		/**
+		 * Determine the number of bytes required to represent this word as an
+		 * unsigned value. See <code>w256.byteLength()</code> for more details.
+		 *
+		 * @return
+		 */
+		public int byteLength() {
+			return (bitLength() + 7) >>> 3;
+		}
+
+		public boolean isPowerOfTwo() {
+			return Long.bitCount(l0) + Long.bitCount(l1) + Long.bitCount(l2) + Long.bitCount(l3) == 1;
+		}
+
+		public boolean signedLessThan(m256 rhs) {
+			if (l0 != rhs.l0) {
+				return l0 < rhs.l0;
+			} else {
+				return unsignedLessThan(rhs);
+			}
+		}
+
+		public boolean unsignedLessThan(m256 rhs) {
+			if (l0 != rhs.l0) {
+				return Long.compareUnsigned(l0, rhs.l0) < 0;
+			} else if (l1 != rhs.l1) {
+				return Long.compareUnsigned(l1, rhs.l1) < 0;
+			} else if (l2 != rhs.l2) {
+				return Long.compareUnsigned(l2, rhs.l2) < 0;
+			} else {
+				return Long.compareUnsigned(l3, rhs.l3) < 0;
+			}
+		}
+
+		public boolean equalTo(m256 rhs) {
+			return l0 == rhs.l0 && l1 == rhs.l1 && l2 == rhs.l2 && l3 == rhs.l3;
+		}
+
+		/**
+		 * Get a given byte of this word, where byte <code>0</code> is the most
+		 * significant.
+		 *
+		 * @param i
+		 *            Index of byte (between 0 and 31).
+		 * @return
+		 */
+		public int getByte(int i) {
+			return (int) (lsb(3 - (i >>> 3)) >>> (56 - ((i & 7) << 3))) & 0xFF;
+		}
+
+		// ========================================================================
+		// Unary operations (in place)
+		// ========================================================================
+
+		public m256 negate() {
+			long r3 = -l3;
+			long b = borrow(0, l3, r3);
+			long r2 = -l2 - b;
+			b = borrow(0, l2, r2);
+			long r1 = -l1 - b;
+			b = borrow(0, l1, r1);
+			return set(-l0 - b, r1, r2, r3);
+		}
+
+		public m256 not() {
+			return set(~l0, ~l1, ~l2, ~l3);
+		}
+
+		/**
+		 * Shift this word left by a given number of bits, filling with zeros.
+		 *
+		 * @param n
+		 *            Number of bits to shift by (which cannot be negative).
+		 * @return
+		 */
+		public m256 shiftLeft(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("negative shift");
+			} else if (n == 0) {
+				return this;
+			} else if (n >= 256) {
+				return set(0);
+			}
+			int k = n >>> 6;
+			int b = n & 63;
+			long r3 = shl(lsb(3 - k), lsb(2 - k), b);
+			long r2 = shl(lsb(2 - k), lsb(1 - k), b);
+			long r1 = shl(lsb(1 - k), lsb(-k), b);
+			long r0 = shl(lsb(-k), 0, b);
+			return set(r3, r2, r1, r0);
+		}
+
+		/**
+		 * Shift this word right by a given number of bits, filling with zeros.
+		 *
+		 * @param n
+		 *            Number of bits to shift by (which cannot be negative).
+		 * @return
+		 */
+		public m256 shiftRight(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("negative shift");
+			} else if (n == 0) {
+				return this;
+			} else if (n >= 256) {
+				return set(0);
+			}
+			int k = n >>> 6;
+			int b = n & 63;
+			long r3 = shr(lsb(3 + k), 0, b);
+			long r2 = shr(lsb(2 + k), lsb(3 + k), b);
+			long r1 = shr(lsb(1 + k), lsb(2 + k), b);
+			long r0 = shr(lsb(k), lsb(1 + k), b);
+			return set(r3, r2, r1, r0);
+		}
+
+		/**
+		 * Retain only the given number of least significant bits of this word.
+		 *
+		 * @param bits
+		 * @return
+		 */
+		private m256 truncate(int bits) {
+			return set(mask(l0, 3, bits), mask(l1, 2, bits), mask(l2, 1, bits), mask(l3, 0, bits));
+		}
+
+		/**
+		 * Sign extend from the given number of (least significant) bytes. See
+		 * <code>w256.signExtend()</code> for more details.
+		 *
+		 * @param bytes
+		 *            Number of bytes to sign extend from (between 1 and 32).
+		 * @return
+		 */
+		public m256 signExtend(int bytes) {
+			if (bytes <= 0 || bytes >= 32) {
+				return this;
+			}
+			int bit = (bytes * 8) - 1;
+			int k = bit >>> 6;
+			int b = bit & 63;
+			long fill = -((lsb(k) >>> b) & 1);
+			return set(extend(l0, 3, k, b, fill), extend(l1, 2, k, b, fill), extend(l2, 1, k, b, fill),
+					extend(l3, 0, k, b, fill));
+		}
+
+		// ========================================================================
+		// Binary operations (result written into the right-hand side)
+		// ========================================================================
+
+		public m256 addInto(m256 rhs) {
+			long r3 = l3 + rhs.l3;
+			long c = carry(l3, rhs.l3, r3);
+			long r2 = l2 + rhs.l2 + c;
+			c = carry(l2, rhs.l2, r2);
+			long r1 = l1 + rhs.l1 + c;
+			c = carry(l1, rhs.l1, r1);
+			return rhs.set(l0 + rhs.l0 + c, r1, r2, r3);
+		}
+
+		public m256 subInto(m256 rhs) {
+			long r3 = l3 - rhs.l3;
+			long b = borrow(l3, rhs.l3, r3);
+			long r2 = l2 - rhs.l2 - b;
+			b = borrow(l2, rhs.l2, r2);
+			long r1 = l1 - rhs.l1 - b;
+			b = borrow(l1, rhs.l1, r1);
+			return rhs.set(l0 - rhs.l0 - b, r1, r2, r3);
+		}
+
+		public m256 mulInto(m256 rhs) {
+			fixedwidth_unsigned_multiplication(this, rhs, rhs, SCRATCH.get());
+			return rhs;
+		}
+
+		public m256 divInto(m256 rhs) {
+			fixedwidth_unsigned_division(this, rhs, false, rhs, SCRATCH.get());
+			return rhs;
+		}
+
+		public m256 sdivInto(m256 rhs) {
+			fixedwidth_signed_division(this, rhs, false, rhs, SCRATCH.get());
+			return rhs;
+		}
+
+		public m256 modInto(m256 rhs) {
+			fixedwidth_unsigned_division(this, rhs, true, rhs, SCRATCH.get());
+			return rhs;
+		}
+
+		public m256 smodInto(m256 rhs) {
+			fixedwidth_signed_division(this, rhs, true, rhs, SCRATCH.get());
+			return rhs;
+		}
+
+		/**
+		 * Assign <code>(this + rhs) % modulus</code> to <code>modulus</code>.
+		 *
+		 * @param rhs
+		 * @param modulus
+		 * @return
+		 */
+		public m256 addModInto(m256 rhs, m256 modulus) {
+			fixedwidth_unsigned_addmod(this, rhs, modulus, modulus, SCRATCH.get());
+			return modulus;
+		}
+
+		/**
+		 * Assign <code>(this * rhs) % modulus</code> to <code>modulus</code>.
+		 *
+		 * @param rhs
+		 * @param modulus
+		 * @return
+		 */
+		public m256 mulModInto(m256 rhs, m256 modulus) {
+			fixedwidth_unsigned_mulmod(this, rhs, modulus, modulus, SCRATCH.get());
+			return modulus;
+		}
+
+		/**
+		 * Assign <code>this^exponent</code> to <code>exponent</code>.
+		 *
+		 * @param exponent
+		 * @return
+		 */
+		public m256 expInto(m256 exponent) {
+			fixedwidth_unsigned_exponentiation(this, exponent, exponent, SCRATCH.get());
+			return exponent;
+		}
+
+		public m256 andInto(m256 rhs) {
+			return rhs.set(l0 & rhs.l0, l1 & rhs.l1, l2 & rhs.l2, l3 & rhs.l3);
+		}
+
+		public m256 orInto(m256 rhs) {
+			return rhs.set(l0 | rhs.l0, l1 | rhs.l1, l2 | rhs.l2, l3 | rhs.l3);
+		}
+
+		public m256 xorInto(m256 rhs) {
+			return rhs.set(l0 ^ rhs.l0, l1 ^ rhs.l1, l2 ^ rhs.l2, l3 ^ rhs.l3);
+		}
+
+		public m256 ltInto(m256 rhs) {
+			return rhs.set(unsignedLessThan(rhs) ? 1 : 0);
+		}
+
+		public m256 gtInto(m256 rhs) {
+			return rhs.set(rhs.unsignedLessThan(this) ? 1 : 0);
+		}
+
+		public m256 sltInto(m256 rhs) {
+			return rhs.set(signedLessThan(rhs) ? 1 : 0);
+		}
+
+		public m256 sgtInto(m256 rhs) {
+			return rhs.set(rhs.signedLessThan(this) ? 1 : 0);
+		}
+
+		public m256 eqInto(m256 rhs) {
+			return rhs.set(equalTo(rhs) ? 1 : 0);
+		}
+
+		/**
+		 * Assign <code>rhs << this</code> to <code>rhs</code>, where shifting by
+		 * 256 or more bits gives zero.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public m256 shlInto(m256 rhs) {
+			return rhs.shiftLeft(shift());
+		}
+
+		/**
+		 * Assign <code>rhs >>> this</code> to <code>rhs</code>, where shifting by
+		 * 256 or more bits gives zero.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public m256 shrInto(m256 rhs) {
+			return rhs.shiftRight(shift());
+		}
+
+		/**
+		 * Assign <code>rhs >> this</code> to <code>rhs</code>, where the sign of
+		 * <code>rhs</code> is shifted in from the left.
+		 *
+		 * @param rhs
+		 * @return
+		 */
+		public m256 sarInto(m256 rhs) {
+			if (rhs.l0 < 0) {
+				return rhs.not().shiftRight(shift()).not();
+			} else {
+				return rhs.shiftRight(shift());
+			}
+		}
+
+		/**
+		 * Get the number of bits to shift by when this word is a shift operand,
+		 * where shifts of 256 or more bits are all equivalent.
+		 *
+		 * @return
+		 */
+		private int shift() {
+			return (l0 | l1 | l2) == 0 && l3 >= 0 && l3 < 256 ? (int) l3 : 256;
+		}
+
+		private boolean isOne() {
+			return (l0 | l1 | l2) == 0 && l3 == 1;
+		}
+
+		/**
+		 * Get a given limb counting from the least significant, where limbs outside
+		 * the word are treated as zero.
+		 *
+		 * @param j
+		 * @return
+		 */
+		private long lsb(int j) {
+			switch (j) {
+			case 0:
+				return l3;
+			case 1:
+				return l2;
+			case 2:
+				return l1;
+			case 3:
+				return l0;
+			default:
+				return 0;
+			}
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[66];
+			chars[0] = '0';
+			chars[1] = 'x';
+			Hex.encode(l0, chars, 2);
+			Hex.encode(l1, chars, 18);
+			Hex.encode(l2, chars, 34);
+			Hex.encode(l3, chars, 50);
+			return new String(chars);
+		}
+	}
+
+	/**
+	 * Determine the carry out from adding two limbs (plus any carry in), given the
+	 * result <code>r</code>. This is the most significant bit of the majority of
+	 * the operands and the (inverted) result.
+	 *
+	 * @param a
+	 * @param b
+	 * @param r
+	 * @return Either zero or one.
+	 */
+	private static long carry(long a, long b, long r) {
+		return ((a & b) | ((a | b) & ~r)) >>> 63;
+	}
+
+	/**
+	 * Perform a fixed-width unsigned division (or remainder) with EVM semantics,
+	 * writing the result into <code>r</code> (which may alias either operand).
+	 * Several special cases are considered before falling back on long division,
+	 * namely: division by zero; a dividend smaller than the divisor; operands
+	 * which both fit within a single limb; and, divisors which are powers of two.
+	 *
+	 * @param u
+	 *            The dividend
+	 * @param v
+	 *            The divisor
+	 * @param remainder
+	 *            Indicates whether quotient or remainder is required.
+	 * @param r
+	 *            The result
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_division(m256 u, m256 v, boolean remainder, m256 r, Scratch scratch) {
+		if (v.isZero()) {
+			r.set(0);
+		} else if (u.unsignedLessThan(v)) {
+			if (remainder) {
+				r.set(u);
+			} else {
+				r.set(0);
+			}
+		} else if ((u.l0 | u.l1 | u.l2) == 0) {
+			// Since v <= u, both fit within a single limb
+			long q = Long.divideUnsigned(u.l3, v.l3);
+			r.set(0, 0, 0, remainder ? (u.l3 - (q * v.l3)) : q);
+		} else if (v.isPowerOfTwo()) {
+			int k = v.bitLength() - 1;
+			if (remainder) {
+				r.set(u).truncate(k);
+			} else {
+				r.set(u).shiftRight(k);
+			}
+		} else if ((v.l0 | v.l1 | v.l2) == 0) {
+			fixedwidth_unsigned_division(u, v.l3, remainder, r);
+		} else {
+			long[] un = scratch.u;
+			un[0] = u.l3;
+			un[1] = u.l2;
+			un[2] = u.l1;
+			un[3] = u.l0;
+			scratch.prepare(v);
+			fixedwidth_unsigned_division(scratch, 4);
+			if (remainder) {
+				r.set(un[3], un[2], un[1], un[0]);
+			} else {
+				long[] q = scratch.q;
+				r.set(q[3], q[2], q[1], q[0]);
+			}
 		}
+	}
 
-		public w256(int[] ints) {
-			super(8, ints);
+	/**
+	 * Perform a fixed-width signed (truncating) division (or remainder) with EVM
+	 * semantics, writing the result into <code>r</code> (which may alias either
+	 * operand). This divides the magnitudes of the operands and then corrects the
+	 * sign of the result. The sign of a quotient is negative when exactly one
+	 * operand is negative, whilst that of a remainder matches the dividend. Since
+	 * the magnitude of the most negative value is itself, dividing it by minus one
+	 * gives the most negative value as required.
+	 *
+	 * @param u
+	 *            The dividend
+	 * @param v
+	 *            The divisor
+	 * @param remainder
+	 *            Indicates whether quotient or remainder is required.
+	 * @param r
+	 *            The result
+	 * @param scratch
+	 */
+	private static void fixedwidth_signed_division(m256 u, m256 v, boolean remainder, m256 r, Scratch scratch) {
+		boolean u_sign = u.l0 < 0;
+		boolean v_sign = v.l0 < 0;
+		m256 t = scratch.t.set(u);
+		if (u_sign) {
+			t.negate();
 		}
-
-		public w256(byte[] bytes) {
-			super(8, bytes);
+		r.set(v);
+		if (v_sign) {
+			r.negate();
 		}
-
-		public w256(byte v) {
-			super(8,v);
+		fixedwidth_unsigned_division(t, r, remainder, r, scratch);
+		if (remainder ? u_sign : (u_sign != v_sign)) {
+			r.negate();
 		}
+	}
 
-		public w256(short v) {
-			super(8,v);
+	/**
+	 * Divide the first <code>m</code> limbs of <code>scratch.u</code> by the
+	 * divisor most recently prepared in the scratch space. Upon completion,
+	 * <code>scratch.q</code> holds the quotient and the first four limbs of
+	 * <code>scratch.u</code> hold the remainder. The dividend must have at least
+	 * as many limbs as the divisor.
+	 *
+	 * @param scratch
+	 * @param m
+	 *            Number of limbs in dividend.
+	 */
+	private static void fixedwidth_unsigned_division(Scratch scratch, int m) {
+		final long[] u = scratch.u;
+		final long[] v = scratch.v;
+		final long[] q = scratch.q;
+		final int n = scratch.n;
+		final int s = scratch.shift;
+		// Normalise dividend by shifting the same amount as the divisor
+		u[m] = shl(0, u[m - 1], s);
+		for (int i = m - 1; i > 0; --i) {
+			u[i] = shl(u[i], u[i - 1], s);
+		}
+		u[0] = u[0] << s;
+		Arrays.fill(q, 0);
+		if (n == 1) {
+			// Divisor fits within a single limb
+			long r = u[m];
+			for (int i = m - 1; i >= 0; --i) {
+				q[i] = unsignedDivide(r, u[i], v[0], scratch.reciprocal);
+				r = u[i] - (q[i] * v[0]);
+			}
+			u[0] = r >>> s;
+			u[1] = 0;
+		} else {
+			fixedwidth_unsigned_division(u, m, v, n, q, scratch.reciprocal);
+			// Undo normalisation of remainder
+			for (int i = 0; i < n; ++i) {
+				u[i] = shr(u[i], u[i + 1], s);
+			}
 		}
-
-		public w256(int v) {
-			super(8,v);
+		// Clear any limbs above the remainder
+		for (int i = Math.max(n, 2); i < 4; ++i) {
+			u[i] = 0;
 		}
+	}
 
-		public w256(long v) {
-			super(8,v);
+	/**
+	 * Compute <code>(a + b) % n</code> with EVM semantics, where the intermediate
+	 * sum is not subject to the 256-bit modulus. Thus, the sum can require 257
+	 * bits, in which case the carry is reduced as an additional limb. The result
+	 * is written into <code>r</code> (which may alias any operand).
+	 *
+	 * @param a
+	 * @param b
+	 * @param n
+	 * @param r
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_addmod(m256 a, m256 b, m256 n, m256 r, Scratch scratch) {
+		if (n.isZero()) {
+			r.set(0);
+			return;
+		}
+		long r3 = a.l3 + b.l3;
+		long c = carry(a.l3, b.l3, r3);
+		long r2 = a.l2 + b.l2 + c;
+		c = carry(a.l2, b.l2, r2);
+		long r1 = a.l1 + b.l1 + c;
+		c = carry(a.l1, b.l1, r1);
+		long r0 = a.l0 + b.l0 + c;
+		c = carry(a.l0, b.l0, r0);
+		if (c == 0) {
+			fixedwidth_unsigned_division(scratch.t.set(r0, r1, r2, r3), n, true, r, scratch);
+		} else {
+			long[] u = scratch.u;
+			u[0] = r3;
+			u[1] = r2;
+			u[2] = r1;
+			u[3] = r0;
+			u[4] = c;
+			scratch.prepare(n);
+			fixedwidth_unsigned_division(scratch, 5);
+			r.set(u[3], u[2], u[1], u[0]);
 		}
+	}
 
-		/**
-		 * Increment by one.
-		 */
-		public w256 increment() {
-			int[] result = fixedwidth_twoscomplement_increment(ints);
-			return new w256(result);
+	/**
+	 * Compute <code>(a * b) % n</code> with EVM semantics, where the intermediate
+	 * product is not subject to the 256-bit modulus. When the product is known to
+	 * fit within 256 bits, this reduces to an ordinary multiplication and
+	 * remainder. Otherwise, the full 512-bit product is computed into the scratch
+	 * space and reduced from there. The result is written into <code>r</code>
+	 * (which may alias any operand).
+	 *
+	 * @param a
+	 * @param b
+	 * @param n
+	 * @param r
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_mulmod(m256 a, m256 b, m256 n, m256 r, Scratch scratch) {
+		if (n.isZero()) {
+			r.set(0);
+			return;
+		} else if (a.bitLength() + b.bitLength() <= 256) {
+			m256 t = scratch.t;
+			fixedwidth_unsigned_multiplication(a, b, t, scratch);
+			fixedwidth_unsigned_division(t, n, true, r, scratch);
+			return;
+		}
+		long[] u = scratch.u;
+		fixedwidth_unsigned_multiplication(a, b, scratch);
+		// Discard leading zero limbs of product
+		int m = 8;
+		while (u[m - 1] == 0) {
+			m = m - 1;
+		}
+		scratch.prepare(n);
+		if (m >= scratch.n) {
+			fixedwidth_unsigned_division(scratch, m);
+		}
+		// Otherwise, product is already smaller than modulus
+		r.set(u[3], u[2], u[1], u[0]);
+	}
+
+	/**
+	 * Compute the product of two words with wrap around semantics, writing the
+	 * result into <code>r</code> (which may alias either operand).
+	 *
+	 * @param a
+	 * @param b
+	 * @param r
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_multiplication(m256 a, m256 b, m256 r, Scratch scratch) {
+		if ((a.l0 | a.l1 | a.l2 | b.l0 | b.l1 | b.l2) == 0) {
+			// Both operands fit within a single limb
+			r.set(0, 0, unsignedMultiplyHigh(a.l3, b.l3), a.l3 * b.l3);
+		} else {
+			final long[] u = scratch.u;
+			load(a, scratch.x);
+			load(b, scratch.y);
+			fixedwidth_unsigned_multiplication(scratch.x, 0, scratch.y, 0, u, 0, 4);
+			r.set(u[3], u[2], u[1], u[0]);
 		}
+	}
 
-		public w256 add(w256 rhs) {
-			int[] result = fixedwidth_twoscomplement_addition(ints, rhs.ints);
-			return new w256(result);
+	/**
+	 * Compute the full 512-bit product of two words into the first eight limbs of
+	 * <code>scratch.u</code> (least significant first).
+	 *
+	 * @param a
+	 * @param b
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_multiplication(m256 a, m256 b, Scratch scratch) {
+		load(a, scratch.x);
+		load(b, scratch.y);
+		fixedwidth_unsigned_multiplication(scratch.x, 0, scratch.y, 0, scratch.u, 0, 8);
+	}
+
+	/**
+	 * Copy the limbs of a word into an array (least significant first).
+	 *
+	 * @param w
+	 * @param limbs
+	 */
+	private static void load(m256 w, long[] limbs) {
+		limbs[0] = w.l3;
+		limbs[1] = w.l2;
+		limbs[2] = w.l1;
+		limbs[3] = w.l0;
+	}
+
+	/**
+	 * Multiply two 4-limb operands (least significant first) and write the given
+	 * number of least significant limbs of the product into <code>u</code>. For
+	 * example, a width of <code>8</code> gives the full 512-bit product, whilst a
+	 * width of <code>4</code> gives the product with wrap around semantics. The
+	 * result must not overlap either operand.
+	 *
+	 * @param x
+	 * @param xoff
+	 * @param y
+	 * @param yoff
+	 * @param u
+	 * @param uoff
+	 * @param width
+	 *            Number of limbs of product to retain (between 4 and 8).
+	 */
+	private static void fixedwidth_unsigned_multiplication(long[] x, int xoff, long[] y, int yoff, long[] u, int uoff,
+			int width) {
+		Arrays.fill(u, uoff, uoff + width, 0);
+		for (int i = 0; i < 4; ++i) {
+			final long xi = x[xoff + i];
+			final int n = Math.min(4, width - i);
+			long k = 0;
+			for (int j = 0; j < n; ++j) {
+				final long yj = y[yoff + j];
+				final int ij = uoff + i + j;
+				long p = xi * yj;
+				long hi = unsignedMultiplyHigh(xi, yj);
+				long lo = p + u[ij];
+				hi += carry(p, u[ij], lo);
+				p = lo;
+				lo = p + k;
+				hi += carry(p, k, lo);
+				u[ij] = lo;
+				k = hi;
+			}
+			if (i + 4 < width) {
+				u[uoff + i + 4] = k;
+			}
 		}
+	}
 
-		public w256 subtract(w256 rhs) {
-			// FIXME: could be more efficient
-			return this.add(rhs.negate());
+	/**
+	 * Compute <code>base^exponent</code> with wrap around semantics, writing the
+	 * result into <code>r</code> (which may alias either operand). Several special
+	 * cases are considered first, namely: a zero or unit base or exponent; and,
+	 * bases which are powers of two (which reduce to a shift). Otherwise, a
+	 * left-to-right square-and-multiply is performed over the scratch space. For
+	 * exponents which fit into an int, this proceeds one bit at a time. For larger
+	 * exponents, a fixed window of four bits is used with a table holding the
+	 * first sixteen powers of the base. This reduces the number of multiplications
+	 * (excluding squarings) by roughly a factor of four.
+	 *
+	 * @param base
+	 * @param exponent
+	 * @param r
+	 * @param scratch
+	 */
+	private static void fixedwidth_unsigned_exponentiation(m256 base, m256 exponent, m256 r, Scratch scratch) {
+		if (exponent.isZero()) {
+			r.set(1);
+			return;
+		} else if (base.isZero() || base.isOne() || exponent.isOne()) {
+			r.set(base);
+			return;
+		} else if (base.isPowerOfTwo()) {
+			// (2^k)^e == 2^(k*e), where k >= 1
+			if (exponent.bitLength() > 8) {
+				r.set(0);
+			} else {
+				int shift = (base.bitLength() - 1) * exponent.toInt();
+				r.set(1).shiftLeft(Math.min(shift, 256));
+			}
+			return;
+		}
+		long[] table = scratch.powers;
+		long[] acc = scratch.x;
+		long[] tmp = scratch.y;
+		table[4] = base.l3;
+		table[5] = base.l2;
+		table[6] = base.l1;
+		table[7] = base.l0;
+		int bits = exponent.bitLength();
+		if (bits < 32) {
+			// Binary method
+			System.arraycopy(table, 4, acc, 0, 4);
+			int e = exponent.toInt();
+			for (int i = bits - 2; i >= 0; --i) {
+				fixedwidth_unsigned_multiplication(acc, 0, acc, 0, tmp, 0, 4);
+				if ((e & (1 << i)) != 0) {
+					fixedwidth_unsigned_multiplication(tmp, 0, table, 4, acc, 0, 4);
+				} else {
+					long[] t = acc;
+					acc = tmp;
+					tmp = t;
+				}
+			}
+		} else {
+			// Fixed window method
+			for (int d = 2; d < 16; ++d) {
+				fixedwidth_unsigned_multiplication(table, (d - 1) * 4, table, 4, table, d * 4, 4);
+			}
+			int w = (bits - 1) >>> 2;
+			System.arraycopy(table, digit(exponent, w) * 4, acc, 0, 4);
+			while (--w >= 0) {
+				for (int i = 0; i != 4; ++i) {
+					fixedwidth_unsigned_multiplication(acc, 0, acc, 0, tmp, 0, 4);
+					long[] t = acc;
+					acc = tmp;
+					tmp = t;
+				}
+				int d = digit(exponent, w);
+				if (d != 0) {
+					fixedwidth_unsigned_multiplication(acc, 0, table, d * 4, tmp, 0, 4);
+					long[] t = acc;
+					acc = tmp;
+					tmp = t;
+				}
+			}
 		}
+		r.set(acc[3], acc[2], acc[1], acc[0]);
+	}
 
-		public w256 multiply(w256 rhs) {
-			int[] result = fixedwidth_twoscomplement_multiplication(ints, rhs.ints);
-			return new w256(result);
+	/**
+	 * Extract the <code>w</code>th four-bit digit of a word, counting from the
+	 * least significant.
+	 *
+	 * @param word
+	 * @param w
+	 * @return
+	 */
+	private static int digit(m256 word, int w) {
+		int bit = w << 2;
+		return (int) (word.lsb(bit >>> 6) >>> (bit & 63)) & 0xF;
+	}
+
+	/**
+	 * Perform a fixed-width unsigned division (or remainder) of a 256-bit dividend
+	 * by a divisor which fits within a single limb, writing the result into
+	 * <code>r</code>. The dividend is normalised such that each quotient limb can
+	 * be computed by dividing a 128-bit value by the (normalised) divisor.
+	 *
+	 * @param u
+	 *            The dividend
+	 * @param v
+	 *            The (non-zero) divisor
+	 * @param remainder
+	 *            Indicates whether quotient or remainder is required.
+	 * @param r
+	 *            The result
+	 */
+	private static void fixedwidth_unsigned_division(m256 u, long v, boolean remainder, m256 r) {
+		int s = Long.numberOfLeadingZeros(v);
+		long vn = v << s;
+		long un3 = shl(u.l0, u.l1, s);
+		long un2 = shl(u.l1, u.l2, s);
+		long un1 = shl(u.l2, u.l3, s);
+		long un0 = u.l3 << s;
+		// Top limb of normalised dividend is always less than divisor
+		long rem = shl(0, u.l0, s);
+		long q3 = unsignedDivide(rem, un3, vn);
+		rem = un3 - (q3 * vn);
+		long q2 = unsignedDivide(rem, un2, vn);
+		rem = un2 - (q2 * vn);
+		long q1 = unsignedDivide(rem, un1, vn);
+		rem = un1 - (q1 * vn);
+		long q0 = unsignedDivide(rem, un0, vn);
+		rem = un0 - (q0 * vn);
+		if (remainder) {
+			r.set(0, 0, 0, rem >>> s);
+		} else {
+			r.set(q3, q2, q1, q0);
 		}
+	}
 
-		public w256 negate() {
-			int[] result = fixedwidth_twoscomplement_negation(ints);
-			return new w256(result);
+	/**
+	 * Perform an unsigned long division using Knuth's Algorithm D (see The Art of
+	 * Computer Programming, Vol 2, &sect;4.3.1). Limbs are stored in little endian
+	 * order (i.e. least significant first). The divisor must be normalised, such
+	 * that the most significant bit of <code>v[n-1]</code> is set, and the
+	 * dividend shifted by the same amount. Upon completion, the (normalised)
+	 * remainder occupies <code>u[0..n-1]</code> with all limbs above it zero.
+	 *
+	 * @param u
+	 *            The dividend, which has <code>m+1</code> limbs.
+	 * @param m
+	 * @param v
+	 *            The divisor, which has <code>n</code> limbs (where
+	 *            <code>n &gt;= 2</code>).
+	 * @param n
+	 * @param q
+	 *            The quotient which, upon completion, holds
+	 *            <code>m-n+1</code> limbs.
+	 * @param reciprocal
+	 *            The reciprocal of <code>v[n-1]</code>.
+	 */
+	private static void fixedwidth_unsigned_division(long[] u, int m, long[] v, int n, long[] q, long reciprocal) {
+		final long vh = v[n - 1];
+		final long vl = v[n - 2];
+		for (int j = m - n; j >= 0; --j) {
+			long uh = u[j + n];
+			long um = u[j + n - 1];
+			long qhat, rhat;
+			// Indicates whether rhat has exceeded a single limb
+			boolean overflow;
+			// Estimate quotient limb from the top limbs
+			if (uh == vh) {
+				qhat = -1L;
+				rhat = um + vh;
+				overflow = Long.compareUnsigned(rhat, um) < 0;
+			} else {
+				qhat = unsignedDivide(uh, um, vh, reciprocal);
+				rhat = um - (qhat * vh);
+				overflow = false;
+			}
+			// Refine estimate using the second limb of the divisor. This ensures qhat
+			// is at most one too large.
+			while (!overflow) {
+				long phi = unsignedMultiplyHigh(qhat, vl);
+				int c = Long.compareUnsigned(phi, rhat);
+				if (c > 0 || (c == 0 && Long.compareUnsigned(qhat * vl, u[j + n - 2]) > 0)) {
+					qhat--;
+					long nrhat = rhat + vh;
+					overflow = Long.compareUnsigned(nrhat, rhat) < 0;
+					rhat = nrhat;
+				} else {
+					break;
+				}
+			}
+			// Multiply and subtract
+			long k = 0;
+			long b = 0;
+			for (int i = 0; i < n; ++i) {
+				long p = qhat * v[i];
+				long plo = p + k;
+				k = unsignedMultiplyHigh(qhat, v[i]) + carry(p, k, plo);
+				long a = u[i + j];
+				long t = a - plo - b;
+				b = borrow(a, plo, t);
+				u[i + j] = t;
+			}
+			long a = u[j + n];
+			long t = a - k - b;
+			u[j + n] = t;
+			if (borrow(a, k, t) != 0) {
+				// Estimate was one too large, so add divisor back
+				qhat--;
+				long c = 0;
+				for (int i = 0; i < n; ++i) {
+					a = u[i + j];
+					t = a + v[i] + c;
+					c = carry(a, v[i], t);
+					u[i + j] = t;
+				}
+				u[j + n] += c;
+			}
+			q[j] = qhat;
 		}
+	}
 
-		public boolean signedLessThan(w256 rhs) {
-			return fixedwidth_twoscomplement_lessthan(ints,rhs.ints);
+	/**
+	 * Divide a 128-bit unsigned value by a 64-bit unsigned divisor, producing a
+	 * 64-bit quotient. The divisor must be normalised (i.e. have its most
+	 * significant bit set) and the high limb of the dividend must be less than
+	 * it, thus ensuring the quotient fits. This follows <code>divlu</code> from
+	 * Hacker's Delight (&sect;9.4), splitting the divisor into 32-bit halves. The
+	 * remainder can be recovered by the caller as <code>u0 - q*v</code>.
+	 *
+	 * @param u1
+	 *            High limb of dividend
+	 * @param u0
+	 *            Low limb of dividend
+	 * @param v
+	 *            Normalised divisor
+	 * @return
+	 */
+	private static long unsignedDivide(long u1, long u0, long v) {
+		final long b = 1L << 32;
+		long vn1 = v >>> 32;
+		long vn0 = v & 0xFFFFFFFFL;
+		long un1 = u0 >>> 32;
+		long un0 = u0 & 0xFFFFFFFFL;
+		// Compute high half of quotient
+		long q1 = Long.divideUnsigned(u1, vn1);
+		long rhat = u1 - (q1 * vn1);
+		while (Long.compareUnsigned(q1, b) >= 0 || Long.compareUnsigned(q1 * vn0, (rhat << 32) | un1) > 0) {
+			q1--;
+			rhat += vn1;
+			if (rhat >= b) {
+				break;
+			}
+		}
+		long un21 = ((u1 << 32) | un1) - (q1 * v);
+		// Compute low half of quotient
+		long q0 = Long.divideUnsigned(un21, vn1);
+		rhat = un21 - (q0 * vn1);
+		while (Long.compareUnsigned(q0, b) >= 0 || Long.compareUnsigned(q0 * vn0, (rhat << 32) | un0) > 0) {
+			q0--;
+			rhat += vn1;
+			if (rhat >= b) {
+				break;
+			}
 		}
+		return (q1 << 32) | q0;
+	}
 
-		public boolean unsignedLessThan(w256 rhs) {
-			return fixedwidth_unsigned_lessthan(ints,rhs.ints);
+	/**
+	 * Divide a 128-bit unsigned value by a 64-bit unsigned divisor, using a
+	 * precomputed reciprocal of the divisor. This replaces the hardware division
+	 * with two multiplications and follows Algorithm 4 of "Improved division by
+	 * invariant integers" (M&ouml;ller and Granlund, 2011). The same conditions
+	 * on the divisor and dividend apply as for
+	 * <code>unsignedDivide(long,long,long)</code>.
+	 *
+	 * @param u1
+	 *            High limb of dividend
+	 * @param u0
+	 *            Low limb of dividend
+	 * @param v
+	 *            Normalised divisor
+	 * @param reciprocal
+	 *            As determined by <code>reciprocal(v)</code>.
+	 * @return
+	 */
+	private static long unsignedDivide(long u1, long u0, long v, long reciprocal) {
+		long p = reciprocal * u1;
+		long q0 = p + u0;
+		long q1 = unsignedMultiplyHigh(reciprocal, u1) + u1 + carry(p, u0, q0) + 1;
+		long r = u0 - (q1 * v);
+		if (Long.compareUnsigned(r, q0) > 0) {
+			q1--;
+			r += v;
+		}
+		if (Long.compareUnsigned(r, v) >= 0) {
+			q1++;
+		}
+		return q1;
+	}
+
+	/**
+	 * Compute the reciprocal of a normalised divisor, defined as
+	 * <code>floor((2^128 - 1) / v) - 2^64</code>.
+	 *
+	 * @param v
+	 * @return
+	 */
+	private static long reciprocal(long v) {
+		return unsignedDivide(~v, -1L, v);
+	}
+
+	/**
+	 * Determine the high limb resulting from shifting a pair of limbs left by
+	 * <code>s</code> bits (where <code>0 &lt;= s &lt; 64</code>).
+	 */
+	private static long shl(long hi, long lo, int s) {
+		return (s == 0) ? hi : (hi << s) | (lo >>> (64 - s));
+	}
+
+	/**
+	 * Determine the low limb resulting from shifting a pair of limbs right by
+	 * <code>s</code> bits (where <code>0 &lt;= s &lt; 64</code>).
+	 */
+	private static long shr(long lo, long hi, int s) {
+		return (s == 0) ? lo : (lo >>> s) | (hi << (64 - s));
+	}
+
+	/**
+	 * Per-thread working space for arithmetic which cannot be carried out
+	 * directly over the limbs of a word (e.g. long division). This avoids
+	 * allocating temporary arrays for every operation. In addition, the
+	 * normalised form of the most recent divisor (or modulus) is retained along
+	 * with the reciprocal of its leading limb. Since loops typically divide by the
+	 * same modulus repeatedly, this avoids recomputing them on every operation.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Scratch {
+		/**
+		 * Dividend limbs (least significant first), sufficient to hold a 512-bit
+		 * product after normalisation.
+		 */
+		final long[] u = new long[9];
+		/**
+		 * Normalised divisor limbs (least significant first)
+		 */
+		final long[] v = new long[4];
+		/**
+		 * Quotient limbs (least significant first)
+		 */
+		final long[] q = new long[8];
+		/**
+		 * Operand limbs for wide multiplication (least significant first)
+		 */
+		final long[] x = new long[4];
+		final long[] y = new long[4];
+		/**
+		 * The first sixteen powers of the base for exponentiation (four limbs each,
+		 * least significant first).
+		 */
+		final long[] powers = new long[64];
+		/**
+		 * Operands and temporaries for arithmetic over mutable words.
+		 */
+		final m256 lhs = new m256();
+		final m256 rhs = new m256();
+		final m256 mod = new m256();
+		final m256 t = new m256();
+		/**
+		 * Limbs of the divisor for which v, n, shift and reciprocal were computed.
+		 * Since a divisor is never zero, all zeros indicates nothing was prepared.
+		 */
+		long d0, d1, d2, d3;
+		/**
+		 * Number of significant limbs in the divisor
+		 */
+		int n;
+		/**
+		 * Number of bits the divisor was shifted by during normalisation.
+		 */
+		int shift;
+		/**
+		 * Reciprocal of the most significant limb of the normalised divisor.
+		 */
+		long reciprocal;
+
+		/**
+		 * Prepare the normalised form of a given (non-zero) divisor, unless this was
+		 * already done for the same divisor.
+		 *
+		 * @param divisor
+		 */
+		void prepare(m256 divisor) {
+			if (divisor.l0 != d0 || divisor.l1 != d1 || divisor.l2 != d2 || divisor.l3 != d3) {
+				n = (divisor.l0 != 0) ? 4 : (divisor.l1 != 0) ? 3 : (divisor.l2 != 0) ? 2 : 1;
+				shift = Long.numberOfLeadingZeros(divisor.lsb(n - 1));
+				for (int i = n - 1; i > 0; --i) {
+					v[i] = shl(divisor.lsb(i), divisor.lsb(i - 1), shift);
+				}
+				v[0] = divisor.l3 << shift;
+				reciprocal = reciprocal(v[n - 1]);
+				d0 = divisor.l0;
+				d1 = divisor.l1;
+				d2 = divisor.l2;
+				d3 = divisor.l3;
+			}
 		}
+	}
 
-		public w256 and(w256 rhs) {
-			int[] result = fixedwidth_twoscomplement_bitwiseand(ints,rhs.ints);
-			return new w256(result);
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
 		}
+	};
 
-		public w256 or(w256 rhs) {
-			int[] result = fixedwidth_twoscomplement_bitwiseor(ints,rhs.ints);
-			return new w256(result);
+	/**
+	 * Determine the most significant 64 bits of the (unsigned) 128-bit product of
+	 * two limbs. This is computed from the four partial products of their 32-bit
+	 * halves.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static long unsignedMultiplyHigh(long a, long b) {
+		long a_lo = a & 0xFFFFFFFFL;
+		long a_hi = a >>> 32;
+		long b_lo = b & 0xFFFFFFFFL;
+		long b_hi = b >>> 32;
+		long ll = a_lo * b_lo;
+		long lh = a_lo * b_hi;
+		long hl = a_hi * b_lo;
+		long mid = (ll >>> 32) + (lh & 0xFFFFFFFFL) + (hl & 0xFFFFFFFFL);
+		return (a_hi * b_hi) + (lh >>> 32) + (hl >>> 32) + (mid >>> 32);
+	}
+
+	/**
+	 * Determine the borrow out from subtracting two limbs (plus any borrow in),
+	 * given the result <code>r</code>.
+	 *
+	 * @param a
+	 * @param b
+	 * @param r
+	 * @return Either zero or one.
+	 */
+	private static long borrow(long a, long b, long r) {
+		return ((~a & b) | ((~a | b) & r)) >>> 63;
+	}
+
+	/**
+	 * Apply a sign extension to a given limb <code>j</code> (counting from the
+	 * least significant), where the sign bit is bit <code>b</code> of limb
+	 * <code>k</code>.
+	 *
+	 * @param limb
+	 * @param j
+	 * @param k
+	 * @param b
+	 * @param fill
+	 *            Either all ones or all zeros, depending on the sign.
+	 * @return
+	 */
+	private static long extend(long limb, int j, int k, int b, long fill) {
+		if (j < k || (j == k && b == 63)) {
+			return limb;
+		} else if (j > k) {
+			return fill;
+		} else {
+			long mask = (1L << (b + 1)) - 1;
+			return (limb & mask) | (fill & ~mask);
 		}
+	}
 
-		public w256 xor(w256 rhs) {
-			int[] result = fixedwidth_twoscomplement_bitwisexor(ints,rhs.ints);
-			return new w256(result);
+	/**
+	 * Clear any bits of a given limb <code>j</code> (counting from the least
+	 * significant) which lie at or above a given bit position of the word.
+	 *
+	 * @param limb
+	 * @param j
+	 * @param bits
+	 * @return
+	 */
+	private static long mask(long limb, int j, int bits) {
+		int lo = j << 6;
+		if (bits >= lo + 64) {
+			return limb;
+		} else if (bits <= lo) {
+			return 0;
+		} else {
+			return limb & ((1L << (bits - lo)) - 1);
 		}
+	}
 
-		public w256 signExtend(int offset) {
-			boolean sign = (ints[offset] & 0x80000000) != 0;
-			if (sign) {
-				int[] nbytes = Arrays.copyOf(ints, ints.length);
-				fixedwidth_twoscomplement_signextend(ints, offset);
-				return new w256(nbytes);
-			} else {
-				return this;
-			}
+	/**
+	 * Extract a given limb from an array of bytes in big endian form. The array may
+	 * hold fewer than 32 bytes, and is effectively padded with zeros to the left.
+	 *
+	 * @param bytes
+	 * @param limb
+	 *            Index of limb, where zero is the most significant.
+	 * @return
+	 */
+	private static long toLimb(byte[] bytes, int limb) {
+		int end = bytes.length - ((3 - limb) * 8);
+		int start = Math.max(0, end - 8);
+		long r = 0;
+		for (int i = start; i < end; ++i) {
+			r = (r << 8) | (bytes[i] & 0xFF);
+		}
+		return r;
+	}
+
+	/**
+	 * Extract a given limb from an array of ints in big endian form. The array may
+	 * hold fewer than eight ints, and is effectively padded with zeros to the left.
+	 *
+	 * @param ints
+	 * @param limb
+	 *            Index of limb, where zero is the most significant.
+	 * @return
+	 */
+	private static long toLimb(int[] ints, int limb) {
+		int end = ints.length - ((3 - limb) * 2);
+		int start = Math.max(0, end - 2);
+		long r = 0;
+		for (int i = start; i < end; ++i) {
+			r = (r << 32) | (ints[i] & 0xFFFFFFFFL);
+		}
+		return r;
+	}
+
+	private static void toBytes(long limb, byte[] bytes, int offset) {
+		for (int i = 7; i >= 0; --i) {
+			bytes[offset + i] = (byte) limb;
+			limb = limb >>> 8;
 		}
 	}
 
@@ -651,7 +2613,7 @@ public class Word {
 	private static int[] fixedwidth_twoscomplement_bitwisexor(int[] lhs, int[] rhs) {
 		int[] result = new int[lhs.length];
 		for (int i = 0 ; i < result.length; ++i) {
-			result[i] = lhs[i] & rhs[i];
+			result[i] = lhs[i] ^ rhs[i];
 		}
 		return result;
 	}
@@ -876,6 +2838,124 @@ public class Word {
 		}
 	}
 
+	public static void testWideMultiplication() {
+		System.out.println("*** TESTING WIDE MULTIPLICATION");
+		java.util.Random random = new java.util.Random(0);
+		BigInteger modulus = BigInteger.ONE.shiftLeft(256);
+		for (int i = 0; i != 100000; ++i) {
+			w256 l = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			// Clear a random subset of limbs, such that each cross term is checked alone
+			long[] limbs = new long[4];
+			for (int j = 0; j != limbs.length; ++j) {
+				limbs[j] = (i % 2 == 0 || random.nextBoolean()) ? random.nextLong() : 0;
+			}
+			w256 r = new w256(limbs[0], limbs[1], limbs[2], limbs[3]);
+			BigInteger t = l.toBigInteger().multiply(r.toBigInteger()).mod(modulus);
+			if(!l.multiply(r).toBigInteger().mod(modulus).equals(t)) {
+				System.out.println("*** ERROR: " + l + " * " + r + " = " + l.multiply(r));
+			}
+			// Likewise, with the operands swapped
+			if(!r.multiply(l).toBigInteger().mod(modulus).equals(t)) {
+				System.out.println("*** ERROR: " + r + " * " + l + " = " + r.multiply(l));
+			}
+		}
+	}
+
+	/**
+	 * Time multiplication for operands of increasing size. Since multiplication
+	 * operates over a fixed number of limbs, the time per operation should not
+	 * depend upon the magnitude of the operands.
+	 */
+	public static void benchMultiplication() {
+		System.out.println("*** BENCHMARKING MULTIPLICATION");
+		w256[] operands = { new w256(3), new w256(Long.MAX_VALUE), new w256(0, 0, -1L, -3L),
+				new w256(0x1234567890ABCDEFL, -1L, 0x0FEDCBA987654321L, -5L) };
+		final int N = 10000000;
+		for (w256 operand : operands) {
+			w256 acc = operand;
+			long start = System.nanoTime();
+			for (int i = 0; i != N; ++i) {
+				acc = acc.multiply(operand).or(w256.ONE);
+			}
+			long time = System.nanoTime() - start;
+			System.out.println(operand + " : " + ((double) time / N) + "ns/op (" + acc.hashCode() + ")");
+		}
+	}
+
+	public static void testDivision() {
+		System.out.println("*** TESTING DIVISION");
+		java.util.Random random = new java.util.Random(0);
+		BigInteger modulus = BigInteger.ONE.shiftLeft(256);
+		for (int i = 0; i != 100000; ++i) {
+			w256 l = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			w256 r = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			// Vary size of divisor
+			r = r.shiftRight(random.nextInt(256));
+			BigInteger L = l.toBigInteger().mod(modulus);
+			BigInteger R = r.toBigInteger().mod(modulus);
+			if (r.isZero()) {
+				continue;
+			} else if (!l.divide(r).toBigInteger().mod(modulus).equals(L.divide(R))) {
+				System.out.println("*** ERROR: " + l + " / " + r + " = " + l.divide(r));
+			} else if (!l.remainder(r).toBigInteger().mod(modulus).equals(L.mod(R))) {
+				System.out.println("*** ERROR: " + l + " % " + r + " = " + l.remainder(r));
+			}
+			// Check signed variants
+			w256 s = r.signExtend(1 + random.nextInt(32));
+			if (s.isZero()) {
+				continue;
+			}
+			BigInteger q = l.toBigInteger().divide(s.toBigInteger()).mod(modulus);
+			BigInteger m = l.toBigInteger().remainder(s.toBigInteger()).mod(modulus);
+			if (!l.signedDivide(s).toBigInteger().mod(modulus).equals(q)) {
+				System.out.println("*** ERROR: " + l + " / " + s + " = " + l.signedDivide(s));
+			} else if (!l.signedRemainder(s).toBigInteger().mod(modulus).equals(m)) {
+				System.out.println("*** ERROR: " + l + " % " + s + " = " + l.signedRemainder(s));
+			}
+		}
+	}
+
+	public static void testModularArithmetic() {
+		System.out.println("*** TESTING MODULAR ARITHMETIC");
+		java.util.Random random = new java.util.Random(0);
+		BigInteger modulus = BigInteger.ONE.shiftLeft(256);
+		for (int i = 0; i != 100000; ++i) {
+			w256 l = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			w256 r = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			w256 n = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			// Vary size of modulus
+			n = n.shiftRight(random.nextInt(256));
+			BigInteger L = l.toBigInteger().mod(modulus);
+			BigInteger R = r.toBigInteger().mod(modulus);
+			BigInteger N = n.toBigInteger().mod(modulus);
+			if (n.isZero()) {
+				continue;
+			} else if (!l.addMod(r, n).toBigInteger().mod(modulus).equals(L.add(R).mod(N))) {
+				System.out.println("*** ERROR: " + l + " + " + r + " % " + n + " = " + l.addMod(r, n));
+			} else if (!l.mulMod(r, n).toBigInteger().mod(modulus).equals(L.multiply(R).mod(N))) {
+				System.out.println("*** ERROR: " + l + " * " + r + " % " + n + " = " + l.mulMod(r, n));
+			}
+		}
+	}
+
+	public static void testExponentiation() {
+		System.out.println("*** TESTING EXPONENTIATION");
+		java.util.Random random = new java.util.Random(0);
+		BigInteger modulus = BigInteger.ONE.shiftLeft(256);
+		for (int i = 0; i != 10000; ++i) {
+			w256 b = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			w256 e = new w256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+			// Vary size of base and exponent
+			b = b.shiftRight(random.nextInt(256));
+			e = e.shiftRight(random.nextInt(256));
+			BigInteger B = b.toBigInteger().mod(modulus);
+			BigInteger E = e.toBigInteger().mod(modulus);
+			if (!b.pow(e).toBigInteger().mod(modulus).equals(B.modPow(E, modulus))) {
+				System.out.println("*** ERROR: " + b + " ^ " + e + " = " + b.pow(e));
+			}
+		}
+	}
+
 	public static void testUnsignedLessThan() {
 		System.out.println("*** TESTING UNSIGNED LESS THAN");
 		for (long i = 0; i < MAX; i = i + INC) {
@@ -918,6 +2998,31 @@ public class Word {
 		}
 	}
 
+	public static void testConstantCache() {
+		System.out.println("*** TESTING CONSTANT CACHE");
+		for (int i = 0; i != 256; ++i) {
+			check(w256.valueOf(i), BigInteger.valueOf(i), true);
+			check(w256.valueOf(w256.ONE.shiftLeft(i).toByteArray()), BigInteger.ONE.shiftLeft(i), true);
+		}
+		for (int n = 1; n <= 32; ++n) {
+			BigInteger mask = BigInteger.ONE.shiftLeft(8 * n).subtract(BigInteger.ONE);
+			check(w256.valueOf(w256.MAX_VALUE.shiftRight(256 - (8 * n)).toByteArray()), mask, true);
+		}
+		check(w256.valueOf(-1), BigInteger.valueOf(-1), true);
+		check(w256.valueOf(257), BigInteger.valueOf(257), false);
+		check(w256.valueOf(-2), BigInteger.valueOf(-2), false);
+		check(w256.valueOf(0, 0, 1, 1), BigInteger.ONE.shiftLeft(64).add(BigInteger.ONE), false);
+	}
+
+	private static void check(w256 w, BigInteger expected, boolean canonical) {
+		BigInteger actual = new BigInteger(1, w.toByteArray());
+		if (!actual.equals(expected.mod(BigInteger.ONE.shiftLeft(256)))) {
+			System.out.println("*** ERROR: " + w + " != " + expected);
+		} else if (canonical != (w == w256.valueOf(w.toByteArray()))) {
+			System.out.println("*** ERROR: " + w + " (canonical " + canonical + ")");
+		}
+	}
+
 	public static void main(String[] args) {
 //		w32 w = new w32(128);
 //		System.out.println("GOT: " + w.toBigInteger());
@@ -926,6 +3031,12 @@ public class Word {
 //		testIncrement();
 		//testAddition();
 //		testMultiplication();
+		testWideMultiplication();
+		testDivision();
+		testModularArithmetic();
+		testExponentiation();
+		testConstantCache();
+		benchMultiplication();
 //		testNegation();
 		testUnsignedLessThan();
 		testSignedLessThan();